@@ -0,0 +1,112 @@
+package bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * {@code CSE3241app.insertAudiobook} with a new narrator and two new authors, the full insert path:
+ * id allocation, contributor lookups, and the MEDIA, AUDIOBOOK, NARRATOR, AUTHOR and AUTHORS rows
+ * committed in one transaction.
+ *
+ * <p>Audiobook ids come from a range of 1000, so each insert is deleted again after it is timed and
+ * the AUDIOBOOK id sequence is wound back; the database is the same size for every invocation.
+ * See {@link QueryBenchmark} for how to run.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class InsertBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public long rows;
+
+	/** Deletes the rows of one insert, children first: ?1 the audiobook id, ?2 the narrator, ?3 and ?4 the authors. */
+	private static final String[] CLEANUP = {
+			"DELETE FROM AUTHORS WHERE Audiobook_Id = ?1;",
+			"DELETE FROM AUDIOBOOK WHERE Audiobook_Id = ?1;",
+			"DELETE FROM MEDIA WHERE Media_Id = ?1;",
+			"DELETE FROM NARRATOR WHERE Name = ?2;",
+			"DELETE FROM AUTHOR WHERE Name IN (?3, ?4);"
+	};
+
+	private static final String REWIND_SEQUENCE = "UPDATE ID_SEQUENCE " +
+			"SET Next_Id = (SELECT MAX(Media_Id) + 1 FROM MEDIA WHERE Media_Id BETWEEN 0 AND 999) " +
+			"WHERE Name = 'AUDIOBOOK';";
+
+	private Object pool;
+	private Connection conn;
+	private int inserted = -1;
+	private String[] names;
+	private String run;
+	private long count;
+
+	@Setup(Level.Trial)
+	public void open() throws Throwable {
+		pool = Library.open(rows);
+		conn = Library.borrow(pool);
+		// Names no earlier run can have left behind, so every insert creates its contributors.
+		run = Long.toString(System.currentTimeMillis(), 36);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Throwable {
+		Library.release(pool, conn);
+		Library.close(pool);
+	}
+
+	@Benchmark
+	public int insertAudiobook() throws Throwable {
+		count++;
+		String suffix = run + "-" + count;
+		names = new String[] {"Narrator " + suffix, "Author A" + suffix, "Author B" + suffix};
+		inserted = (int) Library.INSERT_AUDIOBOOK.invoke(conn, names[0], "Audiobook " + suffix,
+				"Fiction", 2020, 600, Arrays.asList(names[1], names[2]));
+		return inserted;
+	}
+
+	@TearDown(Level.Invocation)
+	public void removeInserted() throws Exception {
+		if (inserted == -1) {
+			return;
+		}
+		for (String sql : CLEANUP) {
+			PreparedStatement stmt = conn.prepareStatement(sql);
+			try {
+				int parameters = stmt.getParameterMetaData().getParameterCount();
+				stmt.setInt(1, inserted);
+				for (int i = 2; i <= parameters; i++) {
+					stmt.setString(i, names[i - 2]);
+				}
+				stmt.executeUpdate();
+			} finally {
+				stmt.close();
+			}
+		}
+		PreparedStatement stmt = conn.prepareStatement(REWIND_SEQUENCE);
+		try {
+			stmt.executeUpdate();
+		} finally {
+			stmt.close();
+		}
+		inserted = -1;
+	}
+}
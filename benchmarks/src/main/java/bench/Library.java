@@ -0,0 +1,183 @@
+package bench;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Calls into the application, whose classes are in the default package.
+ *
+ * <p>JMH does not accept benchmarks in the default package, and Java code in a named package cannot
+ * refer to classes in the default package. So the benchmarks reach the app through method handles
+ * that are looked up once and held in static final fields, where the JIT compiles them down to plain
+ * calls. App objects such as the connection pool and result writers are passed around as Object.</p>
+ *
+ * <p>The app's classes are loaded without being initialized. CSE3241app reads -Ddatabase when it is
+ * first initialized, so {@link #open(long)} sets that property before anything runs. It also turns
+ * the ResultCache off unless -Dresult.cache is given, so the query benchmarks reach SQLite.</p>
+ */
+final class Library {
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+	private static final Class<?> APP = load("CSE3241app");
+	private static final Class<?> POOL = load("ConnectionPool");
+	private static final Class<?> WRITER = load("ResultWriter");
+
+	static final MethodHandle TRACKS_BEFORE_YEAR = method(APP, "getTracksBeforeYear",
+			long.class, Connection.class, String.class, int.class, WRITER);
+	static final MethodHandle ALBUM_COPIES = method(APP, "getAlbumCopies",
+			long.class, Connection.class, int.class, WRITER);
+	static final MethodHandle ALBUMS_BY_PATRON = method(APP, "getNumOfAlbumsCheckedOutByPatron",
+			long.class, Connection.class, int.class, WRITER);
+	static final MethodHandle GAMES_BY_PATRON = method(APP, "getNumOfGamesCheckedOutByPatron",
+			long.class, Connection.class, int.class, WRITER);
+	static final MethodHandle DIGITAL_ALBUM_COPIES = method(APP, "getNumOfDigitalAlbumsCopies",
+			long.class, Connection.class, WRITER);
+	static final MethodHandle LONGEST_AUDIOBOOK = method(APP, "getLongestAudiobook",
+			long.class, Connection.class, WRITER);
+	static final MethodHandle INSERT_AUDIOBOOK = method(APP, "insertAudiobook",
+			int.class, Connection.class, String.class, String.class, String.class, int.class, int.class, List.class);
+	static final MethodHandle STOCK = method(load("StockCounters"), "availability",
+			load("StockCounters$Stock"), Connection.class, int.class);
+	static final MethodHandle SEARCH = method(load("SearchIndex"), "search",
+			long.class, Connection.class, String.class, int.class, WRITER);
+	static final MethodHandle TYPEAHEAD = method(load("Typeahead"), "write",
+			long.class, Connection.class, String.class, int.class, WRITER);
+
+	private static final MethodHandle FOR_FORMAT = method(WRITER, "forFormat",
+			WRITER, String.class, WritableByteChannel.class);
+	private static final MethodHandle MIGRATE = method(load("SchemaMigrator"), "migrate", int.class, POOL);
+	private static final MethodHandle WRITE;
+	private static final MethodHandle NEW_POOL;
+	private static final MethodHandle BORROW;
+	private static final MethodHandle RELEASE;
+	private static final MethodHandle CLOSE;
+	private static final MethodHandle NEW_LIBRARY;
+	private static final MethodHandle GENERATE;
+	static {
+		try {
+			WRITE = LOOKUP.findVirtual(WRITER, "write",
+					MethodType.methodType(long.class, ResultSet.class));
+			NEW_POOL = LOOKUP.findConstructor(POOL, MethodType.methodType(void.class, String.class, int.class));
+			BORROW = LOOKUP.findVirtual(POOL, "borrow", MethodType.methodType(Connection.class));
+			RELEASE = LOOKUP.findVirtual(POOL, "release", MethodType.methodType(void.class, Connection.class));
+			CLOSE = LOOKUP.findVirtual(POOL, "close", MethodType.methodType(void.class));
+			Class<?> synthetic = load("SyntheticLibrary");
+			NEW_LIBRARY = LOOKUP.findConstructor(synthetic, MethodType.methodType(void.class, long.class));
+			GENERATE = LOOKUP.findVirtual(synthetic, "generate", MethodType.methodType(void.class, String.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/** Where generated databases are kept between runs. Override with -Dbench.data.dir=DIR. */
+	static final File DATA_DIR = new File(System.getProperty("bench.data.dir", "target/bench-data"));
+
+	private Library() {
+	}
+
+	/**
+	 * Points the app at the synthetic database with about this many rows, generating it if it is not
+	 * there yet, and opens a pool on it with the schema brought up to date.
+	 *
+	 * @param rows the dataset size
+	 * @return a ConnectionPool
+	 */
+	static synchronized Object open(long rows) throws Throwable {
+		File file = new File(DATA_DIR, "library-" + rows + ".db");
+		System.setProperty("database", file.getPath());
+		if (System.getProperty("result.cache") == null) {
+			// Measure the queries themselves; run with -Dresult.cache=true to measure cache hits instead.
+			System.setProperty("result.cache", "false");
+		}
+		if (!file.exists()) {
+			DATA_DIR.mkdirs();
+			// Generate under another name so an interrupted run never leaves a partial database behind.
+			File partial = new File(DATA_DIR, "library-" + rows + ".partial.db");
+			new File(partial.getPath() + "-wal").delete();
+			new File(partial.getPath() + "-shm").delete();
+			partial.delete();
+			GENERATE.invoke(NEW_LIBRARY.invoke(rows), partial.getPath());
+			if (!partial.renameTo(file)) {
+				throw new IllegalStateException("Could not rename " + partial + " to " + file);
+			}
+		}
+		Object pool = NEW_POOL.invoke(file.getPath(), 4);
+		// Databases generated by an earlier build may be missing the newer migrations.
+		MIGRATE.invoke(pool);
+		return pool;
+	}
+
+	static Connection borrow(Object pool) throws Throwable {
+		return (Connection) BORROW.invoke(pool);
+	}
+
+	static void release(Object pool, Connection conn) throws Throwable {
+		RELEASE.invoke(pool, conn);
+	}
+
+	static void close(Object pool) throws Throwable {
+		CLOSE.invoke(pool);
+	}
+
+	/**
+	 * @return a CSV ResultWriter that throws its output away
+	 */
+	static Object discardingWriter() throws Throwable {
+		return FOR_FORMAT.invoke("csv", new Discard());
+	}
+
+	/**
+	 * Writes a result set through a ResultWriter.
+	 *
+	 * @return the number of rows
+	 */
+	static long write(Object writer, ResultSet rs) throws Throwable {
+		return (long) WRITE.invoke(writer, rs);
+	}
+
+	private static Class<?> load(String name) {
+		try {
+			return Class.forName(name, false, Library.class.getClassLoader());
+		} catch (ClassNotFoundException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static MethodHandle method(Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+		try {
+			return LOOKUP.findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * A channel that accepts and drops everything, so the benchmarks measure producing the output
+	 * but not storing it.
+	 */
+	private static final class Discard implements WritableByteChannel {
+		@Override
+		public int write(ByteBuffer src) {
+			int length = src.remaining();
+			src.position(src.limit());
+			return length;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
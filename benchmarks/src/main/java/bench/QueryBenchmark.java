@@ -0,0 +1,128 @@
+package bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read paths of the app, run against synthetic libraries of 10 thousand, 1 million and 10 million rows.
+ *
+ * <p>Every query writes its rows through a CSV ResultWriter into a channel that drops them, so the
+ * numbers include reading and formatting every row. Each benchmark is reported as throughput (ops/ms)
+ * and as sampled latency with percentiles (ms/op).</p>
+ *
+ * <p>Build with {@code mvn -B package}, then run from the repository root, where the template
+ * Library_Database.db is: {@code java -jar benchmarks/target/benchmarks.jar}. Pick sizes with
+ * {@code -p rows=10000}, and save results for comparing runs with {@code -rf json -rff before.json}.
+ * The first run at a size generates its database under -Dbench.data.dir (default target/bench-data);
+ * the 10 million row database takes under a minute and about 550 MB.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public long rows;
+
+	/** Artist 0 has albums at every size; see SyntheticLibrary. */
+	private static final String ARTIST = "Artist 0";
+
+	private Object pool;
+	private Connection conn;
+	private Object out;
+	private int patrons;
+	private int titles;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void open() throws Throwable {
+		pool = Library.open(rows);
+		conn = Library.borrow(pool);
+		out = Library.discardingWriter();
+		patrons = count("SELECT COUNT(*) FROM PATRON;");
+		titles = count("SELECT COUNT(*) FROM MEDIA WHERE Type_of_Media = 'Album';");
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Throwable {
+		Library.release(pool, conn);
+		Library.close(pool);
+	}
+
+	private int count(String sql) throws Exception {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		try {
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @return the next of a spread of values below bound, so repeated calls do not hit the same rows
+	 */
+	private int spread(int bound) {
+		next = (next + 7919) % bound;
+		return next;
+	}
+
+	@Benchmark
+	public long tracksBeforeYear() throws Throwable {
+		return (long) Library.TRACKS_BEFORE_YEAR.invoke(conn, ARTIST, 2000, out);
+	}
+
+	@Benchmark
+	public long albumCopies() throws Throwable {
+		return (long) Library.ALBUM_COPIES.invoke(conn, 100, out);
+	}
+
+	@Benchmark
+	public long albumsCheckedOutByPatron() throws Throwable {
+		return (long) Library.ALBUMS_BY_PATRON.invoke(conn, spread(patrons), out);
+	}
+
+	@Benchmark
+	public long gamesCheckedOutByPatron() throws Throwable {
+		return (long) Library.GAMES_BY_PATRON.invoke(conn, spread(patrons), out);
+	}
+
+	@Benchmark
+	public long digitalAlbumCopies() throws Throwable {
+		return (long) Library.DIGITAL_ALBUM_COPIES.invoke(conn, out);
+	}
+
+	@Benchmark
+	public long longestAudiobook() throws Throwable {
+		return (long) Library.LONGEST_AUDIOBOOK.invoke(conn, out);
+	}
+
+	/**
+	 * The MEDIA_STOCK counter lookup that stands in for the stock views, one album at a time.
+	 * The views themselves are in {@link StockViewBenchmark}.
+	 */
+	@Benchmark
+	public Object stockCounters() throws Throwable {
+		return Library.STOCK.invoke(conn, 3000 + spread(titles));
+	}
+}
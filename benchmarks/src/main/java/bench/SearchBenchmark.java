@@ -0,0 +1,113 @@
+package bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Name search three ways: the {@code LIKE '%x%'} scan the app would otherwise need, the SEARCH full-text
+ * index, and the in-memory typeahead index.
+ *
+ * <p>Each returns the best 20 matches. The scan ranks by name length, the closest it has to relevance,
+ * so it has to read every name of MEDIA, TRACK and the contributor tables. The typeahead index is built
+ * on the first query and shared after that. See {@link QueryBenchmark} for how to run.</p>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+
+	@Param({"10000", "1000000"})
+	public long rows;
+
+	private static final int LIMIT = 20;
+
+	private static final String LIKE_SQL = "SELECT Kind, Ref, Name FROM (" +
+			"SELECT 'MEDIA' AS Kind, Media_Id AS Ref, Name FROM MEDIA WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'TRACK', Album_Id, Title FROM TRACK WHERE Title LIKE ?1 " +
+			"UNION ALL SELECT 'ARTIST', Artist_Id, Name FROM ARTIST WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'AUTHOR', Author_Id, Name FROM AUTHOR WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'NARRATOR', Narrator_Id, Name FROM NARRATOR WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'ACTOR', Actor_Id, Name FROM ACTOR WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'DIRECTOR', Director_Id, Name FROM DIRECTOR WHERE Name LIKE ?1 " +
+			"UNION ALL SELECT 'DEVELOPER', Developer_Id, Name FROM DEVELOPER WHERE Name LIKE ?1) " +
+			"ORDER BY length(Name) LIMIT ?2;";
+
+	/** Words found at every size; see SyntheticLibrary. */
+	private static final String[] QUERIES = {"movie 1", "track 7", "album 2", "artist 3"};
+
+	/** The same words as typed in a hurry. */
+	private static final String[] TYPOS = {"moive 1", "trakc 7", "albmu 2", "artsit 3"};
+
+	private Object pool;
+	private Connection conn;
+	private Object out;
+	private PreparedStatement like;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void open() throws Throwable {
+		pool = Library.open(rows);
+		conn = Library.borrow(pool);
+		out = Library.discardingWriter();
+		like = conn.prepareStatement(LIKE_SQL);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Throwable {
+		like.close();
+		Library.release(pool, conn);
+		Library.close(pool);
+	}
+
+	@Benchmark
+	public long likeScan() throws Throwable {
+		like.setString(1, "%" + query(QUERIES) + "%");
+		like.setInt(2, LIMIT);
+		ResultSet rs = like.executeQuery();
+		return Library.write(out, rs);
+	}
+
+	@Benchmark
+	public long fullText() throws Throwable {
+		return (long) Library.SEARCH.invoke(conn, query(QUERIES), LIMIT, out);
+	}
+
+	@Benchmark
+	public long typeahead() throws Throwable {
+		return (long) Library.TYPEAHEAD.invoke(conn, query(QUERIES), LIMIT, out);
+	}
+
+	@Benchmark
+	public long typeaheadMisspelled() throws Throwable {
+		return (long) Library.TYPEAHEAD.invoke(conn, query(TYPOS), LIMIT, out);
+	}
+
+	@Benchmark
+	public long typeaheadPrefix() throws Throwable {
+		return (long) Library.TYPEAHEAD.invoke(conn, query(QUERIES).substring(0, 2), LIMIT, out);
+	}
+
+	private String query(String[] queries) {
+		next = (next + 1) % queries.length;
+		return queries[next];
+	}
+}
@@ -0,0 +1,77 @@
+package bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full reads of the PHYSICAL_STOCK and DIGITAL_STOCK views.
+ *
+ * <p>The views regroup LIBRARY_ITEM and CHECK_OUT on every read and take minutes per read at a million
+ * rows, so they are timed one read at a time (single shot) with few iterations. The 10 million row
+ * size is left out of the defaults; ask for it with {@code -p rows=10000000} when there are hours to
+ * spare. See {@link QueryBenchmark} for how to run.</p>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StockViewBenchmark {
+
+	@Param({"10000", "1000000"})
+	public long rows;
+
+	private Object pool;
+	private Connection conn;
+	private Object out;
+
+	@Setup(Level.Trial)
+	public void open() throws Throwable {
+		pool = Library.open(rows);
+		conn = Library.borrow(pool);
+		out = Library.discardingWriter();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Throwable {
+		Library.release(pool, conn);
+		Library.close(pool);
+	}
+
+	@Benchmark
+	public long physicalStockView() throws Throwable {
+		return view("SELECT * FROM PHYSICAL_STOCK;");
+	}
+
+	@Benchmark
+	public long digitalStockView() throws Throwable {
+		return view("SELECT * FROM DIGITAL_STOCK;");
+	}
+
+	private long view(String sql) throws Throwable {
+		PreparedStatement stmt = conn.prepareStatement(sql);
+		try {
+			ResultSet rs = stmt.executeQuery();
+			return Library.write(out, rs);
+		} finally {
+			stmt.close();
+		}
+	}
+}
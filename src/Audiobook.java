@@ -1,4 +1,8 @@
 public class Audiobook {
     int audiobookId;
     int narratorId;
+    int[] authorIds;
+    //which of the contributors were added by the insert that returned this
+    boolean newNarrator;
+    boolean[] newAuthors;
 }
@@ -0,0 +1,479 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-interactive mode: runs a script of commands, one per line, in a single JVM.
+ *
+ * <p>Commands and their arguments (quote arguments that contain spaces):</p>
+ * <ul>
+ * <li>{@code tracks-before ARTIST YEAR}</li>
+ * <li>{@code album-copies N}</li>
+ * <li>{@code actors}</li>
+ * <li>{@code patron-albums CARD_ID}</li>
+ * <li>{@code patron-games CARD_ID}</li>
+ * <li>{@code patron CARD_ID}, the patron's items out per type of media, overdue items and late fees</li>
+ * <li>{@code digital-album-copies}</li>
+ * <li>{@code longest-audiobook}</li>
+ * <li>{@code stock MEDIA_ID}</li>
+ * <li>{@code overdue AS_OF}</li>
+ * <li>{@code assess-fees AS_OF [SINCE]}</li>
+ * <li>{@code list TABLE}, every row of ACTOR, ARTIST, TRACK, PATRON, MEDIA or LIBRARY_ITEM</li>
+ * <li>{@code page TABLE SIZE [CURSOR]}, one page of a table followed by {@code # next cursor: CURSOR}</li>
+ * <li>{@code search TEXT [LIMIT]}, titles and names matching every word of TEXT</li>
+ * <li>{@code typeahead TEXT [LIMIT]}, titles and names most like TEXT, misspellings included</li>
+ * <li>{@code changes AFTER [MAX]}, logged changes after Seq AFTER followed by {@code # last seq: N}</li>
+ * <li>{@code subscribe CONSUMER}, registers a change log consumer at the latest change</li>
+ * <li>{@code poll CONSUMER [MAX]}, the changes CONSUMER has not acknowledged, followed by {@code # last seq: N}</li>
+ * <li>{@code ack CONSUMER SEQ}, moves CONSUMER's checkpoint to SEQ</li>
+ * <li>{@code compact-changes}, deletes the changes every consumer has acknowledged</li>
+ * <li>{@code recommend MEDIA_ID}, the titles most often out to the same patrons as MEDIA_ID</li>
+ * <li>{@code build-recommendations [force]}, recounts co-circulation if CHECK_OUT changed since the
+ * last build (see {@link Recommendations})</li>
+ * <li>{@code export DIR [THREADS]}, every table and view as of one moment into DIR as gzipped CSV
+ * with a manifest, then each one's throughput (see {@link DatabaseExport})</li>
+ * <li>{@code checkout CARD_ID ITEM_ID}</li>
+ * <li>{@code return ITEM_ID}</li>
+ * <li>{@code insert-audiobook NARRATOR NAME GENRE YEAR LENGTH AUTHOR [AUTHOR ...]}</li>
+ * </ul>
+ * <p>Blank lines and lines starting with # are skipped. After each command's rows a line
+ * {@code # COMMAND: N rows in T ms} is printed; failures print {@code # COMMAND: error ...} and the
+ * script carries on.</p>
+ *
+ * <p>With -Dbatch.parallel=N (N &gt; 1) consecutive read commands run concurrently on up to N pooled
+ * connections; their output is still printed in script order. A write command waits for the reads
+ * before it and runs alone. The output waiting to be printed is held in memory up to
+ * -Dbatch.buffer.bytes (8 MiB by default); a read that would go past that is abandoned and run
+ * again on its own when its turn comes, straight to the output.</p>
+ */
+public class BatchRunner {
+
+	/** The most bytes of parallel read output held at once. Override with -Dbatch.buffer.bytes=N. */
+	static final long BUFFER_BYTES = Long.getLong("batch.buffer.bytes", 8L << 20);
+
+	private final ConnectionPool pool;
+	private final int parallelism;
+
+	/**
+	 * @param pool the pool commands borrow connections from
+	 * @param parallelism the number of read commands run at once, at most the pool size
+	 */
+	public BatchRunner(ConnectionPool pool, int parallelism) {
+		this.pool = pool;
+		this.parallelism = Math.max(1, Math.min(parallelism, pool.size()));
+	}
+
+	/**
+	 * Runs every command of a script.
+	 *
+	 * @param script the commands, one per line
+	 * @return the number of commands that failed
+	 */
+	public int run(BufferedReader script) throws IOException {
+		long start = System.nanoTime();
+		int commands = 0;
+		int failures = 0;
+		ExecutorService executor = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+		List<Command> reads = new ArrayList<Command>();
+		try {
+			String line;
+			while ((line = script.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				Command command = new Command(line);
+				commands++;
+				if (executor != null && !command.isWrite()) {
+					reads.add(command);
+					continue;
+				}
+				failures += runAll(executor, reads);
+				reads.clear();
+				failures += runDirect(command);
+			}
+			failures += runAll(executor, reads);
+		} finally {
+			if (executor != null) {
+				executor.shutdown();
+			}
+		}
+		System.out.println("# " + commands + " commands, " + failures + " failed, "
+				+ millis(System.nanoTime() - start) + " ms total");
+		return failures;
+	}
+
+	/**
+	 * Runs a command with its rows going straight to the app's output.
+	 */
+	private int runDirect(Command command) throws IOException {
+		long start = System.nanoTime();
+		try {
+			long rows = execute(command, ResultWriter.standard());
+			System.out.println("# " + command.line + ": " + rows + " rows in " + millis(System.nanoTime() - start) + " ms");
+			return 0;
+		} catch (Exception e) {
+			System.out.println("# " + command.line + ": error " + e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Runs read commands concurrently, each into its own buffer, and prints them in order.
+	 * The buffers share one budget of {@link #BUFFER_BYTES}; a command whose output does not fit is
+	 * run again with {@link #runDirect(Command)} once the commands before it are printed.
+	 */
+	private int runAll(ExecutorService executor, List<Command> commands) throws IOException {
+		if (commands.isEmpty()) {
+			return 0;
+		}
+		AtomicLong budget = new AtomicLong(BUFFER_BYTES);
+		List<BoundedBuffer> buffers = new ArrayList<BoundedBuffer>();
+		List<Future<Outcome>> outcomes = new ArrayList<Future<Outcome>>();
+		for (final Command command : commands) {
+			final BoundedBuffer buffer = new BoundedBuffer(budget);
+			buffers.add(buffer);
+			outcomes.add(executor.submit(new Callable<Outcome>() {
+				@Override
+				public Outcome call() throws Exception {
+					ResultWriter out = ResultWriter.forStandardFormat(Channels.newChannel(buffer));
+					long start = System.nanoTime();
+					try {
+						long rows = execute(command, out);
+						out.close();
+						return new Outcome(rows, System.nanoTime() - start);
+					} catch (Exception e) {
+						buffer.free();
+						throw e;
+					}
+				}
+			}));
+		}
+		int failures = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			String line = commands.get(i).line;
+			BoundedBuffer buffer = buffers.get(i);
+			try {
+				Outcome outcome = outcomes.get(i).get();
+				buffer.writeTo(System.out);
+				buffer.free();
+				System.out.println("# " + line + ": " + outcome.rows + " rows in " + millis(outcome.nanos) + " ms");
+			} catch (ExecutionException e) {
+				if (buffer.overflowed) {
+					failures += runDirect(commands.get(i));
+				} else {
+					System.out.println("# " + line + ": error " + e.getCause().getMessage());
+					failures++;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for " + line, e);
+			}
+		}
+		System.out.flush();
+		return failures;
+	}
+
+	private long execute(Command command, ResultWriter out) throws SQLException, IOException {
+		Connection conn = pool.borrow();
+		try {
+			return command.execute(conn, out);
+		} finally {
+			pool.release(conn);
+		}
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * Splits a line into words; double quotes group words and \" is a literal quote.
+	 */
+	static List<String> tokenize(String line) {
+		List<String> words = new ArrayList<String>();
+		StringBuilder word = new StringBuilder();
+		boolean quoted = false;
+		boolean inWord = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+				word.append('"');
+				inWord = true;
+				i++;
+			} else if (c == '"') {
+				quoted = !quoted;
+				inWord = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (inWord) {
+					words.add(word.toString());
+					word.setLength(0);
+					inWord = false;
+				}
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+		}
+		if (inWord) {
+			words.add(word.toString());
+		}
+		return words;
+	}
+
+	private static class Outcome {
+		final long rows;
+		final long nanos;
+
+		Outcome(long rows, long nanos) {
+			this.rows = rows;
+			this.nanos = nanos;
+		}
+	}
+
+	/**
+	 * An in-memory buffer that takes the bytes it holds out of a budget shared with other buffers,
+	 * and fails once the budget is spent.
+	 */
+	private static class BoundedBuffer extends ByteArrayOutputStream {
+		private final AtomicLong budget;
+		volatile boolean overflowed = false;
+
+		BoundedBuffer(AtomicLong budget) {
+			this.budget = budget;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			reserve(1);
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			reserve(len);
+			super.write(b, off, len);
+		}
+
+		private void reserve(int bytes) {
+			if (budget.addAndGet(-bytes) < 0) {
+				budget.addAndGet(bytes);
+				overflowed = true;
+				throw new IllegalStateException("More than " + BUFFER_BYTES + " bytes of output are waiting to be printed");
+			}
+		}
+
+		/** Drops the contents and gives their bytes back to the budget. */
+		synchronized void free() {
+			budget.addAndGet(count);
+			count = 0;
+			buf = new byte[0];
+		}
+	}
+
+	/**
+	 * One parsed line of the script.
+	 */
+	static class Command {
+		final String line;
+		final String name;
+		final List<String> args;
+
+		Command(String line) {
+			this.line = line;
+			List<String> words = tokenize(line);
+			this.name = words.get(0).toLowerCase();
+			this.args = words.subList(1, words.size());
+		}
+
+		boolean isWrite() {
+			return name.equals("insert-audiobook") || name.equals("assess-fees")
+					|| name.equals("checkout") || name.equals("return")
+					|| name.equals("subscribe") || name.equals("ack") || name.equals("compact-changes")
+					|| name.equals("build-recommendations");
+		}
+
+		long execute(Connection conn, ResultWriter out) throws SQLException, IOException {
+			if (name.equals("tracks-before")) {
+				expect(2);
+				return CSE3241app.getTracksBeforeYear(conn, args.get(0), intArg(1), out);
+			} else if (name.equals("album-copies")) {
+				expect(1);
+				return CSE3241app.getAlbumCopies(conn, intArg(0), out);
+			} else if (name.equals("actors")) {
+				expect(0);
+				return CSE3241app.getActors(conn, out);
+			} else if (name.equals("patron-albums")) {
+				expect(1);
+				return CSE3241app.getNumOfAlbumsCheckedOutByPatron(conn, intArg(0), out);
+			} else if (name.equals("patron-games")) {
+				expect(1);
+				return CSE3241app.getNumOfGamesCheckedOutByPatron(conn, intArg(0), out);
+			} else if (name.equals("patron")) {
+				expect(1);
+				return PatronSummary.write(conn, intArg(0), out);
+			} else if (name.equals("digital-album-copies")) {
+				expect(0);
+				return CSE3241app.getNumOfDigitalAlbumsCopies(conn, out);
+			} else if (name.equals("longest-audiobook")) {
+				expect(0);
+				return CSE3241app.getLongestAudiobook(conn, out);
+			} else if (name.equals("stock")) {
+				expect(1);
+				return StockCounters.writeAvailability(conn, intArg(0), out);
+			} else if (name.equals("overdue")) {
+				expect(1);
+				return OverdueReport.write(conn, args.get(0), out);
+			} else if (name.equals("assess-fees")) {
+				if (args.size() < 1 || args.size() > 2) {
+					throw new IllegalArgumentException("usage: assess-fees AS_OF [SINCE]");
+				}
+				final String asOf = args.get(0);
+				final String since = args.size() > 1 ? args.get(1) : OverdueReport.dayBefore(asOf);
+				int patrons = CSE3241app.writer().execute(new WriteQueue.Mutation<Integer>() {
+					@Override
+					public Integer apply(Connection writerConn) throws SQLException {
+						return OverdueReport.assessFees(writerConn, asOf, since);
+					}
+				}, "PATRON");
+				PatronSummary.invalidateAll();
+				System.out.println("Charged late fees to " + patrons + " patrons");
+				return patrons;
+			} else if (name.equals("list")) {
+				expect(1);
+				return TableLister.writeAll(conn, args.get(0), out);
+			} else if (name.equals("page")) {
+				if (args.size() < 2 || args.size() > 3) {
+					throw new IllegalArgumentException("usage: page TABLE SIZE [CURSOR]");
+				}
+				TableLister.Page page = TableLister.writePage(conn, args.get(0), intArg(1),
+						args.size() > 2 ? args.get(2) : null, out, true);
+				out.writeLine(page.next == null ? "# last page" : "# next cursor: " + page.next);
+				return page.rows;
+			} else if (name.equals("search") || name.equals("typeahead")) {
+				if (args.size() < 1 || args.size() > 2) {
+					throw new IllegalArgumentException("usage: " + name + " TEXT [LIMIT]");
+				}
+				int limit = args.size() > 1 ? intArg(1) : SearchIndex.DEFAULT_LIMIT;
+				return name.equals("search") ? SearchIndex.search(conn, args.get(0), limit, out)
+						: Typeahead.write(conn, args.get(0), limit, out);
+			} else if (name.equals("changes") || name.equals("poll")) {
+				if (args.size() < 1 || args.size() > 2) {
+					throw new IllegalArgumentException("usage: " + name + (name.equals("poll") ? " CONSUMER" : " AFTER") + " [MAX]");
+				}
+				int max = args.size() > 1 ? intArg(1) : ChangeLog.BATCH_SIZE;
+				ChangeLog.Batch batch = name.equals("poll") ? ChangeLog.poll(conn, args.get(0), max)
+						: ChangeLog.read(conn, longArg(0), max);
+				long rows = batch.write(out, true);
+				out.writeLine("# last seq: " + batch.last);
+				return rows;
+			} else if (name.equals("subscribe")) {
+				expect(1);
+				long checkpoint = WriteQueue.await(CSE3241app.changeLog().register(args.get(0)));
+				System.out.println("Consumer " + args.get(0) + " is at seq " + checkpoint);
+				return 1;
+			} else if (name.equals("ack")) {
+				expect(2);
+				long checkpoint = WriteQueue.await(CSE3241app.changeLog().acknowledge(args.get(0), longArg(1)));
+				System.out.println("Consumer " + args.get(0) + " is at seq " + checkpoint);
+				return 1;
+			} else if (name.equals("compact-changes")) {
+				expect(0);
+				long deleted = CSE3241app.changeLog().compact();
+				System.out.println("Deleted " + deleted + " acknowledged changes");
+				return deleted;
+			} else if (name.equals("recommend")) {
+				expect(1);
+				return Recommendations.write(conn, intArg(0), out);
+			} else if (name.equals("build-recommendations")) {
+				if (args.size() > 1 || (args.size() == 1 && !args.get(0).equals("force"))) {
+					throw new IllegalArgumentException("usage: build-recommendations [force]");
+				}
+				Recommendations.Build build = CSE3241app.recommendations().build(conn, args.size() == 1);
+				System.out.println(build == null ? "Recommendations are up to date" : "Built recommendations: " + build);
+				return build == null ? 0 : build.rewritten;
+			} else if (name.equals("export")) {
+				if (args.size() < 1 || args.size() > 2) {
+					throw new IllegalArgumentException("usage: export DIR [THREADS]");
+				}
+				return DatabaseExport.report(DatabaseExport.export(CSE3241app.DATABASE, new File(args.get(0)),
+						args.size() > 1 ? intArg(1) : DatabaseExport.THREADS), out);
+			} else if (name.equals("checkout")) {
+				expect(2);
+				String due = WriteQueue.await(CSE3241app.circulation().checkout(intArg(0), intArg(1)));
+				System.out.println("Item " + intArg(1) + " is due back " + due);
+				return 1;
+			} else if (name.equals("return")) {
+				expect(1);
+				String due = WriteQueue.await(CSE3241app.circulation().returnItem(intArg(0)));
+				System.out.println("Item " + intArg(0) + " was due back " + due);
+				return 1;
+			} else if (name.equals("insert-audiobook")) {
+				if (args.size() < 6) {
+					throw new IllegalArgumentException("usage: insert-audiobook NARRATOR NAME GENRE YEAR LENGTH AUTHOR [AUTHOR ...]");
+				}
+				int id = CSE3241app.insertAudiobook(conn, args.get(0), args.get(1), args.get(2),
+						intArg(3), intArg(4), new ArrayList<String>(args.subList(5, args.size())));
+				System.out.println("Inserted audiobook " + id);
+				return 1;
+			}
+			throw new IllegalArgumentException("unknown command " + name);
+		}
+
+		private void expect(int count) {
+			if (args.size() != count) {
+				throw new IllegalArgumentException(name + " takes " + count + " argument(s), got " + args.size());
+			}
+		}
+
+		private int intArg(int index) {
+			try {
+				return Integer.parseInt(args.get(index));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + ": '" + args.get(index) + "' is not a number");
+			}
+		}
+
+		private long longArg(int index) {
+			try {
+				return Long.parseLong(args.get(index));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + ": '" + args.get(index) + "' is not a number");
+			}
+		}
+	}
+
+	/**
+	 * Runs a script file, or standard input when the file is missing or "-".
+	 *
+	 * @param fileName the script, or null
+	 * @return the number of commands that failed
+	 */
+	public static int runScript(ConnectionPool pool, String fileName) throws IOException {
+		InputStream in = fileName == null || fileName.equals("-") ? System.in : new FileInputStream(fileName);
+		BufferedReader script = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		try {
+			return new BatchRunner(pool, Integer.getInteger("batch.parallel", 1)).run(script);
+		} finally {
+			if (in != System.in) {
+				script.close();
+			}
+		}
+	}
+}
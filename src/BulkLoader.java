@@ -0,0 +1,507 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming bulk loader for the catalog tables.
+ *
+ * <p>Reads CSV (with a header row) or JSONL (one flat object per line) and inserts the rows with
+ * JDBC batches inside large transactions. Records are read, bound and batched one at a time,
+ * so memory use does not grow with the size of the input.</p>
+ *
+ * <p>A load is atomic: rows are staged in a TEMP table, which SQLite keeps in a separate file that
+ * takes no lock on the library database, and copied into the destination table in one transaction
+ * once the whole file has been read. A load that fails writes nothing, so it can simply be run
+ * again. Staging does not hold the write lock, so ids can be reserved from the allocator while
+ * the file is being read, and readers and other writers only wait for the final copy.</p>
+ *
+ * <p>Usage: {@code java BulkLoader TABLE FILE [TABLE FILE ...]}, e.g.
+ * {@code java BulkLoader MEDIA media.csv LIBRARY_ITEM items.jsonl}. The format is picked from the
+ * file extension. Supported tables are MEDIA, LIBRARY_ITEM, TRACK and the contributor tables
+ * NARRATOR, AUTHOR, ARTIST, ACTOR, DIRECTOR and DEVELOPER. Column names in the input match the
+ * table's column names. A missing or empty id column gets a newly allocated id from {@link IdAllocator}:
+ * MEDIA ids come from the range of the row's Type_of_Media, contributor ids from the table's sequence.</p>
+ */
+public class BulkLoader {
+
+	/** Rows per executeBatch call. Override with -Dbulk.batch.size=N. */
+	private static final int BATCH_SIZE = Integer.getInteger("bulk.batch.size", 1000);
+
+	/** Rows staged per transaction on the TEMP table. Override with -Dbulk.commit.size=N. */
+	private static final int COMMIT_SIZE = Integer.getInteger("bulk.commit.size", 50000);
+
+	/** Ids reserved from the allocator at a time. */
+	private static final int ID_RESERVATION = 10000;
+
+	/** Rows between progress lines. */
+	private static final int REPORT_EVERY = 100000;
+
+	private static final Map<String, Column[]> TABLES = new HashMap<String, Column[]>();
+	static {
+		TABLES.put("MEDIA", new Column[] {
+				new Column("Media_Id", Types.INTEGER), new Column("Name", Types.VARCHAR),
+				new Column("Genre", Types.VARCHAR), new Column("Year", Types.INTEGER),
+				new Column("Length", Types.INTEGER), new Column("Type_of_Media", Types.VARCHAR)});
+		TABLES.put("LIBRARY_ITEM", new Column[] {
+				new Column("Item_Id", Types.INTEGER), new Column("Media_Id", Types.INTEGER),
+				new Column("Is_Digital", Types.BOOLEAN)});
+		TABLES.put("TRACK", new Column[] {
+				new Column("Title", Types.VARCHAR), new Column("Track_Num", Types.INTEGER),
+				new Column("Album_Id", Types.INTEGER), new Column("Length_Seconds", Types.INTEGER),
+				new Column("Year", Types.INTEGER)});
+		String[][] contributors = {
+				{"NARRATOR", "Narrator_Id"}, {"AUTHOR", "Author_Id"}, {"ARTIST", "Artist_Id"},
+				{"ACTOR", "Actor_Id"}, {"DIRECTOR", "Director_Id"}, {"DEVELOPER", "Developer_Id"}};
+		for (String[] contributor : contributors) {
+			TABLES.put(contributor[0], new Column[] {
+					new Column("Name", Types.VARCHAR), new Column(contributor[1], Types.INTEGER)});
+		}
+	}
+
+	private final Connection conn;
+	private final IdAllocator ids;
+	private final Map<String, IdAllocator.Block> idBlocks = new HashMap<String, IdAllocator.Block>();
+
+	/**
+	 * @param conn the connection rows are written on; it is switched out of auto-commit while loading
+	 * @param ids the allocator new ids are reserved from
+	 */
+	public BulkLoader(Connection conn, IdAllocator ids) {
+		this.conn = conn;
+		this.ids = ids;
+	}
+
+	/**
+	 * Loads one file into one table.
+	 *
+	 * @param table the destination table
+	 * @param fileName a .csv or .jsonl file
+	 * @return the number of rows inserted
+	 */
+	public long load(String table, String fileName) throws SQLException, IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(fileName), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			RecordReader records = fileName.toLowerCase().endsWith(".jsonl")
+					? new JsonlReader(in) : new CsvReader(in);
+			return load(table, records);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Stages every record using batched statements, then copies them into the table in one transaction.
+	 *
+	 * @param table the destination table
+	 * @param records the source of rows
+	 * @return the number of rows inserted
+	 */
+	public long load(String table, RecordReader records) throws SQLException, IOException {
+		table = table.toUpperCase();
+		Column[] columns = TABLES.get(table);
+		if (columns == null) {
+			throw new IllegalArgumentException("Bulk loading is not supported for table " + table);
+		}
+		StringBuilder names = new StringBuilder();
+		StringBuilder marks = new StringBuilder();
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				names.append(", ");
+				marks.append(", ");
+			}
+			names.append(columns[i].name);
+			marks.append('?');
+		}
+		// Same columns and affinities as the table, no constraints; those are checked by the copy.
+		String staging = "temp.BULK_" + table;
+		Statement ddl = conn.createStatement();
+		try {
+			ddl.execute("CREATE TEMP TABLE IF NOT EXISTS BULK_" + table + " AS SELECT " + names + " FROM main." + table + " WHERE 0;");
+			ddl.execute("DELETE FROM " + staging + ";");
+		} finally {
+			ddl.close();
+		}
+		String stage = "INSERT INTO " + staging + " (" + names + ") VALUES (" + marks + ");";
+		String copy = "INSERT INTO main." + table + " (" + names + ") SELECT " + names + " FROM " + staging + " ORDER BY rowid;";
+
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		long rows = 0;
+		long start = System.nanoTime();
+		try {
+			PreparedStatement stmt = StatementCache.prepare(conn, stage);
+			Map<String, String> record;
+			while ((record = records.next()) != null) {
+				int generatedId = needsId(columns, record) ? allocate(table, record) : -1;
+				bind(stmt, columns, record, generatedId);
+				stmt.addBatch();
+				rows++;
+				if (rows % BATCH_SIZE == 0) {
+					stmt.executeBatch();
+				}
+				if (rows % COMMIT_SIZE == 0) {
+					conn.commit();
+				}
+				if (rows % REPORT_EVERY == 0) {
+					report(table, rows, start);
+				}
+			}
+			stmt.executeBatch();
+			conn.commit();
+			StatementCache.prepare(conn, copy).executeUpdate();
+			conn.commit();
+		} catch (SQLException e) {
+			conn.rollback();
+			throw new SQLException("Bulk load of " + table + " failed after " + rows + " rows, nothing was loaded: " + e.getMessage(), e);
+		} finally {
+			conn.setAutoCommit(autoCommit);
+			clear(staging);
+			giveBackIds();
+			ResultCache.invalidate(table);
+		}
+		report(table, rows, start);
+		return rows;
+	}
+
+	/**
+	 * Returns the position of the column that gets an allocated id when it is missing:
+	 * Media_Id for MEDIA and X_Id for the contributor tables, which are (Name, X_Id).
+	 * LIBRARY_ITEM rows without an Item_Id are numbered by SQLite, so it has none.
+	 */
+	private static int allocatedColumn(Column[] columns) {
+		if (columns[0].name.equals("Media_Id")) {
+			return 0;
+		}
+		return columns.length == 2 ? 1 : -1;
+	}
+
+	private static boolean needsId(Column[] columns, Map<String, String> record) {
+		int column = allocatedColumn(columns);
+		if (column == -1) {
+			return false;
+		}
+		String id = record.get(columns[column].name);
+		return id == null || id.isEmpty();
+	}
+
+	private int allocate(String table, Map<String, String> record) throws SQLException {
+		String sequence = table.equals("MEDIA") ? IdAllocator.mediaSequence(record.get("Type_of_Media")) : table;
+		IdAllocator.Block block = idBlocks.get(sequence);
+		int id = block == null ? -1 : block.next();
+		if (id == -1) {
+			block = ids.reserve(sequence, ID_RESERVATION);
+			idBlocks.put(sequence, block);
+			id = block.next();
+		}
+		return id;
+	}
+
+	/**
+	 * Empties the staging table, keeping it and the statements prepared against it for the next load.
+	 */
+	private void clear(String staging) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("DELETE FROM " + staging + ";");
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void giveBackIds() throws SQLException {
+		for (Map.Entry<String, IdAllocator.Block> entry : idBlocks.entrySet()) {
+			ids.giveBack(entry.getKey(), entry.getValue());
+		}
+		idBlocks.clear();
+	}
+
+	private static void bind(PreparedStatement stmt, Column[] columns, Map<String, String> record, int generatedId) throws SQLException {
+		int allocated = allocatedColumn(columns);
+		for (int i = 0; i < columns.length; i++) {
+			Column column = columns[i];
+			String value = record.get(column.name);
+			if (value == null || value.isEmpty()) {
+				if (i == allocated && generatedId != -1) {
+					stmt.setInt(i + 1, generatedId);
+				} else {
+					stmt.setNull(i + 1, column.type);
+				}
+				continue;
+			}
+			switch (column.type) {
+				case Types.INTEGER:
+					stmt.setInt(i + 1, Integer.parseInt(value.trim()));
+					break;
+				case Types.BOOLEAN:
+					String v = value.trim();
+					stmt.setInt(i + 1, v.equals("1") || v.equalsIgnoreCase("true") ? 1 : 0);
+					break;
+				default:
+					stmt.setString(i + 1, value);
+			}
+		}
+	}
+
+	private static void report(String table, long rows, long startNanos) {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		long rate = seconds > 0 ? (long) (rows / seconds) : rows;
+		System.out.println(table + ": " + rows + " rows in " + String.format("%.2f", seconds) + " s (" + rate + " rows/sec)");
+	}
+
+	private static class Column {
+		final String name;
+		final int type;
+
+		Column(String name, int type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * A source of records, each a map from column name to its text value.
+	 */
+	public interface RecordReader {
+		/**
+		 * @return the next record, or null at the end of the input
+		 */
+		Map<String, String> next() throws IOException;
+	}
+
+	/**
+	 * Reads CSV with a header row. Quoted fields may contain commas, doubled quotes and line breaks.
+	 */
+	public static class CsvReader implements RecordReader {
+		private final BufferedReader in;
+		private final String[] header;
+
+		public CsvReader(BufferedReader in) throws IOException {
+			this.in = in;
+			List<String> names = readFields();
+			if (names == null) {
+				throw new IOException("CSV input has no header row");
+			}
+			header = names.toArray(new String[0]);
+			for (int i = 0; i < header.length; i++) {
+				header[i] = header[i].trim();
+			}
+		}
+
+		@Override
+		public Map<String, String> next() throws IOException {
+			List<String> fields;
+			do {
+				fields = readFields();
+				if (fields == null) {
+					return null;
+				}
+			} while (fields.size() == 1 && fields.get(0).isEmpty());
+			Map<String, String> record = new HashMap<String, String>();
+			for (int i = 0; i < header.length && i < fields.size(); i++) {
+				record.put(header[i], fields.get(i));
+			}
+			return record;
+		}
+
+		private List<String> readFields() throws IOException {
+			String line = in.readLine();
+			if (line == null) {
+				return null;
+			}
+			List<String> fields = new ArrayList<String>();
+			StringBuilder field = new StringBuilder();
+			boolean quoted = false;
+			int i = 0;
+			while (true) {
+				if (i == line.length()) {
+					if (quoted) {
+						String more = in.readLine();
+						if (more == null) {
+							throw new IOException("Unterminated quoted CSV field");
+						}
+						field.append('\n');
+						line = more;
+						i = 0;
+						continue;
+					}
+					fields.add(field.toString());
+					return fields;
+				}
+				char c = line.charAt(i++);
+				if (quoted) {
+					if (c == '"') {
+						if (i < line.length() && line.charAt(i) == '"') {
+							field.append('"');
+							i++;
+						} else {
+							quoted = false;
+						}
+					} else {
+						field.append(c);
+					}
+				} else if (c == '"') {
+					quoted = true;
+				} else if (c == ',') {
+					fields.add(field.toString());
+					field.setLength(0);
+				} else {
+					field.append(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads one flat JSON object per line. Values may be strings, numbers, booleans or null.
+	 */
+	public static class JsonlReader implements RecordReader {
+		private final BufferedReader in;
+		private String line;
+		private int pos;
+
+		public JsonlReader(BufferedReader in) {
+			this.in = in;
+		}
+
+		@Override
+		public Map<String, String> next() throws IOException {
+			do {
+				line = in.readLine();
+				if (line == null) {
+					return null;
+				}
+				line = line.trim();
+			} while (line.isEmpty());
+			pos = 0;
+			Map<String, String> record = new LinkedHashMap<String, String>();
+			expect('{');
+			skipSpace();
+			if (peek() == '}') {
+				return record;
+			}
+			while (true) {
+				skipSpace();
+				String key = readString();
+				skipSpace();
+				expect(':');
+				skipSpace();
+				record.put(key, readValue());
+				skipSpace();
+				char c = line.charAt(pos++);
+				if (c == '}') {
+					return record;
+				}
+				if (c != ',') {
+					throw new IOException("Expected ',' or '}' in JSON line: " + line);
+				}
+			}
+		}
+
+		private String readValue() throws IOException {
+			char c = peek();
+			if (c == '"') {
+				return readString();
+			}
+			int start = pos;
+			while (pos < line.length() && ",} \t".indexOf(line.charAt(pos)) < 0) {
+				pos++;
+			}
+			String value = line.substring(start, pos);
+			return value.equals("null") ? null : value;
+		}
+
+		private String readString() throws IOException {
+			expect('"');
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				if (pos >= line.length()) {
+					throw new IOException("Unterminated JSON string: " + line);
+				}
+				char c = line.charAt(pos++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				char e = line.charAt(pos++);
+				switch (e) {
+					case 'n': sb.append('\n'); break;
+					case 't': sb.append('\t'); break;
+					case 'r': sb.append('\r'); break;
+					case 'b': sb.append('\b'); break;
+					case 'f': sb.append('\f'); break;
+					case 'u':
+						sb.append((char) Integer.parseInt(line.substring(pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default: sb.append(e);
+				}
+			}
+		}
+
+		private char peek() throws IOException {
+			if (pos >= line.length()) {
+				throw new IOException("Unexpected end of JSON line: " + line);
+			}
+			return line.charAt(pos);
+		}
+
+		private void expect(char c) throws IOException {
+			if (peek() != c) {
+				throw new IOException("Expected '" + c + "' in JSON line: " + line);
+			}
+			pos++;
+		}
+
+		private void skipSpace() {
+			while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+				pos++;
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0 || args.length % 2 != 0) {
+			System.out.println("Usage: java BulkLoader TABLE FILE [TABLE FILE ...]");
+			return;
+		}
+		// One connection to load on; the id allocator reserves through a writer of its own.
+		ConnectionPool pool = new ConnectionPool(CSE3241app.DATABASE, 1);
+		WriteQueue writer = null;
+		Connection conn = null;
+		try {
+			SchemaMigrator.migrate(pool);
+			writer = new WriteQueue(CSE3241app.DATABASE);
+			conn = pool.borrow();
+			BulkLoader loader = new BulkLoader(conn, new IdAllocator(writer));
+			for (int i = 0; i < args.length; i += 2) {
+				loader.load(args[i], args[i + 1]);
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		} finally {
+			pool.release(conn);
+			if (writer != null) {
+				writer.close();
+			}
+			pool.close();
+		}
+	}
+}
@@ -1,7 +1,11 @@
+import java.io.IOException;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.function.BiConsumer;
 
 /**
  * <h1>CSE3241 Introduction to Database Systems - Sample Java application.</h1>
@@ -60,18 +64,63 @@ public class CSE3241app {
 	 *  Make sure the database file is in the root folder of the project if you only provide the name and extension.
 	 *  
 	 *  Otherwise, you will need to provide an absolute path from your C: drive or a relative path from the folder this class is in.
+	 *
+	 *  Override with -Ddatabase=PATH, e.g. to run against a database made by SyntheticLibrary.
 	 */
-	private static String DATABASE = "Library_Database.db";
+	static String DATABASE = System.getProperty("database", "Library_Database.db");
+
+	static final int MAX_AUDIOBOOK_ID = 999;
+	static final int MAX_MOVIE_ID = 1999;
+	static final int MAX_GAME_ID = 2999;
+	static final int MAX_ALBUM_ID = 3999;
+
+	static final int MIN_AUDIOBOOK_ID = 0;
+	static final int MIN_MOVIE_ID = 1000;
+	static final int MIN_GAME_ID = 2000;
+	static final int MIN_ALBUM_ID = 3000;
+
+	/**
+	 *  The number of connections kept open by the pool. Override with -Dpool.size=N.
+	 */
+	private static final int POOL_SIZE = Integer.getInteger("pool.size", 4);
+
+	static final String TRACKS_BEFORE_YEAR_SQL = "SELECT Name, Title " +
+			"FROM FEATURES, TRACK, ARTIST " +
+			"WHERE FEATURES.Artist_Id=ARTIST.Artist_Id AND ARTIST.Name=? AND FEATURES.Track_Title=TRACK.Title AND TRACK.Year<?;";
 
-	private static final int MAX_AUDIOBOOK_ID = 999;
-	private static final int MAX_MOVIE_ID = 1999;
-	private static final int MAX_GAME_ID = 2999;
-	private static final int MAX_ALBUM_ID = 3999;
+	static final String ALBUM_COPIES_SQL = "SELECT M.Media_ID, Name, COUNT(L.Media_Id) as Count\n" +
+			"FROM MEDIA AS M, LIBRARY_ITEM AS L\n" +
+			"WHERE L.Media_Id=M.Media_Id AND M.Type_of_Media='Album'\n" +
+			"GROUP BY L.Media_Id\n" +
+			"HAVING Count < ?;\n";
 
-	private static final int MIN_AUDIOBOOK_ID = 0;
-	private static final int MIN_MOVIE_ID = 1000;
-	private static final int MIN_GAME_ID = 2000;
-	private static final int MIN_ALBUM_ID = 3000;
+	static final String ALBUMS_CHECKED_OUT_SQL = "SELECT P.First_Name, P.Card_Id, COUNT(L.Media_ID) as totalAlbumsCheckedOut\n" +
+			"FROM CHECK_OUT AS C, PATRON AS P, MEDIA AS M, LIBRARY_ITEM AS L\n" +
+			"WHERE P.Card_ID = C.Card_ID AND C.Item_Id=L.Item_Id AND L.Media_ID = M.Media_ID AND M.Type_Of_Media = 'Album' AND C.Card_Id = ?;\n";
+
+	static final String GAMES_CHECKED_OUT_SQL = "SELECT P.First_Name, P.Card_Id, COUNT(M.Media_ID) as totalGames\n" +
+			"FROM CHECK_OUT AS C, PATRON AS P, MEDIA AS M, LIBRARY_ITEM AS L\n" +
+			"WHERE P.Card_ID = C.Card_ID AND M.Media_Id = L.Media_Id AND L.Item_id = C.Item_Id AND M.Type_Of_Media = 'Game' AND P.Card_Id = ?;\n";
+
+	static final String LONGEST_AUDIOBOOK_SQL = "SELECT M.Name, A.Name AS Author, Length AS Length_in_mins\n" +
+			"FROM AUTHOR AS A, AUTHORS, MEDIA AS M\n" +
+			"WHERE A.Author_Id = AUTHORS.Author_Id AND M.Type_of_Media = 'Audiobook' AND M.Media_Id = AUTHORS.Audiobook_Id\n" +
+			"ORDER BY LENGTH DESC\n" +
+			"LIMIT 1;\n";
+
+	static final String DIGITAL_ALBUM_COPIES_SQL = "SELECT M.Name AS Media_Name, A.Name AS Artist_Name, COUNT(L.Is_Digital) AS Digital_Copies\n" +
+			"FROM MEDIA AS M, LIBRARY_ITEM AS L, ARTIST AS A, ALBUM AS AL\n" +
+			"WHERE M.Media_Id = L.Media_Id AND A.Artist_Id = AL.Artist_Id AND AL.Album_Id = M.Media_Id AND Type_of_Media = 'Album' AND L.Is_Digital=1\n" +
+			"GROUP BY A.Name;\n";
+
+	static final String ACTORS_SQL = "SELECT * FROM ACTOR;";
+
+	private static ConnectionPool pool;
+	private static IdAllocator idAllocator;
+	private static WriteQueue writer;
+	private static CirculationService circulation;
+	private static ChangeLog changeLog;
+	private static Recommendations recommendations;
 
     /**
      * Connects to the database if it exists, creates it if it does not, and returns the connection object.
@@ -117,25 +166,27 @@ public class CSE3241app {
 		System.out.println("Enter a year(must be a number): ");
 		int year = read.nextInt();
 		read.nextLine();//clear input buffer
-		String sqlStatement = "SELECT Name, Title " +
-				"FROM FEATURES, TRACK, ARTIST " +
-				"WHERE FEATURES.Artist_Id=ARTIST.Artist_Id AND ARTIST.Name=? AND FEATURES.Track_Title=TRACK.Title AND TRACK.Year<?;";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			stmt.setString(1, artistName);
-			stmt.setInt(2, year);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getTracksBeforeYear(conn, artistName, year, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * Queries the tracks released by an artist before a year
+	 * @param conn a connection object
+	 * @param artistName the artist's exact name
+	 * @param year tracks released before this year are listed
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getTracksBeforeYear(Connection conn, String artistName, int year, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "tracks-before", artistName, year);
+	}
+
 	/**
 	 * List all the albums and their unique identifiers with less than n copies held by the library.
 	 * @param conn a connection object
@@ -146,26 +197,26 @@ public class CSE3241app {
 		System.out.print("Enter n: ");
 		int n = read.nextInt();
 		read.nextLine(); //clear input buffer
-		String sqlStatement = "SELECT M.Media_ID, Name, COUNT(L.Media_Id) as Count\n" +
-				"FROM MEDIA AS M, LIBRARY_ITEM AS L\n" +
-				"WHERE L.Media_Id=M.Media_Id AND M.Type_of_Media='Album'\n" +
-				"GROUP BY L.Media_Id\n" +
-				"HAVING Count < ?;\n";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			stmt.setInt(1, n);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getAlbumCopies(conn, n, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * List all the albums and their unique identifiers with less than n copies held by the library.
+	 * @param conn a connection object
+	 * @param n albums with fewer copies than this are listed
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getAlbumCopies(Connection conn, int n, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "album-copies", n);
+	}
+
 	/**
 	 * Get albums checked out by patron
 	 * @param conn a connection object
@@ -175,21 +226,77 @@ public class CSE3241app {
 		System.out.print("Enter patron's card id: ");
 		int n = read.nextInt();
 		read.nextLine(); //clear input buffer
-		String sqlStatement = "SELECT P.First_Name, P.Card_Id, COUNT(L.Media_ID) as totalAlbumsCheckedOut\n" +
-				"FROM CHECK_OUT AS C, PATRON AS P, MEDIA AS M, LIBRARY_ITEM AS L\n" +
-				"WHERE P.Card_ID = C.Card_ID AND C.Item_Id=L.Item_Id AND L.Media_ID = M.Media_ID AND M.Type_Of_Media = 'Album' AND C.Card_Id = ?;\n";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			stmt.setInt(1, n);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getNumOfAlbumsCheckedOutByPatron(conn, n, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Get albums checked out by patron
+	 * @param conn a connection object
+	 * @param cardId the patron's card id
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getNumOfAlbumsCheckedOutByPatron(Connection conn, int cardId, ResultWriter out) throws SQLException, IOException {
+		PreparedStatement stmt = StatementCache.prepare(conn, ALBUMS_CHECKED_OUT_SQL);
+		stmt.setInt(1, cardId);
+		return writeQuery(stmt, out);
+	}
+
+	/**
+	 * Check an item out to a patron
+	 * @param conn a connection object
+	 * @param read scanner object to get user input
+	 */
+	public static void checkoutItem(Connection conn, Scanner read) throws SQLException {
+		System.out.print("Enter patron's card id: ");
+		int cardId = read.nextInt();
+		System.out.print("Enter item id: ");
+		int itemId = read.nextInt();
+		read.nextLine(); //clear input buffer
+		try {
+			System.out.println("Due back " + WriteQueue.await(circulation().checkout(cardId, itemId)));
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Return a checked out item
+	 * @param conn a connection object
+	 * @param read scanner object to get user input
+	 */
+	public static void returnItem(Connection conn, Scanner read) throws SQLException {
+		System.out.print("Enter item id: ");
+		int itemId = read.nextInt();
+		read.nextLine(); //clear input buffer
+		try {
+			System.out.println("Returned; it was due back " + WriteQueue.await(circulation().returnItem(itemId)));
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Show a patron's items out per type of media, overdue items and late fees
+	 * @param conn a connection object
+	 * @param read scanner object to get user input
+	 */
+	public static void getPatronSummary(Connection conn, Scanner read) throws SQLException {
+		System.out.print("Enter patron's card id: ");
+		int n = read.nextInt();
+		read.nextLine(); //clear input buffer
+		try {
+			PatronSummary.write(conn, n, ResultWriter.standard());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
@@ -202,70 +309,91 @@ public class CSE3241app {
 		System.out.print("Enter patron's card id: ");
 		int n = read.nextInt();
 		read.nextLine(); //clear input buffer
-		String sqlStatement = "SELECT P.First_Name, P.Card_Id, COUNT(M.Media_ID) as totalGames\n" +
-				"FROM CHECK_OUT AS C, PATRON AS P, MEDIA AS M, LIBRARY_ITEM AS L\n" +
-				"WHERE P.Card_ID = C.Card_ID AND M.Media_Id = L.Media_Id AND L.Item_id = C.Item_Id AND M.Type_Of_Media = 'Game' AND P.Card_Id = ?;\n";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			stmt.setInt(1, n);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getNumOfGamesCheckedOutByPatron(conn, n, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * Get games checked out by patron
+	 * @param conn a connection object
+	 * @param cardId the patron's card id
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getNumOfGamesCheckedOutByPatron(Connection conn, int cardId, ResultWriter out) throws SQLException, IOException {
+		PreparedStatement stmt = StatementCache.prepare(conn, GAMES_CHECKED_OUT_SQL);
+		stmt.setInt(1, cardId);
+		return writeQuery(stmt, out);
+	}
+
 	/**
 	 * Displays the longest audiobook in the database along with its name and author.
 	 * @param conn a connection object
 	 */
 	public static void getLongestAudiobook(Connection conn) throws SQLException {
-		String sqlStatement = "SELECT M.Name, A.Name AS Author, Length AS Length_in_mins\n" +
-				"FROM AUTHOR AS A, AUTHORS, MEDIA AS M\n" +
-				"WHERE A.Author_Id = AUTHORS.Author_Id AND M.Type_of_Media = 'Audiobook' AND M.Media_Id = AUTHORS.Audiobook_Id\n" +
-				"ORDER BY LENGTH DESC\n" +
-				"LIMIT 1;\n";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getLongestAudiobook(conn, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
+	/**
+	 * Displays the longest audiobook in the database along with its name and author.
+	 * @param conn a connection object
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getLongestAudiobook(Connection conn, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "longest-audiobook");
+	}
+
 	/**
 	 * Retrieve the number of digital copies of every album in the library, along with the album and artist name.
 	 * @param conn a connection object
 	 */
 	public static void getNumOfDigitalAlbumsCopies(Connection conn) throws SQLException {
-		String sqlStatement = "SELECT M.Name AS Media_Name, A.Name AS Artist_Name, COUNT(L.Is_Digital) AS Digital_Copies\n" +
-				"FROM MEDIA AS M, LIBRARY_ITEM AS L, ARTIST AS A, ALBUM AS AL\n" +
-				"WHERE M.Media_Id = L.Media_Id AND A.Artist_Id = AL.Artist_Id AND AL.Album_Id = M.Media_Id AND Type_of_Media = 'Album' AND L.Is_Digital=1\n" +
-				"GROUP BY A.Name;\n";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sqlStatement);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getNumOfDigitalAlbumsCopies(conn, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Retrieve the number of digital copies of every album in the library, along with the album and artist name.
+	 * @param conn a connection object
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getNumOfDigitalAlbumsCopies(Connection conn, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "digital-album-copies");
+	}
+
+	/**
+	 * Runs a bound query and writes its rows.
+	 * @param stmt a statement from the StatementCache with its parameters set; it is not closed
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	static long writeQuery(PreparedStatement stmt, ResultWriter out) throws SQLException, IOException {
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return out.write(rs);
 		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+			rs.close();
 		}
 	}
+
 	/**
 	 * Get all of the Ids and names in a table by passing a ResultSet(Narrator, Author, Director, etc...)
 	 * @param rs a ResultSet object on a query that returns all names from a table
@@ -287,7 +415,8 @@ public class CSE3241app {
 
 	/**
 	 * NOTE: NOT AN AUTHOR, PERTAINS TO "AUTHORS" TABLE
-	 * Insert a new authors row into the database
+	 * Insert a new authors row into the database. Runs inside a writer mutation, so it has no effects
+	 * outside the transaction; the writer drops cached results once it commits.
 	 * @param conn a connection object
 	 * @param audiobookId
 	 * @param authorId
@@ -296,22 +425,14 @@ public class CSE3241app {
 	public static void insertAuthors(Connection conn, int audiobookId, int authorId) throws SQLException {
 		String query = "INSERT INTO AUTHORS " +
 				" VALUES (?, ?);";
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn.prepareStatement(query);
-			stmt.setInt(1, audiobookId);
-			stmt.setInt(2, authorId);
-			stmt.executeUpdate();
-			System.out.println("Successfully added to AUTHORS table");
-
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		} finally {
-			if(stmt != null) {stmt.close();}
-		}
+		PreparedStatement stmt = StatementCache.prepare(conn, query);
+		stmt.setInt(1, audiobookId);
+		stmt.setInt(2, authorId);
+		stmt.executeUpdate();
 	}
 	/**
-	 * Insert a new narrator into the database
+	 * Insert a new narrator into the database. Runs inside a writer mutation, so it has no effects
+	 * outside the transaction; the caller adds the contributor to the {@link ContributorDirectory} once it commits.
 	 * @param conn a connection object
 	 * @param tableName name of table
 	 * @param name name of contributor
@@ -320,19 +441,10 @@ public class CSE3241app {
 	public static void insertContributor(Connection conn, String tableName, String name, int Id) throws SQLException {
 		String query = "INSERT INTO " + tableName +
 				" VALUES (?, ?);";
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn.prepareStatement(query);
-			stmt.setString(1, name);
-			stmt.setInt(2, Id);
-			stmt.executeUpdate();
-			System.out.println("Successfully added contributor");
-
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		} finally {
-			if(stmt != null) {stmt.close();}
-		}
+		PreparedStatement stmt = StatementCache.prepare(conn, query);
+		stmt.setString(1, name);
+		stmt.setInt(2, Id);
+		stmt.executeUpdate();
 	}
 
 	/**
@@ -341,58 +453,9 @@ public class CSE3241app {
 	 * @param read scanner object to get user input
 	 */
 	public static void insertAudiobook(Connection conn, Scanner read) throws SQLException {
-		conn.setAutoCommit(false);
-		String query = "SELECT MAX(Audiobook_Id) " +
-				"FROM AUDIOBOOK;";
-		ResultSet rs = sqlQuery(conn, query);
-		int id;
-		if (rs.next()) {
-			id = rs.getInt(1) + 1;
-			if (id > MAX_AUDIOBOOK_ID) {
-				System.out.println("Too many audiobooks!");
-				return;
-			}
-		} else {
-			id = MIN_AUDIOBOOK_ID;
-		}
-		rs.close();
-
-		//list current narrators
-		//save current narrators in a list
-		query = "SELECT Narrator_Id, Name " +
-				"FROM NARRATOR;";
-		rs = sqlQuery(conn, query);
-		List<Contributor> narrators = getIdAndNames(rs);
-		rs.close();
-
 		//ask which narrator to select
 		System.out.print("Enter the name of the narrator for the audiobook : ");
 		String narratorName = read.nextLine();
-		int narratorId=-1;
-		//check if narrator already exists, if not, insert narrator
-		//save narratorId
-		for (Contributor narrator : narrators) {
-			if (narrator.name.equals(narratorName)) {
-				System.out.println("Wonderful, the narrator already exists in the database");
-				narratorId = narrator.Id;
-				break;
-			}
-		}
-		if(narratorId==-1){//add narrator and save Id
-			//get narrator Id
-			query = "SELECT MAX(Narrator_Id) " +
-					"FROM NARRATOR;";
-			ResultSet maxSet = sqlQuery(conn, query);
-			if (maxSet.next()) {
-				narratorId = maxSet.getInt(1) + 1;
-			} else {
-				narratorId = 0;
-			}
-			maxSet.close();
-			//add narrator
-			insertContributor(conn, "NARRATOR", narratorName, narratorId);
-		}
-
 
 		//get values for MEDIA entry
 		System.out.println("Enter the following information for the audiobook:");
@@ -407,112 +470,157 @@ public class CSE3241app {
 		int length = read.nextInt();
 		read.nextLine();
 
-		//create media entry, then audiobook entry(using narrator they provide)
-		query = "INSERT INTO MEDIA " +
-				"VALUES (?, ?, ?, ?, ?, ?);";
-		PreparedStatement stmt = null;
-		try {
-			stmt = conn.prepareStatement(query);
-			stmt.setInt(1, id);
-			stmt.setString(2, name);
-			stmt.setString(3, genre);
-			stmt.setInt(4, year);
-			stmt.setInt(5, length);
-			stmt.setString(6, "Audiobook");
-			stmt.executeUpdate();
+		//ask them to select which authors contributed to the audiobook
+		System.out.print("How many authors does this book have? Enter an integer: ");
+		int numAuthors = read.nextInt();
+		read.nextLine();
+		List<String> authorNames = new ArrayList<String>();
+		for(int i=0; i<numAuthors; i++) {
+			System.out.print("Enter the name of an author that contributed to the book, make sure not to repeat authors: ");
+			authorNames.add(read.nextLine());
+		}
 
+		try {
+			Audiobook book = addAudiobook(conn, narratorName, name, genre, year, length, authorNames);
+			System.out.println(book.newNarrator ? "Successfully added contributor"
+					: "Wonderful, the narrator already exists in the database");
+			for (int i = 0; i < book.authorIds.length; i++) {
+				System.out.println(book.newAuthors[i] ? "Successfully added contributor"
+						: "Wonderful, the author already exists in the database");
+				System.out.println("Successfully added to AUTHORS table");
+			}
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(stmt != null) {stmt.close();}
 		}
+	}
 
-		query = "INSERT INTO AUDIOBOOK " +
-				"VALUES (?, ?);";
-		stmt = null;
-				try {
-			stmt = conn.prepareStatement(query);
-			stmt.setInt(1, id);
-			stmt.setInt(2, narratorId);
-			stmt.executeUpdate();
+	/**
+	 * Insert a new audiobook into the database in one transaction, adding its narrator and authors if they are new.
+	 * See {@link #addAudiobook}.
+	 * @return the Media_Id of the new audiobook
+	 */
+	public static int insertAudiobook(Connection conn, String narratorName, String name, String genre,
+			int year, int length, List<String> authorNames) throws SQLException {
+		return addAudiobook(conn, narratorName, name, genre, year, length, authorNames).audiobookId;
+	}
 
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		} finally {
-			if(stmt != null) {stmt.close();}
+	/**
+	 * Insert a new audiobook into the database in one transaction, adding its narrator and authors if they are new.
+	 * Ids cannot be reserved from inside the transaction, so the audiobook's id, and a spare id for every name
+	 * the {@link ContributorDirectory} does not know, are allocated before it starts. The names are looked up
+	 * again on the {@link #writer()}'s connection, inside the transaction, so concurrent inserts naming the same
+	 * new contributor add it once; a spare id that is not needed is left unused. If any insert fails nothing
+	 * is written. New contributors are added to the directory once the inserts commit. Nothing is printed.
+	 * @param conn a connection object
+	 * @param narratorName name of the narrator
+	 * @param name title of the audiobook
+	 * @param genre genre of the audiobook
+	 * @param year year the audiobook was released
+	 * @param length length in minutes
+	 * @param authorNames names of the authors, without repeats
+	 * @return the new audiobook's ids and which of its contributors were new
+	 */
+	public static Audiobook addAudiobook(Connection conn, final String narratorName, final String name, final String genre,
+			final int year, final int length, final List<String> authorNames) throws SQLException {
+		IdAllocator ids = idAllocator();
+		final Audiobook book = new Audiobook();
+		book.audiobookId = ids.nextId("AUDIOBOOK");
+
+		//allocate a spare id for each name the directory does not know
+		final int spareNarratorId = ContributorDirectory.findId(conn, "NARRATOR", narratorName) == -1
+				? ids.nextId("NARRATOR") : -1;
+		final Map<String, Integer> spareAuthorIds = new HashMap<String, Integer>();
+		for (String authorName : authorNames) {
+			if (!spareAuthorIds.containsKey(authorName) && ContributorDirectory.findId(conn, "AUTHOR", authorName) == -1) {
+				spareAuthorIds.put(authorName, ids.nextId("AUTHOR"));
+			}
 		}
 
+		WriteQueue.await(writer().submit(new WriteQueue.Mutation<Void>() {
+			@Override
+			public Void apply(Connection writerConn) throws SQLException {
+				//check if narrator already exists, if not, add it under its spare id
+				book.narratorId = ContributorDirectory.findInTransaction(writerConn, "NARRATOR", narratorName);
+				book.newNarrator = book.narratorId == -1;
+				if (book.newNarrator) {
+					book.narratorId = spareId(spareNarratorId, narratorName);
+					insertContributor(writerConn, "NARRATOR", narratorName, book.narratorId);
+				}
 
-		//ask them to select which authors contributed to the audiobook
-		System.out.print("How many authors does this book have? Enter an integer: ");
-		int numAuthors = read.nextInt();
-		read.nextLine();
-		String authorName;
-		//save current authors in a list
-		query = "SELECT Author_Id, Name " +
-				"FROM AUTHOR;";
-		rs = sqlQuery(conn, query);
-		List<Contributor> authors = getIdAndNames(rs);
-		rs.close();
-		int authorId;
-		for(int i=0; i<numAuthors; i++) {
-			System.out.print("Enter the name of an author that contributed to the book, make sure not to repeat authors: ");
-			authorName = read.nextLine();
-			authorId=-1;
-			//check if author already exists, if not, insert author
-			//save authorId
-			for (Contributor author : authors) {
-				if (author.name.equals(authorName)) {
-					System.out.println("Wonderful, the author already exists in the database");
-					authorId = author.Id;
-					break;
+				//create media entry, then audiobook entry(using narrator they provide)
+				PreparedStatement stmt = StatementCache.prepare(writerConn, "INSERT INTO MEDIA " +
+						"VALUES (?, ?, ?, ?, ?, ?);");
+				stmt.setInt(1, book.audiobookId);
+				stmt.setString(2, name);
+				stmt.setString(3, genre);
+				stmt.setInt(4, year);
+				stmt.setInt(5, length);
+				stmt.setString(6, "Audiobook");
+				stmt.executeUpdate();
+
+				stmt = StatementCache.prepare(writerConn, "INSERT INTO AUDIOBOOK " +
+						"VALUES (?, ?);");
+				stmt.setInt(1, book.audiobookId);
+				stmt.setInt(2, book.narratorId);
+				stmt.executeUpdate();
+
+				//check if each author already exists, if not, add it under its spare id, then create authors entries
+				book.authorIds = new int[authorNames.size()];
+				book.newAuthors = new boolean[authorNames.size()];
+				Map<String, Integer> added = new HashMap<String, Integer>();
+				for (int i = 0; i < book.authorIds.length; i++) {
+					String authorName = authorNames.get(i);
+					if (added.containsKey(authorName)) {
+						book.authorIds[i] = added.get(authorName);
+					} else {
+						book.authorIds[i] = ContributorDirectory.findInTransaction(writerConn, "AUTHOR", authorName);
+						if (book.authorIds[i] == -1) {
+							book.authorIds[i] = spareId(spareAuthorIds.get(authorName), authorName);
+							insertContributor(writerConn, "AUTHOR", authorName, book.authorIds[i]);
+							book.newAuthors[i] = true;
+							added.put(authorName, book.authorIds[i]);
+						}
+					}
+					insertAuthors(writerConn, book.audiobookId, book.authorIds[i]);
 				}
+				return null;
 			}
-			if(authorId==-1){//add author and save Id
-				//get author Id
-				query = "SELECT MAX(Author_Id) " +
-						"FROM AUTHOR;";
-				ResultSet maxSet = sqlQuery(conn, query);
-				if (maxSet.next()) {
-					authorId = maxSet.getInt(1) + 1;
-				} else {
-					authorId = 0; //no authors in db
+		}, "MEDIA", "AUDIOBOOK", "AUTHORS", "AUTHOR", "NARRATOR").whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable failure) {
+				if (failure == null) {
+					ContributorDirectory.add("NARRATOR", narratorName, book.narratorId);
+					for (int i = 0; i < book.authorIds.length; i++) {
+						ContributorDirectory.add("AUTHOR", authorNames.get(i), book.authorIds[i]);
+					}
 				}
-				maxSet.close();
-				//add author
-				insertContributor(conn, "AUTHOR", authorName, authorId);
 			}
-			//create authors entry
-			insertAuthors(conn, id, authorId);
+		}));
+		return book;
+	}
+
+	/**
+	 * Returns the spare id allocated for a contributor the directory did not know.
+	 * A name it did know cannot be missing from the database, since contributors are never deleted by the app.
+	 */
+	private static int spareId(Integer spare, String contributorName) throws SQLException {
+		if (spare == null || spare == -1) {
+			throw new SQLException(contributorName + " was removed while the audiobook was being added");
 		}
-		conn.commit();
-		conn.setAutoCommit(true);
+		return spare;
 	}
 
 	/**
-	 * Takes result set object and prints it
+	 * Takes result set object and prints it with the writer chosen by -Doutput.format / -Doutput.file
 	 * @param rs result set to print
 	 */
 	public static void printResults(ResultSet rs) throws SQLException {
 		try{
-			ResultSetMetaData rsmd = rs.getMetaData();
-			int columnCount = rsmd.getColumnCount();
-			for (int i = 1; i <= columnCount; i++) {
-				String value = rsmd.getColumnName(i);
-				System.out.print(value);
-				if (i < columnCount) System.out.print(",  ");
-			}
-			System.out.print("\n");
-			while (rs.next()) {
-				for (int i = 1; i <= columnCount; i++) {
-					String columnValue = rs.getString(i);
-					System.out.print(columnValue);
-					if (i < columnCount) System.out.print(",  ");
-				}
-				System.out.print("\n");
-			}
+			ResultWriter.standard().write(rs);
 		}catch (SQLException e) {
 			System.out.println(e.getMessage());
+		}catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
@@ -522,23 +630,29 @@ public class CSE3241app {
 	 * @param conn a connection object
 	 */
 	public static void getActors(Connection conn) throws SQLException {
-		String sql = "SELECT * FROM ACTOR;";
-		PreparedStatement stmt = null;
-		ResultSet rs = null;
 		try {
-			stmt = conn.prepareStatement(sql);
-			rs = stmt.executeQuery();
-			printResults(rs);
+			getActors(conn, ResultWriter.standard());
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
-		} finally {
-			if(rs != null) {rs.close();}
-			if(stmt != null) {stmt.close();}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
 	}
 
 	/**
-     * Queries the database and prints the results.
+	 * Writes out the list of actors
+	 *
+	 * @param conn a connection object
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long getActors(Connection conn, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "actors");
+	}
+
+	/**
+     * Queries the database and returns the results.
+     * The statement comes from the connection's StatementCache, so close only the ResultSet.
      * 
      * @param conn a connection object
      * @param sql a SQL statement that returns rows
@@ -547,7 +661,7 @@ public class CSE3241app {
     	PreparedStatement stmt = null;
     	ResultSet rs = null;
         try {
-        	stmt = conn.prepareStatement(sql);
+        	stmt = StatementCache.prepare(conn, sql);
         	rs = stmt.executeQuery();
         } catch (SQLException e) {
 			System.out.println(e.getMessage());
@@ -555,21 +669,117 @@ public class CSE3241app {
         return rs;
     }
 
-    public static void main(String[] args) {
-    	Connection conn = initializeDB(DATABASE);
-    	Scanner userInput = new Scanner(System.in);
-    	System.out.println("\nWelcome to our application. Enter the corresponding integer to the query you want to run. \n");
-    	System.out.println("1. Find the titles of all tracks by ARTIST released before YEAR");
-		System.out.println("2. List all the albums and their unique identifiers with less than N copies held by the library.");
-		System.out.println("3. Select all actors.");
-		System.out.println("4. Get number of albums checked out by a patron.");
-		System.out.println("5. Insert a new audiobook.");
-		System.out.println("6. Get number of games checked out by a patron.");
-		System.out.println("7. Retrieve the number of digital copies of every album in the library, along with the album and artist name.");
-		System.out.println("8. Display the longest audiobook in the database along with its name and author.");
-		System.out.println("Enter the corresponding number: ");
-		int choice = userInput.nextInt();
-		userInput.nextLine();
+    /**
+     * Returns the application's connection pool, creating it and migrating the schema on first use.
+     *
+     * @return the pool for {@link #DATABASE}
+     */
+    static synchronized ConnectionPool pool() {
+    	if (pool == null) {
+    		pool = new ConnectionPool(DATABASE, POOL_SIZE);
+    		QueryMetrics.start();
+    		try {
+    			SchemaMigrator.migrate(pool);
+    		} catch (SQLException e) {
+    			System.out.println(e.getMessage());
+    			System.out.println("There was a problem updating the database schema.");
+    		}
+    	}
+    	return pool;
+    }
+
+    /**
+     * Returns the application's id allocator, creating it on first use.
+     *
+     * @return an allocator reserving ids through {@link #writer()}
+     */
+    static synchronized IdAllocator idAllocator() {
+    	if (idAllocator == null) {
+    		idAllocator = new IdAllocator(writer());
+    	}
+    	return idAllocator;
+    }
+
+    /**
+     * Returns the application's database writer, starting it on first use.
+     *
+     * @return the queue every change to {@link #DATABASE} goes through
+     */
+    static synchronized WriteQueue writer() {
+    	if (writer == null) {
+    		pool();
+    		writer = new WriteQueue(DATABASE);
+    	}
+    	return writer;
+    }
+
+    /**
+     * Returns the application's circulation desk, creating it on first use.
+     *
+     * @return checkouts and returns through {@link #writer()}
+     */
+    static synchronized CirculationService circulation() {
+    	if (circulation == null) {
+    		circulation = new CirculationService(writer());
+    	}
+    	return circulation;
+    }
+
+    /**
+     * Returns the application's change log, creating it on first use.
+     *
+     * @return consumer checkpoints and compaction through {@link #writer()}
+     */
+    static synchronized ChangeLog changeLog() {
+    	if (changeLog == null) {
+    		changeLog = new ChangeLog(writer());
+    	}
+    	return changeLog;
+    }
+
+    /**
+     * Returns the application's recommendation job, creating it on first use.
+     *
+     * @return builds RECOMMENDATION through {@link #writer()}
+     */
+    static synchronized Recommendations recommendations() {
+    	if (recommendations == null) {
+    		recommendations = new Recommendations(writer());
+    	}
+    	return recommendations;
+    }
+
+    /**
+     * Stops the writer and the id allocator and closes the pool.
+     */
+    static synchronized void shutdown() {
+    	if (Boolean.getBoolean("stats")) {
+    		System.out.print(QueryMetrics.get().getReport());
+    		System.out.println(ResultCache.totals());
+    		System.out.println(PatronSummary.totals());
+    		if (writer != null) {
+    			System.out.println(writer.totals());
+    		}
+    	}
+    	// The allocator gives its unused ids back through the writer.
+    	if (idAllocator != null) {
+    		idAllocator.close();
+    	}
+    	if (writer != null) {
+    		writer.close();
+    	}
+    	pool().close();
+    }
+
+    /**
+     * Runs one menu choice on a connection borrowed from the pool.
+     *
+     * @param pool the connection pool
+     * @param choice the menu number the user entered
+     * @param userInput scanner object to get user input
+     */
+    public static void runChoice(ConnectionPool pool, int choice, Scanner userInput) throws SQLException {
+    	Connection conn = pool.borrow();
 		try {
 			switch(choice) {
 				case 1:
@@ -596,12 +806,76 @@ public class CSE3241app {
 				case 8:
 					getLongestAudiobook(conn);
 					break;
+				case 9:
+					checkoutItem(conn, userInput);
+					break;
+				case 10:
+					returnItem(conn, userInput);
+					break;
+				case 11:
+					getPatronSummary(conn, userInput);
+					break;
 				default:
 					System.out.println("Incorrect input");
 			}
-		} catch (SQLException e) {
-			e.getMessage();
+		} finally {
+			pool.release(conn);
 		}
+    }
 
+    /**
+     * Starts the interactive menu, or with {@code --batch [FILE]} runs a script of commands (see {@link BatchRunner}).
+     *
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+    	if (args.length > 0 && args[0].equals("--batch")) {
+    		int failures = 0;
+    		try {
+    			failures = BatchRunner.runScript(pool(), args.length > 1 ? args[1] : null);
+    		} catch (IOException e) {
+    			System.out.println(e.getMessage());
+    			failures = 1;
+    		} finally {
+    			shutdown();
+    		}
+    		System.exit(failures == 0 ? 0 : 1);
+    	}
+    	ConnectionPool pool = pool();
+    	Scanner userInput = new Scanner(System.in);
+    	System.out.println("\nWelcome to our application. Enter the corresponding integer to the query you want to run. \n");
+    	try {
+    		while (true) {
+    			System.out.println("1. Find the titles of all tracks by ARTIST released before YEAR");
+				System.out.println("2. List all the albums and their unique identifiers with less than N copies held by the library.");
+				System.out.println("3. Select all actors.");
+				System.out.println("4. Get number of albums checked out by a patron.");
+				System.out.println("5. Insert a new audiobook.");
+				System.out.println("6. Get number of games checked out by a patron.");
+				System.out.println("7. Retrieve the number of digital copies of every album in the library, along with the album and artist name.");
+				System.out.println("8. Display the longest audiobook in the database along with its name and author.");
+				System.out.println("9. Check an item out to a patron.");
+				System.out.println("10. Return an item.");
+				System.out.println("11. Show a patron's items out, overdue items and late fees.");
+				System.out.println("0. Quit.");
+				System.out.println("Enter the corresponding number: ");
+				if (!userInput.hasNextInt()) {
+					break;
+				}
+				int choice = userInput.nextInt();
+				userInput.nextLine();
+				if (choice == 0) {
+					break;
+				}
+				try {
+					runChoice(pool, choice, userInput);
+				} catch (SQLException e) {
+					System.out.println(e.getMessage());
+				}
+				System.out.println();
+    		}
+    	} finally {
+    		shutdown();
+    	}
 	}
 }
@@ -0,0 +1,523 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Answers the catalog aggregates in memory, with parallel scans over columnar copies of the tables.
+ *
+ * <p>{@link #load(Connection)} reads MEDIA (as a {@link CatalogSnapshot}), LIBRARY_ITEM, ALBUM, ARTIST,
+ * AUTHORS and AUTHOR inside one read transaction, so they are consistent with each other, and turns
+ * every foreign key into a row number up front. After that nothing touches the database: the
+ * longest-audiobook, album-copies and digital-album-copies questions are filter, group-by and top-K
+ * scans split across the common fork-join pool, and give the same rows as
+ * {@link CSE3241app#getLongestAudiobook(Connection, ResultWriter)},
+ * {@link CSE3241app#getAlbumCopies(Connection, int, ResultWriter)} and
+ * {@link CSE3241app#getNumOfDigitalAlbumsCopies(Connection, ResultWriter)}. The one difference is
+ * Media_Name in the digital copies: the SQL groups by artist and leaves the album it shows unspecified,
+ * and so does this.</p>
+ *
+ * <p>Usage: {@code java CatalogAnalytics longest-audiobook [K]}, {@code album-copies N} or
+ * {@code digital-album-copies}. Rows are written with the app's ResultWriter (-Doutput.format).</p>
+ */
+public final class CatalogAnalytics {
+
+	static final String ITEMS_SQL = "SELECT Media_Id, Is_Digital FROM LIBRARY_ITEM;";
+	static final String ALBUMS_SQL = "SELECT Album_Id, Artist_Id FROM ALBUM;";
+	static final String ARTISTS_SQL = "SELECT Artist_Id, Name FROM ARTIST;";
+	static final String AUTHORS_SQL = "SELECT Audiobook_Id, Author_Id FROM AUTHORS;";
+	static final String AUTHOR_NAMES_SQL = "SELECT Author_Id, Name FROM AUTHOR;";
+
+	/** Rows a scan task handles without splitting further. Override with -Danalytics.grain=N. */
+	private static final int GRAIN = Integer.getInteger("analytics.grain", 1 << 15);
+
+	private final CatalogSnapshot catalog;
+
+	/** LIBRARY_ITEM: the catalog row of each item's title, or -1, and whether it is digital. */
+	private final int[] itemTitles;
+	private final boolean[] itemDigital;
+
+	/** Per catalog row: the album's artist as an index into artistNames, or -1 if it is not an album with an artist. */
+	private final int[] albumArtists;
+	private final String[] artistNames;
+
+	/** AUTHORS: the catalog row of each audiobook, or -1, and its author as an index into authorNames, or -1. */
+	private final int[] authorBooks;
+	private final int[] authorOf;
+	private final String[] authorNames;
+
+	private CatalogAnalytics(CatalogSnapshot catalog, int[] itemTitles, boolean[] itemDigital, int[] albumArtists,
+			String[] artistNames, int[] authorBooks, int[] authorOf, String[] authorNames) {
+		this.catalog = catalog;
+		this.itemTitles = itemTitles;
+		this.itemDigital = itemDigital;
+		this.albumArtists = albumArtists;
+		this.artistNames = artistNames;
+		this.authorBooks = authorBooks;
+		this.authorOf = authorOf;
+		this.authorNames = authorNames;
+	}
+
+	/**
+	 * Reads the catalog tables in one read transaction.
+	 *
+	 * @param conn a connection object; it is returned to its previous auto-commit mode
+	 * @return the loaded tables
+	 */
+	public static CatalogAnalytics load(Connection conn) throws SQLException {
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try {
+			CatalogSnapshot catalog = CatalogSnapshot.load(conn);
+
+			IntColumns items = read(conn, ITEMS_SQL);
+			int[] itemTitles = new int[items.size];
+			boolean[] itemDigital = new boolean[items.size];
+			for (int i = 0; i < items.size; i++) {
+				itemTitles[i] = catalog.indexOf(items.first[i]);
+				itemDigital[i] = items.second[i] == 1;
+			}
+
+			// GROUP BY A.Name puts artists that share a name together, in name order.
+			Map<Integer, String> artistsById = readNames(conn, ARTISTS_SQL);
+			TreeMap<String, Integer> nameGroups = new TreeMap<String, Integer>();
+			for (String name : artistsById.values()) {
+				nameGroups.put(name, 0);
+			}
+			String[] artistNames = nameGroups.keySet().toArray(new String[0]);
+			for (int i = 0; i < artistNames.length; i++) {
+				nameGroups.put(artistNames[i], i);
+			}
+			int[] albumArtists = new int[catalog.size()];
+			Arrays.fill(albumArtists, -1);
+			int album = catalog.typeCode("Album");
+			IntColumns albums = read(conn, ALBUMS_SQL);
+			for (int i = 0; i < albums.size; i++) {
+				int row = catalog.indexOf(albums.first[i]);
+				String artist = artistsById.get(albums.second[i]);
+				if (row != -1 && artist != null && catalog.typeCode(row) == album) {
+					albumArtists[row] = nameGroups.get(artist);
+				}
+			}
+
+			Map<Integer, String> authorsById = readNames(conn, AUTHOR_NAMES_SQL);
+			String[] authorNames = new String[authorsById.size()];
+			Map<Integer, Integer> authorIndexes = new HashMap<Integer, Integer>();
+			for (Map.Entry<Integer, String> author : authorsById.entrySet()) {
+				authorIndexes.put(author.getKey(), authorIndexes.size());
+				authorNames[authorIndexes.size() - 1] = author.getValue();
+			}
+			IntColumns authors = read(conn, AUTHORS_SQL);
+			int[] authorBooks = new int[authors.size];
+			int[] authorOf = new int[authors.size];
+			for (int i = 0; i < authors.size; i++) {
+				authorBooks[i] = catalog.indexOf(authors.first[i]);
+				Integer index = authorIndexes.get(authors.second[i]);
+				authorOf[i] = index == null ? -1 : index;
+			}
+			return new CatalogAnalytics(catalog, itemTitles, itemDigital, albumArtists, artistNames,
+					authorBooks, authorOf, authorNames);
+		} finally {
+			conn.commit();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * @return the MEDIA snapshot the other tables point into
+	 */
+	public CatalogSnapshot catalog() {
+		return catalog;
+	}
+
+	/**
+	 * Counts the library items of every title in one parallel scan over LIBRARY_ITEM.
+	 *
+	 * Each thread that takes part counts into one array of its own, and those are added up at the end,
+	 * so the scan allocates an array per thread rather than one per slice.
+	 *
+	 * @param typeCode only titles with this {@link CatalogSnapshot#typeCode(int)} are counted; -1 for all
+	 * @param digitalOnly whether to count only digital items
+	 * @return the number of items, indexed by catalog row
+	 */
+	public int[] copiesPerTitle(int typeCode, boolean digitalOnly) {
+		Map<Thread, int[]> perThread = new ConcurrentHashMap<Thread, int[]>();
+		new CopiesScan(0, itemTitles.length, typeCode, digitalOnly, perThread).invoke();
+		int[] counts = null;
+		for (int[] partial : perThread.values()) {
+			if (counts == null) {
+				counts = partial;
+			} else {
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] += partial[i];
+				}
+			}
+		}
+		return counts == null ? new int[catalog.size()] : counts;
+	}
+
+	/**
+	 * The longest audiobooks with their authors, as LONGEST_AUDIOBOOK_SQL with LIMIT k.
+	 *
+	 * @param k the number of rows, at least 1; 1 gives the same answer as the SQL
+	 * @return Name, Author and Length_in_mins, longest first, one row per audiobook and author
+	 */
+	public ResultCache.Rows longestAudiobooks(int k) {
+		if (k < 1) {
+			throw new IllegalArgumentException("The number of audiobooks must be at least 1, not " + k);
+		}
+		int audiobook = catalog.typeCode("Audiobook");
+		int[] top = audiobook == -1 ? new int[0] : new LongestScan(0, authorBooks.length, audiobook, k).invoke();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int i : top) {
+			int book = authorBooks[i];
+			int length = catalog.length(book);
+			rows.add(new Object[] {catalog.name(book), authorNames[authorOf[i]],
+					length == CatalogSnapshot.NO_LENGTH ? null : Long.valueOf(length)});
+		}
+		return new ResultCache.Rows(new String[] {"Name", "Author", "Length_in_mins"},
+				new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * The albums with fewer than n library items, as ALBUM_COPIES_SQL.
+	 *
+	 * @param n albums with fewer copies than this are listed; albums with no copies never are
+	 * @return Media_Id, Name and Count, by Media_Id
+	 */
+	public ResultCache.Rows albumCopies(int n) {
+		int album = catalog.typeCode("Album");
+		// Without an album, -1 would count the copies of every title.
+		int[] copies = album == -1 ? new int[0] : copiesPerTitle(album, false);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int row = 0; row < copies.length; row++) {
+			if (copies[row] > 0 && copies[row] < n) {
+				rows.add(new Object[] {Long.valueOf(catalog.mediaId(row)), catalog.name(row), Long.valueOf(copies[row])});
+			}
+		}
+		return new ResultCache.Rows(new String[] {"Media_Id", "Name", "Count"},
+				new int[] {Types.INTEGER, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * The digital copies of every artist's albums, as DIGITAL_ALBUM_COPIES_SQL.
+	 *
+	 * @return Media_Name, Artist_Name and Digital_Copies, by artist name
+	 */
+	public ResultCache.Rows digitalAlbumCopies() {
+		int[][] groups = new ArtistScan(0, itemTitles.length).invoke();
+		int[] counts = groups[0];
+		int[] albums = groups[1];
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int artist = 0; artist < counts.length; artist++) {
+			if (counts[artist] > 0) {
+				rows.add(new Object[] {catalog.name(albums[artist]), artistNames[artist], Long.valueOf(counts[artist])});
+			}
+		}
+		return new ResultCache.Rows(new String[] {"Media_Name", "Artist_Name", "Digital_Copies"},
+				new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * A scan over a range of rows that splits itself in half until the pieces are small enough,
+	 * scans the pieces in parallel and combines their results.
+	 */
+	private abstract static class Scan<T> extends RecursiveTask<T> {
+		private static final long serialVersionUID = 1L;
+
+		final int from;
+		final int to;
+
+		Scan(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected T compute() {
+			if (to - from <= GRAIN) {
+				return scan(from, to);
+			}
+			int middle = (from + to) >>> 1;
+			Scan<T> left = slice(from, middle);
+			left.fork();
+			T right = slice(middle, to).compute();
+			return combine(left.join(), right);
+		}
+
+		/** Scans rows from (inclusive) to to (exclusive). */
+		abstract T scan(int from, int to);
+
+		abstract Scan<T> slice(int from, int to);
+
+		/** Combines the results of two neighbouring ranges, the left one first. */
+		abstract T combine(T left, T right);
+	}
+
+	/**
+	 * GROUP BY title over LIBRARY_ITEM, with a filter on the title's type and the item's format.
+	 * Counts go into the running thread's array in perThread; the task itself returns nothing.
+	 */
+	private class CopiesScan extends Scan<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private final int typeCode;
+		private final boolean digitalOnly;
+		private final Map<Thread, int[]> perThread;
+
+		CopiesScan(int from, int to, int typeCode, boolean digitalOnly, Map<Thread, int[]> perThread) {
+			super(from, to);
+			this.typeCode = typeCode;
+			this.digitalOnly = digitalOnly;
+			this.perThread = perThread;
+		}
+
+		@Override
+		Void scan(int from, int to) {
+			// Only this thread ever writes its array; joining the task publishes it to the caller.
+			int[] counts = perThread.get(Thread.currentThread());
+			if (counts == null) {
+				counts = new int[catalog.size()];
+				perThread.put(Thread.currentThread(), counts);
+			}
+			for (int i = from; i < to; i++) {
+				int title = itemTitles[i];
+				if (title != -1 && (!digitalOnly || itemDigital[i]) && (typeCode == -1 || catalog.typeCode(title) == typeCode)) {
+					counts[title]++;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		Scan<Void> slice(int from, int to) {
+			return new CopiesScan(from, to, typeCode, digitalOnly, perThread);
+		}
+
+		@Override
+		Void combine(Void left, Void right) {
+			return null;
+		}
+	}
+
+	/**
+	 * Top k AUTHORS rows by the length of their audiobook, longest first, with NULL lengths last.
+	 */
+	private class LongestScan extends Scan<int[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final int typeCode;
+		private final int k;
+
+		LongestScan(int from, int to, int typeCode, int k) {
+			super(from, to);
+			this.typeCode = typeCode;
+			this.k = k;
+		}
+
+		@Override
+		int[] scan(int from, int to) {
+			int[] top = new int[k];
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				int book = authorBooks[i];
+				if (book == -1 || authorOf[i] == -1 || catalog.typeCode(book) != typeCode) {
+					continue;
+				}
+				int length = catalog.length(book);
+				if (count == k && length <= length(top[k - 1])) {
+					continue;
+				}
+				// Insertion into the sorted top k; an equal length stays behind the rows seen before it.
+				int j = count < k ? count++ : k - 1;
+				while (j > 0 && length(top[j - 1]) < length) {
+					top[j] = top[j - 1];
+					j--;
+				}
+				top[j] = i;
+			}
+			return Arrays.copyOf(top, count);
+		}
+
+		@Override
+		Scan<int[]> slice(int from, int to) {
+			return new LongestScan(from, to, typeCode, k);
+		}
+
+		@Override
+		int[] combine(int[] left, int[] right) {
+			return merge(left, right);
+		}
+
+		/**
+		 * Merges two lists that are already longest first, keeping the first k. Ties keep the left row first.
+		 */
+		private int[] merge(int[] left, int[] right) {
+			int[] merged = new int[Math.min(k, left.length + right.length)];
+			int l = 0;
+			int r = 0;
+			for (int i = 0; i < merged.length; i++) {
+				if (r == right.length || (l < left.length && length(left[l]) >= length(right[r]))) {
+					merged[i] = left[l++];
+				} else {
+					merged[i] = right[r++];
+				}
+			}
+			return merged;
+		}
+
+		private int length(int authorsRow) {
+			return catalog.length(authorBooks[authorsRow]);
+		}
+	}
+
+	/**
+	 * GROUP BY artist name over the digital items of albums. Returns the counts and, for each artist,
+	 * the catalog row of the last album counted.
+	 */
+	private class ArtistScan extends Scan<int[][]> {
+		private static final long serialVersionUID = 1L;
+
+		ArtistScan(int from, int to) {
+			super(from, to);
+		}
+
+		@Override
+		int[][] scan(int from, int to) {
+			int[] counts = new int[artistNames.length];
+			int[] albums = new int[artistNames.length];
+			Arrays.fill(albums, -1);
+			for (int i = from; i < to; i++) {
+				int title = itemTitles[i];
+				if (title != -1 && itemDigital[i] && albumArtists[title] != -1) {
+					counts[albumArtists[title]]++;
+					albums[albumArtists[title]] = title;
+				}
+			}
+			return new int[][] {counts, albums};
+		}
+
+		@Override
+		Scan<int[][]> slice(int from, int to) {
+			return new ArtistScan(from, to);
+		}
+
+		@Override
+		int[][] combine(int[][] left, int[][] right) {
+			for (int i = 0; i < artistNames.length; i++) {
+				left[0][i] += right[0][i];
+				if (right[1][i] != -1) {
+					left[1][i] = right[1][i];
+				}
+			}
+			return left;
+		}
+	}
+
+	/**
+	 * Two integer columns read in one pass.
+	 */
+	private static class IntColumns {
+		int size = 0;
+		int[] first = new int[1024];
+		int[] second = new int[1024];
+
+		void add(int a, int b) {
+			if (size == first.length) {
+				first = Arrays.copyOf(first, size + (size >> 1));
+				second = Arrays.copyOf(second, first.length);
+			}
+			first[size] = a;
+			second[size] = b;
+			size++;
+		}
+	}
+
+	private static IntColumns read(Connection conn, String sql) throws SQLException {
+		IntColumns columns = new IntColumns();
+		PreparedStatement stmt = StatementCache.prepare(conn, sql);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			rs.setFetchSize(ResultWriter.FETCH_SIZE);
+			while (rs.next()) {
+				columns.add(rs.getInt(1), rs.getInt(2));
+			}
+		} finally {
+			rs.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Reads a contributor table, whose id is the first column selected and name the second.
+	 */
+	private static Map<Integer, String> readNames(Connection conn, String sql) throws SQLException {
+		Map<Integer, String> names = new HashMap<Integer, String>();
+		PreparedStatement stmt = StatementCache.prepare(conn, sql);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			rs.setFetchSize(ResultWriter.FETCH_SIZE);
+			while (rs.next()) {
+				names.put(rs.getInt(1), rs.getString(2));
+			}
+		} finally {
+			rs.close();
+		}
+		return names;
+	}
+
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: java CatalogAnalytics longest-audiobook [K] | album-copies N | digital-album-copies");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			long start = System.nanoTime();
+			CatalogAnalytics analytics = load(conn);
+			pool.release(conn);
+			conn = null;
+			long loaded = System.nanoTime();
+			ResultCache.Rows rows;
+			if (args[0].equals("longest-audiobook")) {
+				rows = analytics.longestAudiobooks(args.length > 1 ? Integer.parseInt(args[1]) : 1);
+			} else if (args[0].equals("album-copies") && args.length > 1) {
+				rows = analytics.albumCopies(Integer.parseInt(args[1]));
+			} else if (args[0].equals("digital-album-copies")) {
+				rows = analytics.digitalAlbumCopies();
+			} else {
+				throw new IllegalArgumentException("Unknown analytics query: " + Arrays.toString(args));
+			}
+			long done = System.nanoTime();
+			ResultWriter.standard().write(rows.replay(null));
+			System.out.println("# loaded in " + (loaded - start) / 1000000 + " ms, answered in "
+					+ String.format("%.3f", (done - loaded) / 1e6) + " ms");
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
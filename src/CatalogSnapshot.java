@@ -0,0 +1,290 @@
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only, column-oriented copy of the MEDIA table held in primitive arrays.
+ *
+ * <p>Loading the catalog as one {@link Media} object per row costs an object header, a boxed
+ * reference per String and a String with its own array for every name, genre and type. Here each
+ * column is one array: Media_Id, Year and Length are {@code int[]}, Genre and Type_of_Media are
+ * dictionary codes into a short list of distinct values, and every name is stored back to back as
+ * UTF-8 in a single byte array with an {@code int[]} of offsets. A row is just an index, so 10 million
+ * titles take about 25 bytes each plus their names, and the garbage collector sees a dozen arrays
+ * instead of tens of millions of objects.</p>
+ *
+ * <p>The snapshot is loaded in one streaming pass over MEDIA in Media_Id order, so
+ * {@link #indexOf(int)} is a binary search. It does not change when the database does; load a new one
+ * to see later writes.</p>
+ *
+ * <p>Usage: {@code java CatalogSnapshot} loads the catalog and prints its size and the titles per type.</p>
+ */
+public final class CatalogSnapshot {
+
+	/** The value of {@link #length(int)} when Length is NULL. */
+	public static final int NO_LENGTH = -1;
+
+	static final String LOAD_SQL = "SELECT Media_Id, Name, Genre, Year, Length, Type_of_Media\n" +
+			"FROM MEDIA\n" +
+			"ORDER BY Media_Id;\n";
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int size;
+	private final int[] mediaIds;
+	private final int[] years;
+	private final int[] lengths;
+	private final short[] genreCodes;
+	private final byte[] typeCodes;
+	private final String[] genres;
+	private final String[] types;
+	private final byte[] namePool;
+	private final int[] nameOffsets;
+
+	private CatalogSnapshot(Builder builder) {
+		this.size = builder.size;
+		this.mediaIds = Arrays.copyOf(builder.mediaIds, size);
+		this.years = Arrays.copyOf(builder.years, size);
+		this.lengths = Arrays.copyOf(builder.lengths, size);
+		this.genreCodes = Arrays.copyOf(builder.genreCodes, size);
+		this.typeCodes = Arrays.copyOf(builder.typeCodes, size);
+		this.genres = builder.genres.values();
+		this.types = builder.types.values();
+		this.namePool = Arrays.copyOf(builder.namePool, builder.poolSize);
+		this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+	}
+
+	/**
+	 * Reads all of MEDIA into a snapshot.
+	 *
+	 * @param conn a connection object
+	 * @return the snapshot
+	 */
+	public static CatalogSnapshot load(Connection conn) throws SQLException {
+		Builder builder = new Builder();
+		PreparedStatement stmt = StatementCache.prepare(conn, LOAD_SQL);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			rs.setFetchSize(ResultWriter.FETCH_SIZE);
+			while (rs.next()) {
+				int length = rs.getInt(5);
+				builder.add(rs.getInt(1), rs.getString(2), rs.getString(3), rs.getInt(4),
+						rs.wasNull() ? NO_LENGTH : length, rs.getString(6));
+			}
+		} finally {
+			rs.close();
+		}
+		return new CatalogSnapshot(builder);
+	}
+
+	/**
+	 * @return the number of titles
+	 */
+	public int size() {
+		return size;
+	}
+
+	public int mediaId(int row) {
+		return mediaIds[row];
+	}
+
+	public int year(int row) {
+		return years[row];
+	}
+
+	/**
+	 * @return the length in minutes, or {@link #NO_LENGTH}
+	 */
+	public int length(int row) {
+		return lengths[row];
+	}
+
+	public String name(int row) {
+		int start = nameOffsets[row];
+		return new String(namePool, start, nameOffsets[row + 1] - start, StandardCharsets.UTF_8);
+	}
+
+	public String genre(int row) {
+		return genres[genreCodes[row]];
+	}
+
+	public String type(int row) {
+		return types[typeCodes[row]];
+	}
+
+	/**
+	 * @return the row's position in {@link #genres()}
+	 */
+	public int genreCode(int row) {
+		return genreCodes[row];
+	}
+
+	/**
+	 * @return the row's position in {@link #types()}
+	 */
+	public int typeCode(int row) {
+		return typeCodes[row];
+	}
+
+	/**
+	 * @return every distinct genre, indexed by genre code
+	 */
+	public String[] genres() {
+		return genres.clone();
+	}
+
+	/**
+	 * @return every distinct Type_of_Media, indexed by type code
+	 */
+	public String[] types() {
+		return types.clone();
+	}
+
+	/**
+	 * @param type a Type_of_Media such as "Album"
+	 * @return its type code, or -1 if no title has that type
+	 */
+	public int typeCode(String type) {
+		return Arrays.asList(types).indexOf(type);
+	}
+
+	/**
+	 * @param genre a genre
+	 * @return its genre code, or -1 if no title has that genre
+	 */
+	public int genreCode(String genre) {
+		return Arrays.asList(genres).indexOf(genre);
+	}
+
+	/**
+	 * Finds a title by id.
+	 *
+	 * @param mediaId a Media_Id
+	 * @return its row, or -1 if there is no such title
+	 */
+	public int indexOf(int mediaId) {
+		int row = Arrays.binarySearch(mediaIds, 0, size, mediaId);
+		return row < 0 ? -1 : row;
+	}
+
+	/**
+	 * @return the approximate heap size of the arrays, in bytes
+	 */
+	public long bytes() {
+		return 4L * size * 3 + 2L * size + size + namePool.length + 4L * nameOffsets.length;
+	}
+
+	/**
+	 * Grows the columns while the rows stream in.
+	 */
+	private static class Builder {
+		int size = 0;
+		int[] mediaIds = new int[INITIAL_CAPACITY];
+		int[] years = new int[INITIAL_CAPACITY];
+		int[] lengths = new int[INITIAL_CAPACITY];
+		short[] genreCodes = new short[INITIAL_CAPACITY];
+		byte[] typeCodes = new byte[INITIAL_CAPACITY];
+		int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+		byte[] namePool = new byte[INITIAL_CAPACITY * 16];
+		int poolSize = 0;
+		final Dictionary genres = new Dictionary("genres", Short.MAX_VALUE);
+		final Dictionary types = new Dictionary("media types", Byte.MAX_VALUE);
+
+		void add(int mediaId, String name, String genre, int year, int length, String type) {
+			if (size == mediaIds.length) {
+				int capacity = size + (size >> 1);
+				mediaIds = Arrays.copyOf(mediaIds, capacity);
+				years = Arrays.copyOf(years, capacity);
+				lengths = Arrays.copyOf(lengths, capacity);
+				genreCodes = Arrays.copyOf(genreCodes, capacity);
+				typeCodes = Arrays.copyOf(typeCodes, capacity);
+				nameOffsets = Arrays.copyOf(nameOffsets, capacity + 1);
+			}
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			if (poolSize + utf8.length > namePool.length) {
+				long capacity = Math.max((long) namePool.length + (namePool.length >> 1), (long) poolSize + utf8.length);
+				if (capacity > Integer.MAX_VALUE - 8) {
+					throw new IllegalStateException("The catalog's names do not fit in one 2 GB array");
+				}
+				namePool = Arrays.copyOf(namePool, (int) capacity);
+			}
+			System.arraycopy(utf8, 0, namePool, poolSize, utf8.length);
+			poolSize += utf8.length;
+			mediaIds[size] = mediaId;
+			years[size] = year;
+			lengths[size] = length;
+			genreCodes[size] = (short) genres.code(genre);
+			typeCodes[size] = (byte) types.code(type);
+			nameOffsets[size + 1] = poolSize;
+			size++;
+		}
+	}
+
+	/**
+	 * Assigns each distinct value a small code, in the order the values are first seen.
+	 */
+	private static class Dictionary {
+		private final String what;
+		private final int maxCodes;
+		private final Map<String, Integer> codes = new HashMap<String, Integer>();
+		private final List<String> values = new ArrayList<String>();
+
+		Dictionary(String what, int maxCodes) {
+			this.what = what;
+			this.maxCodes = maxCodes;
+		}
+
+		int code(String value) {
+			Integer code = codes.get(value);
+			if (code == null) {
+				if (values.size() == maxCodes) {
+					throw new IllegalStateException("The catalog has more than " + maxCodes + " distinct " + what);
+				}
+				code = values.size();
+				codes.put(value, code);
+				values.add(value);
+			}
+			return code;
+		}
+
+		String[] values() {
+			return values.toArray(new String[0]);
+		}
+	}
+
+	public static void main(String[] args) {
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			long start = System.nanoTime();
+			CatalogSnapshot catalog = load(conn);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Loaded " + catalog.size() + " titles in " + millis + " ms, "
+					+ catalog.bytes() / 1024 + " KB in " + catalog.genres.length + " genres and "
+					+ catalog.types.length + " types.");
+			int[] perType = new int[catalog.types.length];
+			for (int row = 0; row < catalog.size(); row++) {
+				perType[catalog.typeCode(row)]++;
+			}
+			for (int i = 0; i < perType.length; i++) {
+				System.out.println(catalog.types[i] + ": " + perType[i]);
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Change data capture: an ordered log of every row inserted, updated or deleted in the library's tables.
+ *
+ * <p>Triggers on each table append to CHANGE_LOG in the same transaction as the change, with the
+ * table, the row's primary key as a JSON array and the operation. An update that changes the key is
+ * logged as a DELETE of the old key and an INSERT of the new one. Seq never goes back, even once
+ * old entries are pruned. SQLite commits one writer at a time, so a reader never sees a change
+ * before an earlier one commits. A consumer that has seen everything up to Seq N can therefore ask
+ * for what comes after N and miss nothing. The log holds keys, not values: a consumer re-reads the
+ * rows it is told about, and one that finds a row gone treats it as deleted.</p>
+ *
+ * <p>Consumers are named in CHANGE_CONSUMER with the last Seq they have acknowledged. A new consumer
+ * {@link #register registers} first, then copies the tables (see {@link TableLister}), then tails
+ * the log from its checkpoint. Changes made during the copy are delivered again, which is harmless
+ * because applying a change means re-reading the row. {@link #compact} deletes what every consumer
+ * has acknowledged, or the whole log when no consumer is registered. The cost of keeping in sync
+ * therefore follows the number of changes, not the size of the tables.</p>
+ *
+ * <p>Registration, acknowledgements and compaction are {@link WriteQueue} mutations.</p>
+ *
+ * <p>Usage: {@code java ChangeLog tail CONSUMER} prints changes as they commit and acknowledges
+ * them, until stopped; {@code java ChangeLog compact} prunes the log.</p>
+ */
+public class ChangeLog {
+
+	/** Changes read per batch. Override with -Dchanges.batch.size=N. */
+	public static final int BATCH_SIZE = Integer.getInteger("changes.batch.size", 1000);
+
+	/** How long tail waits when the log is drained. Override with -Dchanges.poll.millis=N. */
+	public static final long POLL_MILLIS = Long.getLong("changes.poll.millis", 1000L);
+
+	/** The last Seq handed out, 0 before the first change. */
+	static final String LAST_SEQ = "IFNULL((SELECT seq FROM sqlite_sequence WHERE name = 'CHANGE_LOG'), 0)";
+
+	static final String READ_SQL = "SELECT Seq, Table_Name, Key, Op, Changed_At FROM CHANGE_LOG WHERE Seq > ? ORDER BY Seq LIMIT ?;";
+	static final String CHECKPOINT_SQL = "SELECT Acked_Seq FROM CHANGE_CONSUMER WHERE Name = ?;";
+	static final String REGISTER_SQL = "INSERT OR IGNORE INTO CHANGE_CONSUMER (Name, Acked_Seq) VALUES (?, " + LAST_SEQ + ");";
+	static final String ACKNOWLEDGE_SQL = "UPDATE CHANGE_CONSUMER SET Acked_Seq = MAX(Acked_Seq, MIN(?, " + LAST_SEQ + ")) WHERE Name = ?;";
+	static final String UNREGISTER_SQL = "DELETE FROM CHANGE_CONSUMER WHERE Name = ?;";
+	static final String COMPACT_SQL = "DELETE FROM CHANGE_LOG WHERE Seq IN (SELECT Seq FROM CHANGE_LOG " +
+			"WHERE Seq <= IFNULL((SELECT MIN(Acked_Seq) FROM CHANGE_CONSUMER), " + LAST_SEQ + ") ORDER BY Seq LIMIT ?);";
+
+	private static final String[] COLUMNS = {"Seq", "Table_Name", "Key", "Op", "Changed_At"};
+	private static final int[] COLUMN_TYPES = {Types.INTEGER, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR};
+
+	private final WriteQueue writer;
+
+	/**
+	 * @param writer the queue registrations, acknowledgements and compaction are applied through
+	 */
+	public ChangeLog(WriteQueue writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Reads the changes after a checkpoint, oldest first.
+	 *
+	 * @param conn a connection object
+	 * @param after the last Seq already seen, 0 for the start of the log
+	 * @param max the most changes to read
+	 * @return the changes
+	 */
+	public static Batch read(Connection conn, long after, int max) throws SQLException {
+		if (max < 1) {
+			throw new IllegalArgumentException("The batch size must be at least 1");
+		}
+		PreparedStatement stmt = StatementCache.prepare(conn, READ_SQL);
+		stmt.setLong(1, after);
+		stmt.setInt(2, max);
+		List<Change> changes = new ArrayList<Change>();
+		ResultSet rs = stmt.executeQuery();
+		try {
+			while (rs.next()) {
+				changes.add(new Change(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5)));
+			}
+		} finally {
+			rs.close();
+		}
+		return new Batch(after, changes);
+	}
+
+	/**
+	 * Reads the changes a consumer has not acknowledged yet, oldest first.
+	 *
+	 * @param conn a connection object
+	 * @param consumer a registered consumer
+	 * @param max the most changes to read
+	 * @return the changes
+	 */
+	public static Batch poll(Connection conn, String consumer, int max) throws SQLException {
+		return read(conn, checkpoint(conn, consumer), max);
+	}
+
+	/**
+	 * @param conn a connection object
+	 * @param consumer a registered consumer
+	 * @return the last Seq the consumer has acknowledged
+	 */
+	public static long checkpoint(Connection conn, String consumer) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, CHECKPOINT_SQL);
+		stmt.setString(1, consumer);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			if (!rs.next()) {
+				throw new IllegalArgumentException("No change log consumer named " + consumer);
+			}
+			return rs.getLong(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Adds a consumer whose checkpoint is the latest change, unless it is registered already.
+	 *
+	 * @param consumer the consumer's name
+	 * @return completes with the consumer's checkpoint once committed
+	 */
+	public CompletableFuture<Long> register(final String consumer) {
+		return writer.submit(new WriteQueue.Mutation<Long>() {
+			@Override
+			public Long apply(Connection conn) throws SQLException {
+				PreparedStatement stmt = StatementCache.prepare(conn, REGISTER_SQL);
+				stmt.setString(1, consumer);
+				stmt.executeUpdate();
+				return checkpoint(conn, consumer);
+			}
+		}, "CHANGE_CONSUMER");
+	}
+
+	/**
+	 * Removes a consumer, so the log is no longer kept for it.
+	 *
+	 * @param consumer the consumer's name
+	 * @return completes with whether the consumer was registered, once committed
+	 */
+	public CompletableFuture<Boolean> unregister(final String consumer) {
+		return writer.submit(new WriteQueue.Mutation<Boolean>() {
+			@Override
+			public Boolean apply(Connection conn) throws SQLException {
+				PreparedStatement stmt = StatementCache.prepare(conn, UNREGISTER_SQL);
+				stmt.setString(1, consumer);
+				return stmt.executeUpdate() > 0;
+			}
+		}, "CHANGE_CONSUMER");
+	}
+
+	/**
+	 * Moves a consumer's checkpoint forward; it never moves back, nor past the latest change.
+	 *
+	 * @param consumer a registered consumer
+	 * @param seq the last Seq the consumer has applied
+	 * @return completes with the consumer's checkpoint once committed
+	 */
+	public CompletableFuture<Long> acknowledge(final String consumer, final long seq) {
+		return writer.submit(new WriteQueue.Mutation<Long>() {
+			@Override
+			public Long apply(Connection conn) throws SQLException {
+				PreparedStatement stmt = StatementCache.prepare(conn, ACKNOWLEDGE_SQL);
+				stmt.setLong(1, seq);
+				stmt.setString(2, consumer);
+				if (stmt.executeUpdate() == 0) {
+					throw new IllegalArgumentException("No change log consumer named " + consumer);
+				}
+				return checkpoint(conn, consumer);
+			}
+		}, "CHANGE_CONSUMER");
+	}
+
+	/**
+	 * Deletes the changes every consumer has acknowledged, {@link #BATCH_SIZE} to a transaction so
+	 * other writes are not held up.
+	 *
+	 * @return the number of changes deleted
+	 */
+	public long compact() throws SQLException {
+		long deleted = 0;
+		while (true) {
+			int batch = writer.execute(new WriteQueue.Mutation<Integer>() {
+				@Override
+				public Integer apply(Connection conn) throws SQLException {
+					PreparedStatement stmt = StatementCache.prepare(conn, COMPACT_SQL);
+					stmt.setInt(1, BATCH_SIZE);
+					return stmt.executeUpdate();
+				}
+			}, "CHANGE_LOG");
+			deleted += batch;
+			if (batch < BATCH_SIZE) {
+				return deleted;
+			}
+		}
+	}
+
+	/**
+	 * One logged change to one row.
+	 */
+	public static final class Change {
+		public final long seq;
+		public final String table;
+		/** The primary key of the row as a JSON array, e.g. {@code [3004,"Bad and Boujee"]}. */
+		public final String key;
+		/** INSERT, UPDATE or DELETE. */
+		public final String op;
+		public final String changedAt;
+
+		Change(long seq, String table, String key, String op, String changedAt) {
+			this.seq = seq;
+			this.table = table;
+			this.key = key;
+			this.op = op;
+			this.changedAt = changedAt;
+		}
+	}
+
+	/**
+	 * Consecutive changes read from the log.
+	 */
+	public static final class Batch {
+		public final List<Change> changes;
+		/** The checkpoint after this batch: the Seq of its last change, or the one it was read after. */
+		public final long last;
+
+		Batch(long after, List<Change> changes) {
+			this.changes = Collections.unmodifiableList(changes);
+			this.last = changes.isEmpty() ? after : changes.get(changes.size() - 1).seq;
+		}
+
+		/**
+		 * Writes the changes as rows of Seq, Table_Name, Key, Op and Changed_At.
+		 *
+		 * @param header false to leave out the header, when the rows continue an earlier batch
+		 * @return the number of rows written
+		 */
+		public long write(ResultWriter out, boolean header) throws SQLException, IOException {
+			List<Object[]> rows = new ArrayList<Object[]>(changes.size());
+			for (Change change : changes) {
+				rows.add(new Object[] {Long.valueOf(change.seq), change.table, change.key, change.op, change.changedAt});
+			}
+			return out.write(new ResultCache.Rows(COLUMNS, COLUMN_TYPES, rows, true).replay(null), header);
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean tail = args.length == 2 && args[0].equals("tail");
+		if (!tail && !(args.length == 1 && args[0].equals("compact"))) {
+			System.out.println("Usage: java ChangeLog tail CONSUMER | compact");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			ChangeLog log = CSE3241app.changeLog();
+			if (!tail) {
+				System.out.println("Deleted " + log.compact() + " acknowledged changes");
+			} else {
+				String consumer = args[1];
+				WriteQueue.await(log.register(consumer));
+				conn = pool.borrow();
+				ResultWriter out = ResultWriter.standard();
+				boolean header = true;
+				while (true) {
+					Batch batch = poll(conn, consumer, BATCH_SIZE);
+					if (batch.changes.isEmpty()) {
+						Thread.sleep(POLL_MILLIS);
+						continue;
+					}
+					batch.write(out, header);
+					header = false;
+					WriteQueue.await(log.acknowledge(consumer, batch.last));
+				}
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			pool.release(conn);
+			CSE3241app.shutdown();
+		}
+		System.exit(status);
+	}
+}
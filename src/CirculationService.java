@@ -0,0 +1,227 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Checks items out and back in, with many desks writing at once.
+ *
+ * <p>Checkouts and returns are {@link WriteQueue} mutations, so concurrent desks share group commits
+ * and never contend for SQLite's write lock. A checkout of an item that is already out fails on
+ * CHECK_OUT's UNIQUE(Item_Id) and is rolled back alone, while the rest of its group commits.
+ * Once a checkout or return commits, the patron's cached {@link PatronSummary} is dropped.</p>
+ */
+public class CirculationService {
+
+	/** Days an item is lent for. Override with -Dcirculation.loan.days=N. */
+	public static final int LOAN_DAYS = Integer.getInteger("circulation.loan.days", 21);
+
+	static final String CHECKOUT_SQL = "INSERT INTO CHECK_OUT (Due_date, Checkout_date, Card_Id, Item_Id) VALUES (?, ?, ?, ?);";
+	static final String DUE_DATE_SQL = "SELECT Due_date, Card_Id FROM CHECK_OUT WHERE Item_Id = ?;";
+	static final String RETURN_SQL = "DELETE FROM CHECK_OUT WHERE Item_Id = ?;";
+
+	/** The tables a checkout or return writes; MEDIA_STOCK is kept up to date by triggers on CHECK_OUT. */
+	private static final String[] TABLES = {"CHECK_OUT", "MEDIA_STOCK"};
+
+	private final WriteQueue writer;
+
+	/**
+	 * @param writer the queue checkouts and returns are applied through
+	 */
+	public CirculationService(WriteQueue writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Lends an item to a patron from today for {@link #LOAN_DAYS} days.
+	 *
+	 * @param cardId the patron's card id
+	 * @param itemId the LIBRARY_ITEM being lent
+	 * @return completes with the due date, YYYY-MM-DD, once committed; fails with an SQLException if
+	 *         the item is already checked out or the patron or item does not exist
+	 */
+	public CompletableFuture<String> checkout(int cardId, int itemId) {
+		return checkout(cardId, itemId, LocalDate.now());
+	}
+
+	/**
+	 * Lends an item to a patron from a given day for {@link #LOAN_DAYS} days.
+	 *
+	 * @param cardId the patron's card id
+	 * @param itemId the LIBRARY_ITEM being lent
+	 * @param on the checkout date
+	 * @return completes with the due date, YYYY-MM-DD, once committed
+	 */
+	public CompletableFuture<String> checkout(final int cardId, final int itemId, final LocalDate on) {
+		return writer.submit(new WriteQueue.Mutation<String>() {
+			@Override
+			public String apply(Connection conn) throws SQLException {
+				return insertCheckout(conn, cardId, itemId, on);
+			}
+		}, TABLES).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String due, Throwable failure) {
+				if (failure == null) {
+					PatronSummary.invalidate(cardId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes an item back.
+	 *
+	 * @param itemId the LIBRARY_ITEM being returned
+	 * @return completes with the date the item was due, YYYY-MM-DD, once committed; fails with an
+	 *         SQLException if the item is not checked out
+	 */
+	public CompletableFuture<String> returnItem(final int itemId) {
+		// The patron the item was lent to, set by the mutation.
+		final int[] cardId = new int[1];
+		return writer.submit(new WriteQueue.Mutation<String>() {
+			@Override
+			public String apply(Connection conn) throws SQLException {
+				return deleteCheckout(conn, itemId, cardId);
+			}
+		}, TABLES).whenComplete(new BiConsumer<String, Throwable>() {
+			@Override
+			public void accept(String due, Throwable failure) {
+				if (failure == null) {
+					PatronSummary.invalidate(cardId[0]);
+				}
+			}
+		});
+	}
+
+	private static String insertCheckout(Connection conn, int cardId, int itemId, LocalDate on) throws SQLException {
+		String due = on.plusDays(LOAN_DAYS).toString();
+		PreparedStatement stmt = StatementCache.prepare(conn, CHECKOUT_SQL);
+		stmt.setString(1, due);
+		stmt.setString(2, on.toString());
+		stmt.setInt(3, cardId);
+		stmt.setInt(4, itemId);
+		try {
+			stmt.executeUpdate();
+		} catch (SQLException e) {
+			if (WriteQueue.isBusy(e)) {
+				throw e;
+			}
+			String message = e.getMessage() != null && e.getMessage().contains("UNIQUE")
+					? "Item " + itemId + " is already checked out"
+					: "Could not check out item " + itemId + " to card " + cardId + ": " + e.getMessage();
+			throw new SQLException(message, e);
+		}
+		return due;
+	}
+
+	private static String deleteCheckout(Connection conn, int itemId, int[] cardId) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, DUE_DATE_SQL);
+		stmt.setInt(1, itemId);
+		ResultSet rs = stmt.executeQuery();
+		String due = null;
+		try {
+			if (rs.next()) {
+				due = rs.getString(1);
+				cardId[0] = rs.getInt(2);
+			}
+		} finally {
+			rs.close();
+		}
+		if (due == null) {
+			throw new SQLException("Item " + itemId + " is not checked out");
+		}
+		stmt = StatementCache.prepare(conn, RETURN_SQL);
+		stmt.setInt(1, itemId);
+		stmt.executeUpdate();
+		return due;
+	}
+
+	/**
+	 * Load test: {@code java CirculationService [DESKS] [SECONDS]} has DESKS threads (default 16) check
+	 * random items out to random patrons and back in for SECONDS seconds (default 5), then prints the
+	 * throughput. Every item it checks out is returned before it exits.
+	 */
+	public static void main(String[] args) throws Exception {
+		final int desks = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		final long seconds = args.length > 1 ? Long.parseLong(args[1]) : 5;
+		ConnectionPool pool = CSE3241app.pool();
+		final int[] cards = ids(pool, "SELECT Card_Id FROM PATRON;");
+		final int[] items = ids(pool, "SELECT Item_Id FROM LIBRARY_ITEM WHERE Item_Id NOT IN (SELECT Item_Id FROM CHECK_OUT);");
+		if (cards.length == 0 || items.length == 0) {
+			System.out.println("There are no patrons or no items that are in.");
+			System.exit(1);
+		}
+		final WriteQueue writer = CSE3241app.writer();
+		final CirculationService service = CSE3241app.circulation();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final AtomicLong done = new AtomicLong();
+		final AtomicLong conflicts = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(desks);
+		List<Future<?>> runs = new ArrayList<Future<?>>();
+		for (int d = 0; d < desks; d++) {
+			runs.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					ThreadLocalRandom random = ThreadLocalRandom.current();
+					while (System.nanoTime() < end) {
+						int item = items[random.nextInt(items.length)];
+						try {
+							WriteQueue.await(service.checkout(cards[random.nextInt(cards.length)], item));
+						} catch (SQLException e) {
+							// Another desk has the item.
+							conflicts.incrementAndGet();
+							continue;
+						}
+						try {
+							WriteQueue.await(service.returnItem(item));
+							done.addAndGet(2);
+						} catch (SQLException e) {
+							System.out.println(e.getMessage());
+						}
+					}
+				}
+			}));
+		}
+		for (Future<?> run : runs) {
+			run.get();
+		}
+		executor.shutdown();
+		System.out.println(desks + " desks: " + done.get() / seconds + " checkouts and returns per second, "
+				+ conflicts.get() + " checkouts refused because the item was out");
+		System.out.println(writer.totals());
+		CSE3241app.shutdown();
+		System.exit(0);
+	}
+
+	private static int[] ids(ConnectionPool pool, String sql) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			List<Integer> ids = new ArrayList<Integer>();
+			ResultSet rs = StatementCache.prepare(conn, sql).executeQuery();
+			try {
+				while (rs.next()) {
+					ids.add(rs.getInt(1));
+				}
+			} finally {
+				rs.close();
+			}
+			int[] array = new int[ids.size()];
+			for (int i = 0; i < array.length; i++) {
+				array[i] = ids.get(i);
+			}
+			return array;
+		} finally {
+			pool.release(conn);
+		}
+	}
+}
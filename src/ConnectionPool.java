@@ -0,0 +1,237 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed-size pool of long-lived connections to the library database.
+ *
+ * <p>Connections are opened lazily up to the configured size, set up once with the
+ * PRAGMAs below and then handed out again and again, so a process that serves many
+ * commands only pays the SQLite open cost once per connection.</p>
+ *
+ * <p>Connections are wrapped by {@link QueryMetrics#instrument(Connection)}, so every statement run on
+ * them is timed.</p>
+ *
+ * <p>Always give a borrowed connection back with {@link #release(Connection)} in a finally block.</p>
+ */
+public class ConnectionPool {
+
+	/**
+	 * PRAGMAs run on every new connection. WAL lets readers run alongside the single writer,
+	 * synchronous=NORMAL is safe in WAL mode, and the cache and mmap sizes keep hot pages in memory.
+	 */
+	public static final String[] DEFAULT_PRAGMAS = {
+			"PRAGMA journal_mode=WAL;",
+			"PRAGMA synchronous=NORMAL;",
+			"PRAGMA cache_size=-16000;",
+			"PRAGMA mmap_size=268435456;",
+			"PRAGMA busy_timeout=5000;"
+	};
+
+	/** Idle connections older than this are checked with a cheap query before being handed out. */
+	private static final long VALIDATE_AFTER_MILLIS = 30000;
+
+	/** How long {@link #borrow()} waits for a connection to be released before giving up. */
+	private static final long BORROW_TIMEOUT_MILLIS = 30000;
+
+	private final String url;
+	private final String[] pragmas;
+	private final int size;
+	private final BlockingQueue<Connection> idle;
+	private final Map<Connection, Long> lastUsed = new ConcurrentHashMap<Connection, Long>();
+	private final List<Connection> all = new ArrayList<Connection>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Creates a pool with the default PRAGMAs.
+	 *
+	 * @param databaseFileName the database file name
+	 * @param size the maximum number of open connections
+	 */
+	public ConnectionPool(String databaseFileName, int size) {
+		this(databaseFileName, size, DEFAULT_PRAGMAS);
+	}
+
+	/**
+	 * Creates a pool.
+	 *
+	 * @param databaseFileName the database file name
+	 * @param size the maximum number of open connections
+	 * @param pragmas statements run once on every new connection
+	 */
+	public ConnectionPool(String databaseFileName, int size, String[] pragmas) {
+		if (size < 1) {
+			throw new IllegalArgumentException("Pool size must be at least 1");
+		}
+		this.url = "jdbc:sqlite:" + databaseFileName;
+		this.size = size;
+		this.pragmas = pragmas.clone();
+		this.idle = new ArrayBlockingQueue<Connection>(size);
+	}
+
+	/**
+	 * @return the maximum number of open connections
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Hands out an idle connection, opening a new one if the pool is not full yet,
+	 * or waits for one to be released.
+	 *
+	 * @return a healthy connection in auto-commit mode
+	 */
+	public Connection borrow() throws SQLException {
+		long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MILLIS;
+		while (true) {
+			if (closed) {
+				throw new SQLException("Connection pool is closed");
+			}
+			Connection conn = idle.poll();
+			if (conn == null) {
+				conn = openIfRoom();
+			}
+			if (conn == null) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new SQLException("Timed out waiting for a database connection");
+				}
+				try {
+					conn = idle.poll(wait, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted waiting for a database connection", e);
+				}
+				if (conn == null) {
+					continue;
+				}
+			}
+			if (isHealthy(conn)) {
+				return conn;
+			}
+			discard(conn);
+		}
+	}
+
+	/**
+	 * Gives a borrowed connection back to the pool. Any open transaction is rolled back.
+	 *
+	 * @param conn a connection obtained from {@link #borrow()}, may be null
+	 */
+	public void release(Connection conn) {
+		if (conn == null) {
+			return;
+		}
+		try {
+			if (conn.isClosed()) {
+				discard(conn);
+				return;
+			}
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			discard(conn);
+			return;
+		}
+		if (closed) {
+			discard(conn);
+			return;
+		}
+		lastUsed.put(conn, System.currentTimeMillis());
+		idle.offer(conn);
+	}
+
+	/**
+	 * Closes every connection the pool opened, idle or borrowed, so a borrower still using one gets an
+	 * error. Releasing a connection after that does nothing more, and {@link #borrow()} fails.
+	 */
+	public void close() {
+		closed = true;
+		List<Connection> toClose;
+		synchronized (all) {
+			toClose = new ArrayList<Connection>(all);
+		}
+		for (Connection conn : toClose) {
+			discard(conn);
+		}
+		idle.clear();
+	}
+
+	private Connection openIfRoom() throws SQLException {
+		synchronized (all) {
+			if (all.size() >= size) {
+				return null;
+			}
+			Connection conn = open();
+			all.add(conn);
+			return conn;
+		}
+	}
+
+	private Connection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(url);
+		Statement stmt = conn.createStatement();
+		try {
+			for (String pragma : pragmas) {
+				stmt.execute(pragma);
+			}
+		} catch (SQLException e) {
+			stmt.close();
+			conn.close();
+			throw e;
+		}
+		stmt.close();
+		conn = QueryMetrics.instrument(conn);
+		lastUsed.put(conn, System.currentTimeMillis());
+		return conn;
+	}
+
+	private boolean isHealthy(Connection conn) {
+		try {
+			if (conn.isClosed()) {
+				return false;
+			}
+			Long used = lastUsed.get(conn);
+			if (used != null && System.currentTimeMillis() - used < VALIDATE_AFTER_MILLIS) {
+				return true;
+			}
+			Statement stmt = conn.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery("SELECT 1;");
+				boolean ok = rs.next();
+				rs.close();
+				return ok;
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	private void discard(Connection conn) {
+		synchronized (all) {
+			all.remove(conn);
+		}
+		lastUsed.remove(conn);
+		StatementCache.release(conn);
+		try {
+			conn.close();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide, hash-indexed name to id directory for the contributor tables
+ * (NARRATOR, AUTHOR, ARTIST, ACTOR, DIRECTOR, DEVELOPER).
+ *
+ * <p>Each table is read once, on its first lookup, and then kept up to date by
+ * {@link #add(String, String, int)}, which {@code CSE3241app.insertAudiobook} calls once its inserts
+ * commit. A lookup that hits is a single hash probe. Other processes may add contributors the
+ * directory has not seen, so a miss is checked against the database with an indexed
+ * {@code WHERE Name = ?} before -1 is returned, and callers never allocate a second id for a name
+ * that is already there. Misses are rare: they come just before a new contributor is inserted.</p>
+ *
+ * <p>Names match exactly by default. Run with -Dcontributor.normalize=true to match names
+ * ignoring case, accents and repeated whitespace. The index cannot fold names, so in that mode a
+ * miss instead reads the rows added since the table was last read, found by rowid, and then probes
+ * again. That costs the number of new rows, not the size of the table. A row that reused the rowid
+ * of a deleted one is not seen this way until the table is {@link #invalidate invalidated}.</p>
+ */
+public class ContributorDirectory {
+
+	private static final boolean NORMALIZE = Boolean.getBoolean("contributor.normalize");
+
+	private static final Map<String, String> ID_COLUMNS = new HashMap<String, String>();
+	static {
+		ID_COLUMNS.put("NARRATOR", "Narrator_Id");
+		ID_COLUMNS.put("AUTHOR", "Author_Id");
+		ID_COLUMNS.put("ARTIST", "Artist_Id");
+		ID_COLUMNS.put("ACTOR", "Actor_Id");
+		ID_COLUMNS.put("DIRECTOR", "Director_Id");
+		ID_COLUMNS.put("DEVELOPER", "Developer_Id");
+	}
+
+	private static final Map<String, Names> TABLES = new ConcurrentHashMap<String, Names>();
+
+	/**
+	 * Returns the name of the id column of a contributor table.
+	 *
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 * @return the id column, e.g. "Author_Id"
+	 */
+	public static String idColumn(String tableName) {
+		String column = ID_COLUMNS.get(tableName.toUpperCase());
+		if (column == null) {
+			throw new IllegalArgumentException(tableName + " is not a contributor table");
+		}
+		return column;
+	}
+
+	/**
+	 * Finds the id of a contributor by name, loading the table on first use.
+	 *
+	 * @param conn a connection object, used to load the table and to check a miss
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 * @param name the contributor's name
+	 * @return the contributor's id, or -1 if there is no contributor with that name
+	 */
+	public static int findId(Connection conn, String tableName, String name) throws SQLException {
+		Names names = index(conn, tableName);
+		Integer id = names.ids.get(key(name));
+		if (id == null) {
+			id = findMissing(conn, tableName.toUpperCase(), names, name);
+		}
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Records a contributor that was just written to the database.
+	 * Does nothing if the table has not been loaded yet; it will pick the row up when it is.
+	 *
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 * @param name the contributor's name
+	 * @param id the contributor's id
+	 */
+	public static void add(String tableName, String name, int id) {
+		Names names = TABLES.get(tableName.toUpperCase());
+		if (names != null) {
+			names.ids.putIfAbsent(key(name), id);
+		}
+	}
+
+	/**
+	 * Forgets a table so that it is read again on the next lookup, e.g. after a rolled back insert.
+	 *
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 */
+	public static void invalidate(String tableName) {
+		TABLES.remove(tableName.toUpperCase());
+	}
+
+	private static Names index(Connection conn, String tableName) throws SQLException {
+		String table = tableName.toUpperCase();
+		Names names = TABLES.get(table);
+		if (names != null) {
+			return names;
+		}
+		synchronized (TABLES) {
+			names = TABLES.get(table);
+			if (names == null) {
+				names = new Names();
+				readNew(conn, table, names);
+				TABLES.put(table, names);
+			}
+			return names;
+		}
+	}
+
+	/**
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 * @return the query that finds the lowest id with a name, the name its only parameter
+	 */
+	static String findSql(String tableName) {
+		String column = idColumn(tableName);
+		return "SELECT " + column + " FROM " + tableName.toUpperCase() + " WHERE Name = ? ORDER BY Name, " + column + " LIMIT 1;";
+	}
+
+	/**
+	 * Finds the id of a contributor from inside a write transaction. What it reads there may still be
+	 * rolled back, so unlike {@link #findId} it remembers nothing; the caller {@link #add adds} what it
+	 * used once the transaction commits.
+	 *
+	 * @param conn the connection the transaction runs on
+	 * @param tableName a contributor table, e.g. "AUTHOR"
+	 * @param name the contributor's name
+	 * @return the contributor's id, or -1 if there is no contributor with that name
+	 */
+	public static int findInTransaction(Connection conn, String tableName, String name) throws SQLException {
+		String table = tableName.toUpperCase();
+		Names names = TABLES.get(table);
+		Integer id = names == null ? null : names.ids.get(key(name));
+		if (id == null && NORMALIZE) {
+			// Read what was added since the directory last looked, into a copy that is thrown away.
+			Names added = new Names();
+			added.lastRowid = names == null ? Long.MIN_VALUE : names.lastRowid;
+			readNew(conn, table, added);
+			id = added.ids.get(key(name));
+		} else if (id == null) {
+			id = query(conn, table, name);
+		}
+		return id == null ? -1 : id;
+	}
+
+	/**
+	 * Looks a name the directory does not know up in the database, in case another process added it.
+	 */
+	private static Integer findMissing(Connection conn, String table, Names names, String name) throws SQLException {
+		if (NORMALIZE) {
+			synchronized (names) {
+				readNew(conn, table, names);
+			}
+			return names.ids.get(key(name));
+		}
+		Integer id = query(conn, table, name);
+		if (id != null) {
+			add(table, name, id);
+		}
+		return id;
+	}
+
+	private static Integer query(Connection conn, String table, String name) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, findSql(table));
+		stmt.setString(1, name);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return rs.next() ? rs.getInt(1) : null;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Adds the rows after the last rowid read to a table's names; on a new table, every row.
+	 */
+	private static void readNew(Connection conn, String table, Names names) throws SQLException {
+		String sql = "SELECT rowid, " + idColumn(table) + ", Name FROM " + table + " WHERE rowid > ? ORDER BY rowid;";
+		PreparedStatement stmt = StatementCache.prepare(conn, sql);
+		stmt.setLong(1, names.lastRowid);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			while (rs.next()) {
+				names.lastRowid = rs.getLong(1);
+				int id = rs.getInt(2);
+				String name = rs.getString(3);
+				if (name != null) {
+					// Keep the first id scanned when names repeat, as the old linear search did.
+					names.ids.putIfAbsent(key(name), id);
+				}
+			}
+		} finally {
+			rs.close();
+		}
+	}
+
+	private static class Names {
+		final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		/** The highest rowid read from the table so far. */
+		volatile long lastRowid = Long.MIN_VALUE;
+	}
+
+	private static String key(String name) {
+		if (!NORMALIZE) {
+			return name;
+		}
+		String folded = Normalizer.normalize(name, Normalizer.Form.NFD)
+				.replaceAll("\\p{M}+", "")
+				.replaceAll("\\s+", " ")
+				.trim();
+		return folded.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,419 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Exports every table and view of the database, as of one moment, to gzipped CSV files.
+ *
+ * <p>Each worker thread reads on its own connection, so the tables are read and compressed in
+ * parallel. The copy must still match a single moment. While the workers open their read
+ * transactions, the export holds SQLite's write lock (BEGIN IMMEDIATE), so no write can commit in
+ * between and every worker sees the same WAL snapshot. The lock is then released, and writers carry
+ * on while the workers read. Each worker keeps its snapshot until it is done, so the files agree with
+ * each other however long the export takes. Nothing else runs under the lock: the list of objects,
+ * their sizes and the manifest's version and Seq are read from the first worker's snapshot
+ * afterwards.</p>
+ *
+ * <p>Views come first, then tables from the largest down, so the slow ones do not start last. Each
+ * object goes to {@code NAME.csv.gz} with a header row. {@code manifest.json} is written last, so a
+ * directory without one holds an unfinished export. The manifest lists every file with its row count,
+ * size, time and columns. It also records the schema version and the change log Seq the snapshot
+ * includes. A downstream copy loaded from the files can therefore follow the {@link ChangeLog} from
+ * that Seq.</p>
+ *
+ * <p>Usage: {@code java DatabaseExport DIR [THREADS]} exports into DIR and prints each object's
+ * throughput.</p>
+ */
+public class DatabaseExport {
+
+	/** Worker threads, and read connections. Override with -Dexport.threads=N. */
+	public static final int THREADS = Integer.getInteger("export.threads", 4);
+
+	/**
+	 * Whether views are exported too. The stock views regroup every item on each read and take minutes
+	 * at a million items, so backups that only need the tables can turn them off. Override with
+	 * -Dexport.views=false.
+	 */
+	public static final boolean VIEWS = Boolean.parseBoolean(System.getProperty("export.views", "true"));
+
+	/** gzip level from 1 (fastest) to 9 (smallest). Override with -Dexport.gzip.level=N. */
+	public static final int GZIP_LEVEL = Integer.getInteger("export.gzip.level", Deflater.BEST_SPEED);
+
+	/** Every table and view, leaving out SQLite's own tables and full-text indexes, views first. */
+	static final String OBJECTS_SQL = "SELECT type, name FROM sqlite_master AS O\n" +
+			"WHERE type IN ('table', 'view') AND name NOT LIKE 'sqlite!_%' ESCAPE '!'\n" +
+			"AND sql NOT LIKE 'CREATE VIRTUAL %'\n" +
+			"AND NOT EXISTS (SELECT 1 FROM sqlite_master AS V\n" +
+			"    WHERE V.sql LIKE 'CREATE VIRTUAL %' AND O.name LIKE V.name || '!_%' ESCAPE '!')\n" +
+			"ORDER BY type DESC, name;\n";
+
+	static final String CHANGE_SEQ_SQL = "SELECT IFNULL((SELECT seq FROM sqlite_sequence WHERE name = 'CHANGE_LOG'), 0);";
+
+	private static final String[] REPORT_COLUMNS = {"Name", "Type", "Rows", "KB", "Millis", "Rows_per_sec"};
+	private static final int[] REPORT_TYPES = {Types.VARCHAR, Types.VARCHAR, Types.INTEGER, Types.INTEGER, Types.INTEGER, Types.INTEGER};
+
+	private DatabaseExport() {
+	}
+
+	/**
+	 * Exports every table and view into a directory.
+	 *
+	 * @param databaseFileName the database to export
+	 * @param dir the directory to write to, created if missing
+	 * @param threads the number of tables exported at once
+	 * @return what was written, in the order of the manifest
+	 */
+	public static List<Exported> export(String databaseFileName, final File dir, int threads) throws SQLException, IOException {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Export with at least one thread");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create directory " + dir);
+		}
+		new File(dir, "manifest.json").delete();
+		// One connection holds the write lock while the others open their snapshots.
+		ConnectionPool pool = new ConnectionPool(databaseFileName, threads + 1);
+		List<Connection> readers = new ArrayList<Connection>();
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			final ConcurrentLinkedQueue<String[]> objects = new ConcurrentLinkedQueue<String[]>();
+			long changeSeq;
+			int schemaVersion;
+			long started;
+			Connection lock = pool.borrow();
+			try {
+				Statement stmt = lock.createStatement();
+				try {
+					stmt.execute("BEGIN IMMEDIATE;");
+					try {
+						for (int i = 0; i < threads; i++) {
+							Connection reader = pool.borrow();
+							readers.add(reader);
+							Statement begin = reader.createStatement();
+							try {
+								begin.execute("BEGIN;");
+								// A read transaction takes its snapshot at its first read.
+								longValue(begin, "SELECT COUNT(*) FROM sqlite_master;");
+							} finally {
+								begin.close();
+							}
+						}
+					} finally {
+						stmt.execute("ROLLBACK;");
+					}
+				} finally {
+					stmt.close();
+				}
+				// Everything else is read from the first reader's snapshot, after the lock is released.
+				Statement snapshot = readers.get(0).createStatement();
+				try {
+					objects.addAll(largestFirst(snapshot));
+					schemaVersion = (int) longValue(snapshot, "PRAGMA user_version;");
+					changeSeq = longValue(snapshot, CHANGE_SEQ_SQL);
+				} finally {
+					snapshot.close();
+				}
+				started = System.nanoTime();
+			} finally {
+				pool.release(lock);
+			}
+
+			List<Future<List<Exported>>> workers = new ArrayList<Future<List<Exported>>>();
+			for (final Connection reader : readers) {
+				workers.add(executor.submit(new Callable<List<Exported>>() {
+					@Override
+					public List<Exported> call() throws SQLException, IOException {
+						List<Exported> done = new ArrayList<Exported>();
+						String[] object;
+						while ((object = objects.poll()) != null) {
+							done.add(exportObject(reader, object[0], object[1], dir));
+						}
+						return done;
+					}
+				}));
+			}
+			List<Exported> exported = new ArrayList<Exported>();
+			for (Future<List<Exported>> worker : workers) {
+				exported.addAll(await(worker));
+			}
+			Collections.sort(exported, new Comparator<Exported>() {
+				@Override
+				public int compare(Exported a, Exported b) {
+					return a.name.compareTo(b.name);
+				}
+			});
+			writeManifest(new File(dir, "manifest.json"), databaseFileName, schemaVersion, changeSeq,
+					(System.nanoTime() - started) / 1000000, exported);
+			return exported;
+		} finally {
+			executor.shutdownNow();
+			for (Connection reader : readers) {
+				try {
+					Statement end = reader.createStatement();
+					try {
+						end.execute("COMMIT;");
+					} finally {
+						end.close();
+					}
+				} catch (SQLException e) {
+					// The connection is closed with the pool anyway.
+				}
+				pool.release(reader);
+			}
+			pool.close();
+		}
+	}
+
+	/**
+	 * Views, then tables by their row count. COUNT(*) works for WITHOUT ROWID tables too, and
+	 * SQLite answers it from the smallest index.
+	 */
+	private static List<String[]> largestFirst(Statement stmt) throws SQLException {
+		List<String[]> objects = new ArrayList<String[]>();
+		ResultSet rs = stmt.executeQuery(OBJECTS_SQL);
+		try {
+			while (rs.next()) {
+				if (VIEWS || !rs.getString(1).equals("view")) {
+					objects.add(new String[] {rs.getString(1), rs.getString(2)});
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		final List<Long> sizes = new ArrayList<Long>();
+		for (String[] object : objects) {
+			sizes.add(object[0].equals("view") ? Long.MAX_VALUE
+					: longValue(stmt, "SELECT COUNT(*) FROM " + quote(object[1]) + ";"));
+		}
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < objects.size(); i++) {
+			order.add(i);
+		}
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(sizes.get(b), sizes.get(a));
+			}
+		});
+		List<String[]> sorted = new ArrayList<String[]>();
+		for (int i : order) {
+			sorted.add(objects.get(i));
+		}
+		return sorted;
+	}
+
+	private static Exported exportObject(Connection conn, String type, String name, File dir) throws SQLException, IOException {
+		File file = new File(dir, name + ".csv.gz");
+		long start = System.nanoTime();
+		OutputStream gzip = new GZIPOutputStream(new FileOutputStream(file), 1 << 16) {
+			{
+				def.setLevel(GZIP_LEVEL);
+			}
+		};
+		ResultWriter out = ResultWriter.forFormat("csv", Channels.newChannel(gzip));
+		long rows;
+		String[][] columns;
+		try {
+			Statement stmt = conn.createStatement();
+			try {
+				ResultSet rs = stmt.executeQuery("SELECT * FROM " + quote(name) + ";");
+				try {
+					ResultSetMetaData meta = rs.getMetaData();
+					columns = new String[meta.getColumnCount()][];
+					for (int i = 0; i < columns.length; i++) {
+						String declared = meta.getColumnTypeName(i + 1);
+						columns[i] = new String[] {meta.getColumnName(i + 1), declared == null ? "" : declared};
+					}
+					rows = out.write(rs);
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			out.close();
+		}
+		return new Exported(name, type, file, rows, file.length(), System.nanoTime() - start, columns);
+	}
+
+	private static void writeManifest(File file, String databaseFileName, int schemaVersion, long changeSeq,
+			long millis, List<Exported> exported) throws IOException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"database\": ").append(json(new File(databaseFileName).getName()))
+				.append(",\n  \"exported_at\": ").append(json(Instant.now().toString()))
+				.append(",\n  \"schema_version\": ").append(schemaVersion)
+				.append(",\n  \"change_seq\": ").append(changeSeq)
+				.append(",\n  \"format\": \"csv.gz\"")
+				.append(",\n  \"millis\": ").append(millis)
+				.append(",\n  \"objects\": [");
+		for (int i = 0; i < exported.size(); i++) {
+			Exported object = exported.get(i);
+			json.append(i == 0 ? "\n" : ",\n")
+					.append("    {\"name\": ").append(json(object.name))
+					.append(", \"type\": ").append(json(object.type))
+					.append(", \"file\": ").append(json(object.file.getName()))
+					.append(", \"rows\": ").append(object.rows)
+					.append(", \"bytes\": ").append(object.bytes)
+					.append(", \"millis\": ").append(object.nanos / 1000000)
+					.append(", \"columns\": [");
+			for (int c = 0; c < object.columns.length; c++) {
+				json.append(c == 0 ? "" : ", ").append("{\"name\": ").append(json(object.columns[c][0]))
+						.append(", \"type\": ").append(json(object.columns[c][1])).append('}');
+			}
+			json.append("]}");
+		}
+		json.append("\n  ]\n}\n");
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String json(String value) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int) c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static String quote(String identifier) {
+		return "\"" + identifier.replace("\"", "\"\"") + "\"";
+	}
+
+	private static long longValue(Statement stmt, String sql) throws SQLException {
+		ResultSet rs = stmt.executeQuery(sql);
+		try {
+			return rs.next() ? rs.getLong(1) : 0;
+		} finally {
+			rs.close();
+		}
+	}
+
+	private static <T> T await(Future<T> future) throws SQLException, IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while exporting", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException) {
+				throw (SQLException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	/**
+	 * Writes one row per exported object: its rows, size, time and rows per second.
+	 *
+	 * @return the number of rows exported in all
+	 */
+	static long report(List<Exported> exported, ResultWriter out) throws SQLException, IOException {
+		List<Object[]> rows = new ArrayList<Object[]>();
+		long total = 0;
+		for (Exported object : exported) {
+			long millis = object.nanos / 1000000;
+			rows.add(new Object[] {object.name, object.type, Long.valueOf(object.rows), Long.valueOf(object.bytes / 1024),
+					Long.valueOf(millis), Long.valueOf(object.rows * 1000000000L / Math.max(1, object.nanos))});
+			total += object.rows;
+		}
+		out.write(new ResultCache.Rows(REPORT_COLUMNS, REPORT_TYPES, rows, true).replay(null));
+		return total;
+	}
+
+	/**
+	 * One table or view as written to its file.
+	 */
+	public static final class Exported {
+		public final String name;
+		/** "table" or "view". */
+		public final String type;
+		public final File file;
+		public final long rows;
+		/** The size of the compressed file. */
+		public final long bytes;
+		public final long nanos;
+		/** Each column's name and declared type. */
+		final String[][] columns;
+
+		Exported(String name, String type, File file, long rows, long bytes, long nanos, String[][] columns) {
+			this.name = name;
+			this.type = type;
+			this.file = file;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.columns = columns;
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: java DatabaseExport DIR [THREADS]");
+			System.exit(1);
+		}
+		int status = 0;
+		try {
+			// Opening the app's pool brings the schema up to date, so the manifest has the current version.
+			CSE3241app.pool();
+			long start = System.nanoTime();
+			List<Exported> exported = export(CSE3241app.DATABASE, new File(args[0]),
+					args.length > 1 ? Integer.parseInt(args[1]) : THREADS);
+			long millis = (System.nanoTime() - start) / 1000000;
+			long rows = report(exported, ResultWriter.standard());
+			System.out.println(String.format(Locale.ROOT, "# %d objects, %d rows in %d ms (%d rows/s)",
+					exported.size(), rows, millis, rows * 1000 / Math.max(1, millis)));
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			CSE3241app.shutdown();
+		}
+		System.exit(status);
+	}
+}
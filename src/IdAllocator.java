@@ -0,0 +1,239 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out new ids for media and contributors without a SELECT MAX(...)+1 per row.
+ *
+ * <p>Ids are reserved in blocks from the ID_SEQUENCE table, which {@link SchemaMigrator} creates.
+ * A reservation is a {@link WriteQueue} mutation, so it commits in a write transaction and
+ * concurrent loaders, in this process or another, never receive the same id. It never borrows a
+ * pooled connection, so a caller holding one cannot starve it. Within a block ids are handed out
+ * with a single atomic increment. A sequence whose range is used up fails with an SQLException
+ * instead of wrapping or colliding with another media type.</p>
+ *
+ * <p>Reserve ids before opening a write transaction on another connection: SQLite has
+ * one writer, so a reservation made while that transaction is open waits for it. For the same
+ * reason never reserve from inside a mutation, which runs on the writer itself.</p>
+ */
+public class IdAllocator {
+
+	/** Ids reserved per round trip. Override with -Did.block.size=N. */
+	public static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("id.block.size", 32);
+
+	private static final Map<String, Sequence> SEQUENCES = new HashMap<String, Sequence>();
+	static {
+		SEQUENCES.put("AUDIOBOOK", new Sequence("MEDIA", "Media_Id", CSE3241app.MIN_AUDIOBOOK_ID, CSE3241app.MAX_AUDIOBOOK_ID));
+		SEQUENCES.put("MOVIE", new Sequence("MEDIA", "Media_Id", CSE3241app.MIN_MOVIE_ID, CSE3241app.MAX_MOVIE_ID));
+		SEQUENCES.put("GAME", new Sequence("MEDIA", "Media_Id", CSE3241app.MIN_GAME_ID, CSE3241app.MAX_GAME_ID));
+		SEQUENCES.put("ALBUM", new Sequence("MEDIA", "Media_Id", CSE3241app.MIN_ALBUM_ID, CSE3241app.MAX_ALBUM_ID));
+		String[] contributors = {"NARRATOR", "AUTHOR", "ARTIST", "ACTOR", "DIRECTOR", "DEVELOPER"};
+		for (String table : contributors) {
+			SEQUENCES.put(table, new Sequence(table, ContributorDirectory.idColumn(table), 0, Integer.MAX_VALUE - 1));
+		}
+	}
+
+	private final WriteQueue writer;
+	private final int blockSize;
+	private final Map<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+
+	/**
+	 * @param writer the queue reservations are written through
+	 */
+	public IdAllocator(WriteQueue writer) {
+		this(writer, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param writer the queue reservations are written through
+	 * @param blockSize the number of ids reserved per round trip
+	 */
+	public IdAllocator(WriteQueue writer, int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("Block size must be at least 1");
+		}
+		this.writer = writer;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Returns the sequence that allocates Media_Ids for a Type_of_Media.
+	 *
+	 * @param typeOfMedia "Audiobook", "Movie", "Game" or "Album", in any case
+	 * @return the sequence name, e.g. "AUDIOBOOK"
+	 */
+	public static String mediaSequence(String typeOfMedia) throws SQLException {
+		String sequence = typeOfMedia == null ? null : typeOfMedia.toUpperCase();
+		if (sequence == null || !SEQUENCES.containsKey(sequence) || !SEQUENCES.get(sequence).table.equals("MEDIA")) {
+			throw new SQLException("Unknown Type_of_Media: " + typeOfMedia);
+		}
+		return sequence;
+	}
+
+	/**
+	 * Returns the next free id of a sequence.
+	 *
+	 * @param sequence a media type (e.g. "AUDIOBOOK") or a contributor table (e.g. "AUTHOR")
+	 * @return an id no other caller has received
+	 */
+	public int nextId(String sequence) throws SQLException {
+		while (true) {
+			Block block = blocks.get(sequence);
+			if (block != null) {
+				int id = block.next.getAndIncrement();
+				if (id <= block.last) {
+					return id;
+				}
+			}
+			synchronized (this) {
+				if (blocks.get(sequence) == block) {
+					blocks.put(sequence, reserve(sequence, blockSize));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reserves a range of ids for the caller's exclusive use, e.g. for a bulk load.
+	 * The range may be shorter than requested when the sequence is close to its maximum.
+	 *
+	 * @param sequence a media type (e.g. "AUDIOBOOK") or a contributor table (e.g. "AUTHOR")
+	 * @param count the number of ids wanted
+	 * @return the reserved ids, first to last inclusive
+	 */
+	public Block reserve(final String sequence, final int count) throws SQLException {
+		final Sequence seq = SEQUENCES.get(sequence);
+		if (seq == null) {
+			throw new IllegalArgumentException("Unknown id sequence: " + sequence);
+		}
+		return writer.execute(new WriteQueue.Mutation<Block>() {
+			@Override
+			public Block apply(Connection conn) throws SQLException {
+				int next = Math.max(storedNext(conn, sequence), seq.min);
+				// Rows written without the allocator (older tools, hand edits) must not be handed out again.
+				next = Math.max(next, maxInRange(conn, seq) + 1);
+				if (next > seq.max) {
+					throw new SQLException(sequence + " ids are exhausted (range " + seq.min + ".." + seq.max + ")");
+				}
+				int last = (int) Math.min((long) next + count - 1, seq.max);
+				PreparedStatement update = StatementCache.prepare(conn,
+						"INSERT OR REPLACE INTO ID_SEQUENCE (Name, Next_Id) VALUES (?, ?);");
+				update.setString(1, sequence);
+				update.setLong(2, (long) last + 1);
+				update.executeUpdate();
+				return new Block(next, last);
+			}
+		}, "ID_SEQUENCE");
+	}
+
+	/**
+	 * Returns the unused end of a reserved range to its sequence, if nothing was reserved after it.
+	 * The range must not be used afterwards.
+	 *
+	 * @param sequence the sequence the range was reserved from
+	 * @param block a range returned by {@link #reserve(String, int)}
+	 */
+	public void giveBack(final String sequence, final Block block) throws SQLException {
+		final int first = block.next.getAndSet(block.last + 1);
+		if (first > block.last) {
+			return;
+		}
+		writer.execute(new WriteQueue.Mutation<Integer>() {
+			@Override
+			public Integer apply(Connection conn) throws SQLException {
+				PreparedStatement stmt = StatementCache.prepare(conn,
+						"UPDATE ID_SEQUENCE SET Next_Id = ? WHERE Name = ? AND Next_Id = ?;");
+				stmt.setInt(1, first);
+				stmt.setString(2, sequence);
+				stmt.setLong(3, (long) block.last + 1);
+				return stmt.executeUpdate();
+			}
+		}, "ID_SEQUENCE");
+	}
+
+	/**
+	 * Gives back the unused part of every block held by {@link #nextId(String)}. Call before shutting down,
+	 * and before the writer is closed, so small ranges such as the 1000 audiobook ids are not used up by
+	 * process restarts.
+	 */
+	public synchronized void close() {
+		for (Map.Entry<String, Block> entry : blocks.entrySet()) {
+			try {
+				giveBack(entry.getKey(), entry.getValue());
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+		blocks.clear();
+	}
+
+	private static int storedNext(Connection conn, String sequence) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, "SELECT Next_Id FROM ID_SEQUENCE WHERE Name = ?;");
+		stmt.setString(1, sequence);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return rs.next() ? (int) Math.min(rs.getLong(1), Integer.MAX_VALUE) : Integer.MIN_VALUE;
+		} finally {
+			rs.close();
+		}
+	}
+
+	private static int maxInRange(Connection conn, Sequence seq) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn,
+				"SELECT MAX(" + seq.column + ") FROM " + seq.table + " WHERE " + seq.column + " BETWEEN ? AND ?;");
+		stmt.setInt(1, seq.min);
+		stmt.setInt(2, seq.max);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			if (rs.next()) {
+				int max = rs.getInt(1);
+				if (!rs.wasNull()) {
+					return max;
+				}
+			}
+			return seq.min - 1;
+		} finally {
+			rs.close();
+		}
+	}
+
+	private static class Sequence {
+		final String table;
+		final String column;
+		final int min;
+		final int max;
+
+		Sequence(String table, String column, int min, int max) {
+			this.table = table;
+			this.column = column;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	/**
+	 * A reserved, inclusive range of ids.
+	 */
+	public static class Block {
+		final AtomicInteger next;
+		final int last;
+
+		Block(int first, int last) {
+			this.next = new AtomicInteger(first);
+			this.last = last;
+		}
+
+		/**
+		 * @return the next id of the range, or -1 once the range is used up
+		 */
+		public int next() {
+			int id = next.getAndIncrement();
+			return id <= last ? id : -1;
+		}
+	}
+}
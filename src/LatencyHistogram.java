@@ -0,0 +1,112 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free histogram of latencies in microseconds, in the style of HdrHistogram.
+ *
+ * <p>Values below 128 get a bucket each; above that every power of two is split into 64 buckets,
+ * so a recorded value is off by less than 1/64 (about 1.6%) whatever its size. The whole range up to
+ * about 25 days fits in a little over two thousand counters, and recording is one array increment.</p>
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR_BUCKETS = 128;
+	private static final int SUB_BUCKETS = 64;
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int MAX_SHIFT = 34;
+
+	private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Adds one value.
+	 *
+	 * @param micros a latency in microseconds; negative values count as 0
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		counts.incrementAndGet(index(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long seen;
+		while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+			// another thread raised the maximum; check again
+		}
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long count() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean in microseconds, 0 if nothing was recorded
+	 */
+	public double mean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @return the largest value recorded, exactly
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the value below which a share of the recorded values fall.
+	 *
+	 * @param percentile between 0 and 100, e.g. 99.9
+	 * @return the top of the bucket holding that value, never more than {@link #max()}
+	 */
+	public long percentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, percentile) / 100));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forgets every recorded value.
+	 */
+	public void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	static int index(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS, MAX_SHIFT);
+		long sub = Math.min(value >>> shift, 2 * SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (sub - SUB_BUCKETS);
+	}
+
+	static long highestValue(int index) {
+		if (index < LINEAR_BUCKETS) {
+			return index;
+		}
+		int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Lists the items that are overdue as of a given date and charges late fees for them.
+ *
+ * <p>This replaces the OVERDUE_ITEMS view, which has its cut-off date written into it and sorts the
+ * whole join by last name on every read. Here the date is a parameter and the rows come in
+ * (Due_date, Item_Id) order straight off the CHECK_OUT_DUE_IDX index (schema migration 3), a page at
+ * a time: each page starts after the key of the last row of the page before, so no page re-reads
+ * the rows ahead of it the way OFFSET would.</p>
+ *
+ * <p>Usage: {@code java OverdueReport [AS_OF]} lists the items overdue on AS_OF (default today), and
+ * {@code java OverdueReport fees AS_OF [SINCE]} charges the fees that built up between SINCE (default
+ * the day before AS_OF) and AS_OF, through {@link CSE3241app#writer()} like every other write.
+ * Dates are YYYY-MM-DD.</p>
+ */
+public class OverdueReport {
+
+	/** Rows per page. Override with -Doverdue.page.size=N. */
+	public static final int PAGE_SIZE = Integer.getInteger("overdue.page.size", 500);
+
+	/** Fee charged per item per day overdue. Override with -Doverdue.fee.per.day=AMOUNT. */
+	public static final double FEE_PER_DAY = Double.parseDouble(System.getProperty("overdue.fee.per.day", "0.25"));
+
+	/** The keys of the next page: at most ? checkouts due before ? that come after (?, ?). */
+	static final String PAGE_KEYS_SQL = "SELECT Due_date, Item_Id\n" +
+			"FROM CHECK_OUT\n" +
+			"WHERE Due_date < ? AND (Due_date, Item_Id) > (?, ?)\n" +
+			"ORDER BY Due_date, Item_Id\n" +
+			"LIMIT ?;\n";
+
+	/** The rows of a page: the overdue checkouts after the first key, up to and including the second. */
+	static final String PAGE_SQL = "SELECT P.First_name, P.Last_name, P.Card_Id, M.Name, C.Item_Id, C.Due_date,\n" +
+			"CAST(julianday(?) - julianday(C.Due_date) AS INTEGER) AS Days_overdue\n" +
+			"FROM CHECK_OUT AS C, PATRON AS P, MEDIA AS M, LIBRARY_ITEM AS L\n" +
+			"WHERE (C.Due_date, C.Item_Id) > (?, ?) AND (C.Due_date, C.Item_Id) <= (?, ?)\n" +
+			"AND P.Card_Id = C.Card_Id AND L.Item_Id = C.Item_Id AND M.Media_Id = L.Media_Id\n" +
+			"ORDER BY C.Due_date, C.Item_Id;\n";
+
+	/**
+	 * Adds to each patron's fees FEE_PER_DAY for every day since ?2 that each of their items has been
+	 * overdue, counting up to ?1. Patrons with nothing overdue are not touched.
+	 */
+	static final String ASSESS_FEES_SQL = "UPDATE PATRON SET Late_fees = IFNULL(Late_fees, 0) + (\n" +
+			"SELECT ROUND(SUM(julianday(?1) - MAX(julianday(C.Due_date), julianday(?2))) * ?3, 2)\n" +
+			"FROM CHECK_OUT AS C\n" +
+			"WHERE C.Card_Id = PATRON.Card_Id AND C.Due_date < ?1)\n" +
+			"WHERE Card_Id IN (SELECT Card_Id FROM CHECK_OUT WHERE Due_date < ?1);\n";
+
+	/**
+	 * The position of a row in the report: its due date and item id.
+	 */
+	public static class Key {
+		/** The key before the first row; every due date sorts after the empty string. */
+		public static final Key START = new Key("", -1);
+
+		final String dueDate;
+		final int itemId;
+
+		public Key(String dueDate, int itemId) {
+			this.dueDate = dueDate;
+			this.itemId = itemId;
+		}
+
+		@Override
+		public String toString() {
+			return dueDate + "/" + itemId;
+		}
+	}
+
+	/**
+	 * Writes every item overdue as of a date, one page at a time.
+	 *
+	 * @param conn a connection object
+	 * @param asOf the report date, YYYY-MM-DD; items due before it are overdue
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long write(Connection conn, String asOf, ResultWriter out) throws SQLException, IOException {
+		long rows = 0;
+		Key key = Key.START;
+		while (true) {
+			Key last = lastKeyOfPage(conn, asOf, key, PAGE_SIZE);
+			if (last == null) {
+				break;
+			}
+			rows += writePage(conn, asOf, key, last, out, key == Key.START);
+			key = last;
+		}
+		if (rows == 0) {
+			// Still print the header so an empty report looks like one.
+			rows = writePage(conn, asOf, Key.START, Key.START, out, true);
+		}
+		return rows;
+	}
+
+	/**
+	 * Finds where a page ends.
+	 *
+	 * @param conn a connection object
+	 * @param asOf the report date, YYYY-MM-DD
+	 * @param after the key of the last row of the previous page, or {@link Key#START}
+	 * @param pageSize the most rows the page may hold
+	 * @return the key of the last row on the page, or null if there are no more rows
+	 */
+	public static Key lastKeyOfPage(Connection conn, String asOf, Key after, int pageSize) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, PAGE_KEYS_SQL);
+		stmt.setString(1, date(asOf));
+		stmt.setString(2, after.dueDate);
+		stmt.setInt(3, after.itemId);
+		stmt.setInt(4, pageSize);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			Key last = null;
+			while (rs.next()) {
+				last = new Key(rs.getString(1), rs.getInt(2));
+			}
+			return last;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Writes the rows of one page.
+	 *
+	 * @param conn a connection object
+	 * @param asOf the report date, YYYY-MM-DD
+	 * @param after the key of the last row of the previous page, or {@link Key#START}
+	 * @param last the key of the last row of this page, from {@link #lastKeyOfPage}
+	 * @param out where the rows are written
+	 * @param header whether to write the header first
+	 * @return the number of rows written
+	 */
+	public static long writePage(Connection conn, String asOf, Key after, Key last, ResultWriter out, boolean header)
+			throws SQLException, IOException {
+		PreparedStatement stmt = StatementCache.prepare(conn, PAGE_SQL);
+		stmt.setString(1, date(asOf));
+		stmt.setString(2, after.dueDate);
+		stmt.setInt(3, after.itemId);
+		stmt.setString(4, last.dueDate);
+		stmt.setInt(5, last.itemId);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return out.write(rs, header);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Charges late fees for the days between two dates in a single UPDATE.
+	 *
+	 * <p>An item due on D adds {@link #FEE_PER_DAY} for each day from the later of D and
+	 * {@code since} up to {@code asOf}. Running this once a day with {@code since} set to the previous
+	 * run's date charges each overdue day exactly once.</p>
+	 *
+	 * @param conn a connection object
+	 * @param asOf the date fees are charged up to, YYYY-MM-DD
+	 * @param since the date fees were last charged up to, YYYY-MM-DD, not after asOf
+	 * @return the number of patrons charged
+	 */
+	public static int assessFees(Connection conn, String asOf, String since) throws SQLException {
+		asOf = date(asOf);
+		since = date(since);
+		if (since.compareTo(asOf) > 0) {
+			throw new IllegalArgumentException("Fees since " + since + " cannot be charged up to the earlier date " + asOf);
+		}
+		PreparedStatement stmt = StatementCache.prepare(conn, ASSESS_FEES_SQL);
+		stmt.setString(1, asOf);
+		stmt.setString(2, since);
+		stmt.setDouble(3, FEE_PER_DAY);
+		return stmt.executeUpdate();
+	}
+
+	/**
+	 * Checks a date and returns it in the YYYY-MM-DD form CHECK_OUT stores.
+	 */
+	static String date(String text) {
+		return parse(text).toString();
+	}
+
+	/**
+	 * @return the day before a date, YYYY-MM-DD
+	 */
+	static String dayBefore(String text) {
+		return parse(text).minusDays(1).toString();
+	}
+
+	private static LocalDate parse(String text) {
+		try {
+			return LocalDate.parse(text.trim());
+		} catch (DateTimeParseException e) {
+			throw new IllegalArgumentException("'" + text + "' is not a YYYY-MM-DD date");
+		}
+	}
+
+	public static void main(String[] args) {
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			if (args.length > 0 && args[0].equals("fees")) {
+				if (args.length < 2 || args.length > 3) {
+					System.out.println("Usage: java OverdueReport fees AS_OF [SINCE]");
+					status = 1;
+				} else {
+					final String asOf = args[1];
+					final String since = args.length > 2 ? args[2] : dayBefore(asOf);
+					int patrons = CSE3241app.writer().execute(new WriteQueue.Mutation<Integer>() {
+						@Override
+						public Integer apply(Connection writerConn) throws SQLException {
+							return assessFees(writerConn, asOf, since);
+						}
+					}, "PATRON");
+					PatronSummary.invalidateAll();
+					System.out.println("Charged late fees from " + date(since) + " to " + date(asOf) + " to " + patrons + " patrons.");
+				}
+			} else {
+				conn = pool.borrow();
+				write(conn, args.length > 0 ? args[0] : LocalDate.now().toString(), ResultWriter.standard());
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			CSE3241app.shutdown();
+		}
+		System.exit(status);
+	}
+}
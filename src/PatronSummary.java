@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What the circulation desk shows for a patron: items out per Type_of_Media, how many are overdue,
+ * and late fees.
+ *
+ * <p>The menu's per-patron queries each join four tables to count one type of media. Here one query
+ * walks the patron's CHECK_OUT rows once, through the (Card_Id, Item_Id) primary key, and groups them
+ * by Type_of_Media, so every count comes from a single pass.</p>
+ *
+ * <p>The desk asks about the same few patrons over and over, so summaries are kept for the
+ * -Dpatron.cache.size most recently looked-up patrons (default 10000). {@link CirculationService}
+ * drops a patron's summary once a checkout or return for them commits. Assessing late fees drops
+ * them all. A summary is only good for the day it was made, because items become overdue at
+ * midnight. It is also dropped after -Dpatron.cache.ttl.seconds (default 60), which covers writes
+ * made by other processes. A summary read while any patron's items changed is returned but not
+ * kept, so a slow read cannot put an old summary back after the change dropped it.</p>
+ *
+ * <p>Usage: {@code java PatronSummary CARD_ID} prints the patron's summary.</p>
+ */
+public class PatronSummary {
+
+	/** Patrons whose summaries are kept. Override with -Dpatron.cache.size=N; 0 turns the cache off. */
+	public static final int CACHE_SIZE = Integer.getInteger("patron.cache.size", 10000);
+
+	/** How long a summary is kept. Override with -Dpatron.cache.ttl.seconds=N. */
+	public static final long TTL_MILLIS = Long.getLong("patron.cache.ttl.seconds", 60L) * 1000;
+
+	/** The media types counted separately; the column for each is the type with an s. */
+	static final String[] TYPES = {"Album", "Audiobook", "Game", "Movie"};
+
+	static final String SUMMARY_SQL = "SELECT P.First_name, P.Last_name, IFNULL(P.Late_fees, 0) AS Late_fees,\n" +
+			"M.Type_of_Media, COUNT(C.Item_Id) AS Checked_Out, IFNULL(SUM(C.Due_date < ?), 0) AS Overdue\n" +
+			"FROM PATRON AS P\n" +
+			"LEFT JOIN CHECK_OUT AS C ON C.Card_Id = P.Card_Id\n" +
+			"LEFT JOIN LIBRARY_ITEM AS L ON L.Item_Id = C.Item_Id\n" +
+			"LEFT JOIN MEDIA AS M ON M.Media_Id = L.Media_Id\n" +
+			"WHERE P.Card_Id = ?\n" +
+			"GROUP BY M.Type_of_Media;\n";
+
+	private static final String[] COLUMNS;
+	private static final int[] COLUMN_TYPES;
+	static {
+		String[] fixed = {"Card_Id", "First_name", "Last_name", "Late_fees", "Checked_Out", "Overdue"};
+		COLUMNS = new String[fixed.length + TYPES.length];
+		COLUMN_TYPES = new int[COLUMNS.length];
+		for (int i = 0; i < COLUMNS.length; i++) {
+			COLUMNS[i] = i < fixed.length ? fixed[i] : TYPES[i - fixed.length] + "s";
+			COLUMN_TYPES[i] = i == 0 || i >= 4 ? Types.INTEGER : Types.VARCHAR;
+		}
+	}
+
+	private static final Map<Integer, Summary> CACHE = new LinkedHashMap<Integer, Summary>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Summary> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/** Counts invalidations; a summary read across one is not cached. Guarded by CACHE. */
+	private static long epoch;
+	private static long hits;
+	private static long misses;
+	private static long invalidations;
+
+	private PatronSummary() {
+	}
+
+	/**
+	 * Returns a patron's summary as of today, from the cache when it has one.
+	 *
+	 * @param conn a connection object, used on a cache miss
+	 * @param cardId the patron's card id
+	 * @return the summary
+	 */
+	public static Summary get(Connection conn, int cardId) throws SQLException {
+		LocalDate today = LocalDate.now();
+		long now = System.currentTimeMillis();
+		long readEpoch;
+		synchronized (CACHE) {
+			Summary cached = CACHE.get(cardId);
+			if (cached != null && cached.asOf.equals(today) && now < cached.expires) {
+				hits++;
+				return cached;
+			}
+			misses++;
+			readEpoch = epoch;
+		}
+		Summary summary = load(conn, cardId, today, now + TTL_MILLIS);
+		synchronized (CACHE) {
+			if (epoch == readEpoch && CACHE_SIZE > 0) {
+				CACHE.put(cardId, summary);
+			}
+		}
+		return summary;
+	}
+
+	/**
+	 * Reads a patron's summary from the database.
+	 *
+	 * @param conn a connection object
+	 * @param cardId the patron's card id
+	 * @param asOf items due before this day are overdue
+	 * @param expires when the summary is dropped from the cache, in epoch millis
+	 * @return the summary
+	 */
+	static Summary load(Connection conn, int cardId, LocalDate asOf, long expires) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, SUMMARY_SQL);
+		stmt.setString(1, asOf.toString());
+		stmt.setInt(2, cardId);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			if (!rs.next()) {
+				throw new IllegalArgumentException("No patron has card " + cardId);
+			}
+			String firstName = rs.getString(1);
+			String lastName = rs.getString(2);
+			double lateFees = rs.getDouble(3);
+			int checkedOut = 0;
+			int overdue = 0;
+			int[] byType = new int[TYPES.length];
+			do {
+				String type = rs.getString(4);
+				int count = rs.getInt(5);
+				checkedOut += count;
+				overdue += rs.getInt(6);
+				for (int i = 0; i < TYPES.length; i++) {
+					if (TYPES[i].equalsIgnoreCase(type)) {
+						byType[i] += count;
+					}
+				}
+			} while (rs.next());
+			return new Summary(cardId, firstName, lastName, lateFees, checkedOut, overdue, byType, asOf, expires);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Writes a patron's summary as one row: Card_Id, First_name, Last_name, Late_fees, Checked_Out,
+	 * Overdue, then a count for each of Albums, Audiobooks, Games and Movies.
+	 *
+	 * @param conn a connection object, used on a cache miss
+	 * @param cardId the patron's card id
+	 * @param out where the row is written
+	 * @return the number of rows written
+	 */
+	public static long write(Connection conn, int cardId, ResultWriter out) throws SQLException, IOException {
+		Summary summary = get(conn, cardId);
+		Object[] row = new Object[COLUMNS.length];
+		row[0] = Long.valueOf(summary.cardId);
+		row[1] = summary.firstName;
+		row[2] = summary.lastName;
+		row[3] = String.format(Locale.ROOT, "%.2f", summary.lateFees);
+		row[4] = Long.valueOf(summary.checkedOut);
+		row[5] = Long.valueOf(summary.overdue);
+		for (int i = 0; i < TYPES.length; i++) {
+			row[6 + i] = Long.valueOf(summary.checkedOut(TYPES[i]));
+		}
+		List<Object[]> rows = new ArrayList<Object[]>();
+		rows.add(row);
+		return out.write(new ResultCache.Rows(COLUMNS, COLUMN_TYPES, rows, true).replay(null));
+	}
+
+	/**
+	 * Drops a patron's summary; call once a change to their checkouts or fees has committed.
+	 *
+	 * @param cardId the patron's card id
+	 */
+	public static void invalidate(int cardId) {
+		synchronized (CACHE) {
+			CACHE.remove(cardId);
+			epoch++;
+			invalidations++;
+		}
+	}
+
+	/**
+	 * Drops every summary, after a change to many patrons such as assessing late fees.
+	 */
+	public static void invalidateAll() {
+		synchronized (CACHE) {
+			CACHE.clear();
+			epoch++;
+			invalidations++;
+		}
+	}
+
+	/**
+	 * @return a one-line summary of cache hits, misses and invalidations
+	 */
+	public static String totals() {
+		synchronized (CACHE) {
+			return "patron cache: " + hits + " hits, " + misses + " misses, " + invalidations + " invalidated, "
+					+ CACHE.size() + " entries";
+		}
+	}
+
+	/**
+	 * One patron's items out and fees on one day.
+	 */
+	public static final class Summary {
+		public final int cardId;
+		public final String firstName;
+		public final String lastName;
+		public final double lateFees;
+		/** Items out of every type. */
+		public final int checkedOut;
+		/** Items out that were due before {@link #asOf}. */
+		public final int overdue;
+		/** Items out per entry of {@link PatronSummary#TYPES}. */
+		private final int[] byType;
+		public final LocalDate asOf;
+		final long expires;
+
+		Summary(int cardId, String firstName, String lastName, double lateFees, int checkedOut, int overdue,
+				int[] byType, LocalDate asOf, long expires) {
+			this.cardId = cardId;
+			this.firstName = firstName;
+			this.lastName = lastName;
+			this.lateFees = lateFees;
+			this.checkedOut = checkedOut;
+			this.overdue = overdue;
+			this.byType = byType;
+			this.asOf = asOf;
+			this.expires = expires;
+		}
+
+		/**
+		 * @param type a Type_of_Media, e.g. "Album"
+		 * @return the patron's items out of that type
+		 */
+		public int checkedOut(String type) {
+			for (int i = 0; i < TYPES.length; i++) {
+				if (TYPES[i].equalsIgnoreCase(type)) {
+					return byType[i];
+				}
+			}
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java PatronSummary CARD_ID");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			write(conn, Integer.parseInt(args[0]), ResultWriter.standard());
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
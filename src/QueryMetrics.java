@@ -0,0 +1,486 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per-query timing, row counts and a slow-query log for every statement run on a pooled connection.
+ *
+ * <p>{@link ConnectionPool} hands out connections wrapped by {@link #instrument(Connection)}. The
+ * wrapper times each execute call, and for queries also the calls to {@code next()} that fetch the
+ * rows, since SQLite does most of a query's work while stepping through it. Everything is recorded
+ * when the ResultSet is exhausted or closed, keyed by SQL text: a latency histogram, execute and fetch
+ * time, rows, errors, and the statement cache's hits and misses for that SQL.</p>
+ *
+ * <p>A statement whose execute plus fetch time reaches -Dslow.query.ms (default 100) is written to
+ * -Dslow.query.log (default slow-queries.log) with its bound parameters and its EXPLAIN QUERY PLAN.
+ * The numbers are available over JMX as CSE3241app:type=QueryMetrics, and with
+ * -Dmetrics.dump.seconds=N a text report is printed to standard error every N seconds. Run with
+ * -Dmetrics=false to hand out plain connections instead.</p>
+ */
+public class QueryMetrics implements QueryMetricsMBean {
+
+	/** Whether connections are instrumented. Turn off with -Dmetrics=false. */
+	public static final boolean ENABLED = !"false".equals(System.getProperty("metrics"));
+
+	/** Where slow queries are logged. Override with -Dslow.query.log=PATH. */
+	public static final String SLOW_QUERY_LOG = System.getProperty("slow.query.log", "slow-queries.log");
+
+	/** The JMX name the metrics are registered under. */
+	public static final String OBJECT_NAME = "CSE3241app:type=QueryMetrics";
+
+	private static final QueryMetrics INSTANCE = new QueryMetrics();
+
+	private static volatile long slowQueryMillis = Long.getLong("slow.query.ms", 100L);
+
+	private static boolean started = false;
+
+	private final Map<String, Stats> queries = new ConcurrentHashMap<String, Stats>();
+	private final AtomicLong slowQueries = new AtomicLong();
+
+	/**
+	 * What has been recorded for one SQL text.
+	 */
+	static class Stats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong rows = new AtomicLong();
+		final AtomicLong executeNanos = new AtomicLong();
+		final AtomicLong fetchNanos = new AtomicLong();
+		final AtomicLong cacheHits = new AtomicLong();
+		final AtomicLong cacheMisses = new AtomicLong();
+	}
+
+	/**
+	 * @return the process-wide metrics
+	 */
+	public static QueryMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Registers the MBean and starts the periodic dump, once per process.
+	 */
+	public static synchronized void start() {
+		if (!ENABLED || started) {
+			return;
+		}
+		started = true;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			System.out.println("Query metrics are not available over JMX: " + e.getMessage());
+		}
+		final long seconds = Long.getLong("metrics.dump.seconds", 0L);
+		if (seconds > 0) {
+			Thread dumper = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							Thread.sleep(seconds * 1000);
+							INSTANCE.dump(System.err);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}, "query-metrics-dump");
+			dumper.setDaemon(true);
+			dumper.start();
+		}
+	}
+
+	/**
+	 * Wraps a connection so that every statement prepared or created on it is measured.
+	 *
+	 * @param conn a connection object
+	 * @return the instrumented connection, or conn itself when metrics are off
+	 */
+	public static Connection instrument(Connection conn) {
+		if (!ENABLED) {
+			return conn;
+		}
+		return (Connection) Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new ConnectionHandler(conn));
+	}
+
+	/**
+	 * Counts a statement cache lookup against its SQL text; called by {@link StatementCache}.
+	 */
+	static void cacheLookup(String sql, boolean hit) {
+		if (ENABLED) {
+			Stats stats = INSTANCE.stats(sql);
+			(hit ? stats.cacheHits : stats.cacheMisses).incrementAndGet();
+		}
+	}
+
+	private Stats stats(String sql) {
+		Stats stats = queries.get(sql);
+		if (stats == null) {
+			Stats created = new Stats();
+			stats = queries.putIfAbsent(sql, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Records one finished statement and logs it if it was slow.
+	 */
+	private void record(Connection conn, String sql, Object[] parameters, long executeNanos, long fetchNanos, long rows) {
+		Stats stats = stats(sql);
+		stats.latency.record((executeNanos + fetchNanos) / 1000);
+		stats.executeNanos.addAndGet(executeNanos);
+		stats.fetchNanos.addAndGet(fetchNanos);
+		stats.rows.addAndGet(Math.max(0, rows));
+		if ((executeNanos + fetchNanos) / 1000000 >= slowQueryMillis) {
+			slowQueries.incrementAndGet();
+			logSlowQuery(conn, sql, parameters, executeNanos, fetchNanos, rows);
+		}
+	}
+
+	private void logSlowQuery(Connection conn, String sql, Object[] parameters, long executeNanos, long fetchNanos, long rows) {
+		StringBuilder entry = new StringBuilder();
+		entry.append(LocalDateTime.now()).append(' ').append(millis(executeNanos + fetchNanos)).append(" ms (execute ")
+				.append(millis(executeNanos)).append(" ms, fetch ").append(millis(fetchNanos)).append(" ms, ")
+				.append(rows).append(" rows)\n");
+		entry.append("  SQL: ").append(oneLine(sql)).append('\n');
+		entry.append("  Parameters: ").append(parameters == null ? "[]" : Arrays.toString(parameters)).append('\n');
+		entry.append("  Plan:\n");
+		for (String step : plan(conn, sql, parameters)) {
+			entry.append("    ").append(step).append('\n');
+		}
+		synchronized (this) {
+			try {
+				Writer log = new FileWriter(SLOW_QUERY_LOG, true);
+				try {
+					log.write(entry.toString());
+				} finally {
+					log.close();
+				}
+			} catch (IOException e) {
+				System.out.println("Could not write the slow query log: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Explains a statement on the connection it ran on, with the same parameters.
+	 */
+	private static List<String> plan(Connection conn, String sql, Object[] parameters) {
+		List<String> steps = new ArrayList<String>();
+		try {
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+			try {
+				int count = stmt.getParameterMetaData().getParameterCount();
+				for (int i = 1; i <= count; i++) {
+					stmt.setObject(i, parameters != null && i <= parameters.length ? parameters[i - 1] : null);
+				}
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					steps.add(rs.getString(4));
+				}
+				rs.close();
+			} finally {
+				stmt.close();
+			}
+		} catch (SQLException e) {
+			steps.add("(no plan: " + e.getMessage() + ")");
+		}
+		return steps;
+	}
+
+	/**
+	 * Writes one line per query, slowest 99th percentile first.
+	 *
+	 * @param out where the report goes
+	 */
+	public void dump(PrintStream out) {
+		out.print(getReport());
+		out.flush();
+	}
+
+	@Override
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%-8s %6s %10s %9s %9s %9s %9s %10s %10s %11s  %s%n", "count", "errors", "rows",
+				"p50 ms", "p90 ms", "p99 ms", "max ms", "exec ms", "fetch ms", "cache h/m", "query"));
+		List<Map.Entry<String, Stats>> entries = new ArrayList<Map.Entry<String, Stats>>(queries.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Stats>>() {
+			@Override
+			public int compare(Map.Entry<String, Stats> a, Map.Entry<String, Stats> b) {
+				return Long.compare(b.getValue().latency.percentile(99), a.getValue().latency.percentile(99));
+			}
+		});
+		for (Map.Entry<String, Stats> entry : entries) {
+			Stats stats = entry.getValue();
+			LatencyHistogram latency = stats.latency;
+			report.append(String.format("%-8d %6d %10d %9s %9s %9s %9s %10s %10s %11s  %s%n", latency.count(),
+					stats.errors.get(), stats.rows.get(), millis(latency.percentile(50) * 1000),
+					millis(latency.percentile(90) * 1000), millis(latency.percentile(99) * 1000),
+					millis(latency.max() * 1000), millis(stats.executeNanos.get()), millis(stats.fetchNanos.get()),
+					stats.cacheHits.get() + "/" + stats.cacheMisses.get(), abbreviate(oneLine(entry.getKey()), 80)));
+		}
+		report.append(StatementCache.totals()).append(", ").append(slowQueries.get()).append(" slow queries\n");
+		return report.toString();
+	}
+
+	@Override
+	public String[] getQueries() {
+		return queries.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public long getExecutions() {
+		long total = 0;
+		for (Stats stats : queries.values()) {
+			total += stats.latency.count();
+		}
+		return total;
+	}
+
+	@Override
+	public long getErrors() {
+		long total = 0;
+		for (Stats stats : queries.values()) {
+			total += stats.errors.get();
+		}
+		return total;
+	}
+
+	@Override
+	public long getSlowQueries() {
+		return slowQueries.get();
+	}
+
+	@Override
+	public long getStatementCacheHits() {
+		return StatementCache.totalHits();
+	}
+
+	@Override
+	public long getStatementCacheMisses() {
+		return StatementCache.totalMisses();
+	}
+
+	@Override
+	public long getSlowQueryMillis() {
+		return slowQueryMillis;
+	}
+
+	@Override
+	public void setSlowQueryMillis(long millis) {
+		slowQueryMillis = millis;
+	}
+
+	@Override
+	public double percentileMillis(String sql, double percentile) {
+		Stats stats = queries.get(sql);
+		return stats == null ? 0 : stats.latency.percentile(percentile) / 1000.0;
+	}
+
+	@Override
+	public void reset() {
+		queries.clear();
+		slowQueries.set(0);
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	private static String oneLine(String sql) {
+		return sql.trim().replaceAll("\\s+", " ");
+	}
+
+	private static String abbreviate(String text, int length) {
+		return text.length() <= length ? text : text.substring(0, length - 3) + "...";
+	}
+
+	/**
+	 * Calls through to a JDBC object, unwrapping the reflection exception, and keeps the proxy's
+	 * identity for equals and hashCode so instrumented objects work as map keys.
+	 */
+	private abstract static class Handler implements InvocationHandler {
+		final Object target;
+
+		Handler(Object target) {
+			this.target = target;
+		}
+
+		Object call(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		Object identity(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("equals") && args != null && args.length == 1) {
+				return proxy == args[0];
+			}
+			if (method.getName().equals("hashCode") && args == null) {
+				return System.identityHashCode(proxy);
+			}
+			return null;
+		}
+	}
+
+	private static class ConnectionHandler extends Handler {
+		ConnectionHandler(Connection target) {
+			super(target);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object same = identity(proxy, method, args);
+			if (same != null) {
+				return same;
+			}
+			Object result = call(method, args);
+			if (method.getName().equals("prepareStatement")) {
+				return Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[] {PreparedStatement.class},
+						new StatementHandler((Connection) target, (Statement) result, (String) args[0]));
+			} else if (method.getName().equals("createStatement")) {
+				return Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[] {Statement.class},
+						new StatementHandler((Connection) target, (Statement) result, null));
+			}
+			return result;
+		}
+	}
+
+	private static class StatementHandler extends Handler {
+		private final Connection conn;
+		private final String sql;
+		private Object[] parameters;
+
+		StatementHandler(Connection conn, Statement target, String sql) {
+			super(target);
+			this.conn = conn;
+			this.sql = sql;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object same = identity(proxy, method, args);
+			if (same != null) {
+				return same;
+			}
+			String name = method.getName();
+			if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+				bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+			} else if (name.equals("clearParameters")) {
+				parameters = null;
+			} else if (name.startsWith("execute")) {
+				String text = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : sql;
+				Object[] bound = parameters == null ? null : parameters.clone();
+				long start = System.nanoTime();
+				Object result;
+				try {
+					result = call(method, args);
+				} catch (SQLException e) {
+					INSTANCE.stats(text).errors.incrementAndGet();
+					throw e;
+				}
+				long executeNanos = System.nanoTime() - start;
+				if (result instanceof ResultSet) {
+					return Proxy.newProxyInstance(QueryMetrics.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+							new ResultSetHandler(conn, (ResultSet) result, text, bound, executeNanos));
+				}
+				INSTANCE.record(conn, text, bound, executeNanos, 0, result instanceof Integer ? (Integer) result : 0);
+				return result;
+			}
+			return call(method, args);
+		}
+
+		/**
+		 * Remembers a bound value; parameters[0] holds JDBC parameter 1.
+		 */
+		private void bind(int index, Object value) {
+			if (parameters == null || parameters.length < index) {
+				parameters = Arrays.copyOf(parameters == null ? new Object[0] : parameters, index);
+			}
+			parameters[index - 1] = value;
+		}
+	}
+
+	private static class ResultSetHandler extends Handler {
+		private final Connection conn;
+		private final String sql;
+		private final Object[] parameters;
+		private final long executeNanos;
+		private long fetchNanos = 0;
+		private long rows = 0;
+		private boolean recorded = false;
+
+		ResultSetHandler(Connection conn, ResultSet target, String sql, Object[] parameters, long executeNanos) {
+			super(target);
+			this.conn = conn;
+			this.sql = sql;
+			this.parameters = parameters;
+			this.executeNanos = executeNanos;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object same = identity(proxy, method, args);
+			if (same != null) {
+				return same;
+			}
+			String name = method.getName();
+			if (name.equals("next")) {
+				long start = System.nanoTime();
+				boolean more;
+				try {
+					more = (Boolean) call(method, args);
+				} catch (SQLException e) {
+					INSTANCE.stats(sql).errors.incrementAndGet();
+					throw e;
+				}
+				fetchNanos += System.nanoTime() - start;
+				if (more) {
+					rows++;
+				} else {
+					finish();
+				}
+				return more;
+			} else if (name.equals("close")) {
+				finish();
+			}
+			return call(method, args);
+		}
+
+		private void finish() {
+			if (!recorded) {
+				recorded = true;
+				INSTANCE.record(conn, sql, parameters, executeNanos, fetchNanos, rows);
+			}
+		}
+	}
+}
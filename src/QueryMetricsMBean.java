@@ -0,0 +1,54 @@
+/**
+ * The JMX view of {@link QueryMetrics}, registered as CSE3241app:type=QueryMetrics.
+ */
+public interface QueryMetricsMBean {
+
+	/**
+	 * @return one line per query with its count, errors, rows, latency percentiles, execute and fetch
+	 *         time and statement cache hits and misses
+	 */
+	String getReport();
+
+	/**
+	 * @return the SQL text of every query seen so far
+	 */
+	String[] getQueries();
+
+	/**
+	 * @return the number of statements run
+	 */
+	long getExecutions();
+
+	/**
+	 * @return the number of statements that failed with an SQLException
+	 */
+	long getErrors();
+
+	/**
+	 * @return the number of statements written to the slow query log
+	 */
+	long getSlowQueries();
+
+	long getStatementCacheHits();
+
+	long getStatementCacheMisses();
+
+	/**
+	 * @return the execute plus fetch time, in milliseconds, at which a statement is logged as slow
+	 */
+	long getSlowQueryMillis();
+
+	void setSlowQueryMillis(long millis);
+
+	/**
+	 * @param sql the SQL text, as listed by {@link #getQueries()}
+	 * @param percentile between 0 and 100
+	 * @return the latency of that query at the percentile, in milliseconds
+	 */
+	double percentileMillis(String sql, double percentile);
+
+	/**
+	 * Forgets every recorded statement.
+	 */
+	void reset();
+}
@@ -0,0 +1,162 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs {@code EXPLAIN QUERY PLAN} on registered queries and flags full table scans of large tables.
+ *
+ * <p>A plan step such as "SCAN TABLE MEDIA AS M" or "SCAN L" is a full scan unless it goes through a
+ * covering index. It is flagged when the scanned table holds more rows than the threshold
+ * (-Dplan.scan.threshold, default 1000). Every query the app runs is registered by default; more
+ * can be added with {@link #register(String, String)}.</p>
+ *
+ * <p>Usage: {@code java QueryPlanChecker} prints each plan and exits with status 1 if anything was flagged.</p>
+ */
+public class QueryPlanChecker {
+
+	/** Tables with more rows than this must not be scanned. Override with -Dplan.scan.threshold=N. */
+	public static final long DEFAULT_THRESHOLD = Long.getLong("plan.scan.threshold", 1000L);
+
+	private static final Pattern SCAN = Pattern.compile("^SCAN (?:TABLE )?(\\w+)(?: AS (\\w+))?(.*)$");
+	private static final Pattern ALIAS = Pattern.compile("(\\w+)\\s+AS\\s+(\\w+)", Pattern.CASE_INSENSITIVE);
+
+	private final Map<String, String> queries = new LinkedHashMap<String, String>();
+	private final long threshold;
+
+	/**
+	 * Creates a checker with the app's queries registered.
+	 *
+	 * @param threshold tables with more rows than this must not be scanned
+	 */
+	public QueryPlanChecker(long threshold) {
+		this.threshold = threshold;
+		register("tracks-before", CSE3241app.TRACKS_BEFORE_YEAR_SQL);
+		register("album-copies", CSE3241app.ALBUM_COPIES_SQL);
+		register("patron-albums", CSE3241app.ALBUMS_CHECKED_OUT_SQL);
+		register("patron-games", CSE3241app.GAMES_CHECKED_OUT_SQL);
+		register("patron-summary", PatronSummary.SUMMARY_SQL);
+		register("longest-audiobook", CSE3241app.LONGEST_AUDIOBOOK_SQL);
+		register("digital-album-copies", CSE3241app.DIGITAL_ALBUM_COPIES_SQL);
+		register("stock", StockCounters.STOCK_SQL);
+		register("narrator-by-name", ContributorDirectory.findSql("NARRATOR"));
+		register("author-by-name", ContributorDirectory.findSql("AUTHOR"));
+		register("recommendations", Recommendations.LOOKUP_SQL);
+		register("overdue-keys", OverdueReport.PAGE_KEYS_SQL);
+		register("overdue-page", OverdueReport.PAGE_SQL);
+		register("overdue-fees", OverdueReport.ASSESS_FEES_SQL);
+	}
+
+	/**
+	 * Adds a query to check. Its parameters are bound to NULL when it is explained.
+	 *
+	 * @param name a label for the report
+	 * @param sql the query text
+	 */
+	public void register(String name, String sql) {
+		queries.put(name, sql);
+	}
+
+	/**
+	 * Explains every registered query, printing each plan.
+	 *
+	 * @param conn a connection object
+	 * @return one line per flagged scan, empty if every plan is acceptable
+	 */
+	public List<String> check(Connection conn) throws SQLException {
+		List<String> problems = new ArrayList<String>();
+		Map<String, Long> rowCounts = new HashMap<String, Long>();
+		for (Map.Entry<String, String> query : queries.entrySet()) {
+			String sql = query.getValue();
+			Map<String, String> aliases = aliases(sql);
+			System.out.println(query.getKey() + ":");
+			PreparedStatement stmt = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+			try {
+				for (int i = 1; i <= stmt.getParameterMetaData().getParameterCount(); i++) {
+					stmt.setObject(i, null);
+				}
+				ResultSet rs = stmt.executeQuery();
+				try {
+					while (rs.next()) {
+						String detail = rs.getString(4);
+						System.out.println("    " + detail);
+						Matcher scan = SCAN.matcher(detail);
+						if (!scan.matches() || scan.group(3).contains("COVERING INDEX")) {
+							continue;
+						}
+						String table = aliases.containsKey(scan.group(1).toUpperCase())
+								? aliases.get(scan.group(1).toUpperCase()) : scan.group(1).toUpperCase();
+						long rows = rowCount(conn, table, rowCounts);
+						if (rows > threshold) {
+							problems.add(query.getKey() + ": full scan of " + table + " (" + rows + " rows): " + detail);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				stmt.close();
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * Maps every "TABLE AS ALIAS" in the query from alias to table, upper-cased.
+	 */
+	private static Map<String, String> aliases(String sql) {
+		Map<String, String> aliases = new HashMap<String, String>();
+		Matcher m = ALIAS.matcher(sql);
+		while (m.find()) {
+			aliases.put(m.group(2).toUpperCase(), m.group(1).toUpperCase());
+		}
+		return aliases;
+	}
+
+	private static long rowCount(Connection conn, String table, Map<String, Long> rowCounts) throws SQLException {
+		Long rows = rowCounts.get(table);
+		if (rows == null) {
+			PreparedStatement stmt = conn.prepareStatement("SELECT COUNT(*) FROM " + table + ";");
+			try {
+				ResultSet rs = stmt.executeQuery();
+				rows = rs.next() ? rs.getLong(1) : 0L;
+				rs.close();
+			} catch (SQLException e) {
+				// Not a table, e.g. a view or a subquery alias; nothing to count.
+				rows = 0L;
+			} finally {
+				stmt.close();
+			}
+			rowCounts.put(table, rows);
+		}
+		return rows;
+	}
+
+	public static void main(String[] args) {
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			List<String> problems = new QueryPlanChecker(DEFAULT_THRESHOLD).check(conn);
+			for (String problem : problems) {
+				System.out.println("FULL SCAN: " + problem);
+			}
+			status = problems.isEmpty() ? 0 : 1;
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,571 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves the app's queries over HTTP, with JSON results.
+ *
+ * <p>Endpoints (parameters in the query string, or form-encoded in the body of a POST):</p>
+ * <ul>
+ * <li>{@code GET /tracks-before?artist=ARTIST&year=YEAR}</li>
+ * <li>{@code GET /album-copies?n=N}</li>
+ * <li>{@code GET /actors}</li>
+ * <li>{@code GET /patron-albums?card=CARD_ID}</li>
+ * <li>{@code GET /patron-games?card=CARD_ID}</li>
+ * <li>{@code GET /patron?card=CARD_ID}, the patron's items out per type of media, overdue items and late
+ * fees (see {@link PatronSummary})</li>
+ * <li>{@code GET /digital-album-copies}</li>
+ * <li>{@code GET /longest-audiobook}</li>
+ * <li>{@code GET /list?table=TABLE[&size=N][&cursor=CURSOR]}, one page of ACTOR, ARTIST, TRACK,
+ * PATRON, MEDIA or LIBRARY_ITEM in primary key order; the X-Next-Cursor header, when present, is the
+ * cursor of the next page (see {@link TableLister})</li>
+ * <li>{@code GET /search?q=TEXT[&limit=N]}, titles and names matching every word of TEXT, best first
+ * (see {@link SearchIndex})</li>
+ * <li>{@code GET /typeahead?q=TEXT[&limit=N]}, titles and names most like TEXT, misspellings included,
+ * for search-as-you-type (see {@link Typeahead})</li>
+ * <li>{@code GET /changes?after=SEQ[&limit=N]}, the logged changes after SEQ, oldest first; the
+ * X-Last-Seq header is where the next request continues (see {@link ChangeLog})</li>
+ * <li>{@code GET /recommendations?media=MEDIA_ID}, the titles most often out to the same patrons as
+ * MEDIA_ID, best first (see {@link Recommendations})</li>
+ * <li>{@code POST /audiobooks} with narrator, name, genre, year, length and one author per author
+ * parameter; answers 201 and {@code {"Media_Id":N}}</li>
+ * <li>{@code GET /stats}, the query metrics and this server's request latencies as text</li>
+ * </ul>
+ * <p>Rows come back as a JSON array of objects keyed by column name. Errors are
+ * {@code {"error":"..."}} with status 400 for bad parameters, 404 or 405 for a wrong path or method,
+ * 503 when no connection frees up in time and 500 otherwise.</p>
+ *
+ * <p>Requests are handled on a pool of -Dhttp.threads threads (default 256) fed by a queue of
+ * -Dhttp.queue requests (default 10000); when both are full the accepting thread runs the request
+ * itself, which stops it accepting more. Thousands of clients can be connected while only as many
+ * requests as the ConnectionPool has connections touch the database at once: the rest wait up to
+ * -Dhttp.db.wait.millis (default 5000) and are then turned away with 503 rather than piling up.
+ * Writes go through the app's {@link WriteQueue}.</p>
+ *
+ * <p>Usage: {@code java QueryServer [PORT]} serves on PORT (default -Dhttp.port, 8080) until killed;
+ * {@code java QueryServer load [CLIENTS] [SECONDS] [BASE_URL]} runs CLIENTS concurrent clients
+ * (default 200) against a running server (default http://localhost:8080) for SECONDS (default 10),
+ * each sending a random read request as soon as the last one is answered, and prints the throughput
+ * and latency percentiles.</p>
+ */
+public class QueryServer {
+
+	/** The port served by default. Override with -Dhttp.port=N. */
+	public static final int DEFAULT_PORT = Integer.getInteger("http.port", 8080);
+
+	/** Request handler threads. Override with -Dhttp.threads=N. */
+	public static final int THREADS = Integer.getInteger("http.threads", 256);
+
+	/** Requests queued for a handler thread. Override with -Dhttp.queue=N. */
+	public static final int QUEUE = Integer.getInteger("http.queue", 10000);
+
+	/** How long a request waits for the database. Override with -Dhttp.db.wait.millis=N. */
+	public static final long DB_WAIT_MILLIS = Long.getLong("http.db.wait.millis", 5000L);
+
+	private static final String JSON = "application/json; charset=utf-8";
+
+	static {
+		// The JDK server writes the headers and the body separately; with Nagle's algorithm on, a client
+		// that delays its ACKs holds every keep-alive response up by about 40 ms.
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final Semaphore database;
+	private final HttpServer server;
+	private final ThreadPoolExecutor executor;
+	private final Map<String, Route> routes = new LinkedHashMap<String, Route>();
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final AtomicLong unavailable = new AtomicLong();
+
+	/**
+	 * Binds the port; call {@link #start()} to begin serving.
+	 *
+	 * @param pool the pool queries borrow connections from
+	 * @param port the port, or 0 for any free one
+	 */
+	public QueryServer(ConnectionPool pool, int port) throws IOException {
+		this.pool = pool;
+		this.database = new Semaphore(pool.size(), true);
+		this.server = HttpServer.create(new InetSocketAddress(port), QUEUE);
+		this.executor = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE), new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		server.setExecutor(executor);
+		addRoutes();
+		for (final Map.Entry<String, Route> route : routes.entrySet()) {
+			server.createContext(route.getKey(), new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					serve(exchange, route.getKey(), route.getValue());
+				}
+			});
+		}
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String text = QueryMetrics.get().getReport() + ResultCache.totals() + "\n" + totals() + "\n";
+				send(exchange, 200, "text/plain; charset=utf-8", text.getBytes(StandardCharsets.UTF_8));
+			}
+		});
+	}
+
+	private void addRoutes() {
+		routes.put("/tracks-before", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getTracksBeforeYear(conn, params.string("artist"), params.integer("year"), out);
+			}
+		});
+		routes.put("/album-copies", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getAlbumCopies(conn, params.integer("n"), out);
+			}
+		});
+		routes.put("/actors", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getActors(conn, out);
+			}
+		});
+		routes.put("/patron-albums", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getNumOfAlbumsCheckedOutByPatron(conn, params.integer("card"), out);
+			}
+		});
+		routes.put("/patron-games", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getNumOfGamesCheckedOutByPatron(conn, params.integer("card"), out);
+			}
+		});
+		routes.put("/patron", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return PatronSummary.write(conn, params.integer("card"), out);
+			}
+		});
+		routes.put("/digital-album-copies", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getNumOfDigitalAlbumsCopies(conn, out);
+			}
+		});
+		routes.put("/longest-audiobook", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return CSE3241app.getLongestAudiobook(conn, out);
+			}
+		});
+		routes.put("/list", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				List<String> size = params.all("size");
+				List<String> cursor = params.all("cursor");
+				TableLister.Page page = TableLister.writePage(conn, params.string("table"),
+						size.isEmpty() ? TableLister.PAGE_SIZE : params.integer("size"),
+						cursor.isEmpty() || cursor.get(0).isEmpty() ? null : cursor.get(0), out, true);
+				if (page.next != null) {
+					headers.set("X-Next-Cursor", page.next);
+				}
+				return page.rows;
+			}
+		});
+		routes.put("/search", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return SearchIndex.search(conn, params.string("q"), params.integer("limit", SearchIndex.DEFAULT_LIMIT), out);
+			}
+		});
+		routes.put("/typeahead", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return Typeahead.write(conn, params.string("q"), params.integer("limit", SearchIndex.DEFAULT_LIMIT), out);
+			}
+		});
+		routes.put("/changes", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				ChangeLog.Batch batch = ChangeLog.read(conn, params.longInteger("after"),
+						params.integer("limit", ChangeLog.BATCH_SIZE));
+				headers.set("X-Last-Seq", Long.toString(batch.last));
+				return batch.write(out, true);
+			}
+		});
+		routes.put("/recommendations", new Route("GET") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				return Recommendations.write(conn, params.integer("media"), out);
+			}
+		});
+		routes.put("/audiobooks", new Route("POST") {
+			@Override
+			long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException {
+				List<String> authors = params.all("author");
+				if (authors.isEmpty()) {
+					throw new IllegalArgumentException("At least one author parameter is required");
+				}
+				int id = CSE3241app.insertAudiobook(conn, params.string("narrator"), params.string("name"),
+						params.string("genre"), params.integer("year"), params.integer("length"), authors);
+				return id;
+			}
+
+			@Override
+			int status() {
+				return 201;
+			}
+		});
+	}
+
+	/**
+	 * @return the port being served
+	 */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, waits up to a second for those in flight, then stops the handler threads.
+	 */
+	public void stop() {
+		server.stop(1);
+		executor.shutdown();
+	}
+
+	/**
+	 * @return a one-line summary of requests served and turned away
+	 */
+	public String totals() {
+		return "http: " + latency.count() + " requests, " + unavailable.get() + " turned away for want of a connection, p50 "
+				+ latency.percentile(50) + " us, p99 " + latency.percentile(99) + " us, max " + latency.max() + " us";
+	}
+
+	private void serve(HttpExchange exchange, String path, Route route) throws IOException {
+		long start = System.nanoTime();
+		try {
+			if (!exchange.getRequestURI().getPath().equals(path)) {
+				sendError(exchange, 404, "No such endpoint: " + exchange.getRequestURI().getPath());
+				return;
+			}
+			if (!exchange.getRequestMethod().equalsIgnoreCase(route.method)) {
+				exchange.getResponseHeaders().set("Allow", route.method);
+				sendError(exchange, 405, path + " takes " + route.method);
+				return;
+			}
+			Params params = new Params();
+			params.parse(exchange.getRequestURI().getRawQuery());
+			if (route.method.equals("POST")) {
+				params.parse(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8));
+			}
+			if (!database.tryAcquire(DB_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+				unavailable.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				sendError(exchange, 503, "The database is busy; try again");
+				return;
+			}
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			Connection conn = null;
+			try {
+				conn = pool.borrow();
+				ResultWriter out = ResultWriter.forFormat("json", Channels.newChannel(buffer));
+				long result = route.run(conn, params, out, exchange.getResponseHeaders());
+				if (route.method.equals("POST")) {
+					buffer.write(("{\"Media_Id\":" + result + "}\n").getBytes(StandardCharsets.UTF_8));
+				}
+			} finally {
+				pool.release(conn);
+				database.release();
+			}
+			send(exchange, route.status(), JSON, buffer.toByteArray());
+		} catch (IllegalArgumentException e) {
+			sendError(exchange, 400, e.getMessage());
+		} catch (SQLException e) {
+			sendError(exchange, 500, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			sendError(exchange, 503, "Interrupted");
+		} catch (IOException e) {
+			sendFailure(exchange, e);
+		} catch (RuntimeException e) {
+			sendFailure(exchange, e);
+		} finally {
+			exchange.close();
+			latency.record((System.nanoTime() - start) / 1000);
+		}
+	}
+
+	/**
+	 * Answers 500 for an error no route expected, unless the response has already started. A client
+	 * that went away cannot be told anything, so failing to send is ignored.
+	 */
+	private static void sendFailure(HttpExchange exchange, Exception e) {
+		if (exchange.getResponseCode() != -1) {
+			return;
+		}
+		try {
+			sendError(exchange, 500, e.toString());
+		} catch (IOException ignored) {
+			// The connection is closed in serve's finally block either way.
+		}
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		StringBuilder json = new StringBuilder("{\"error\":\"");
+		String text = message == null ? "" : message;
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				json.append('\\').append(c);
+			} else if (c < 0x20) {
+				json.append(String.format("\\u%04x", (int) c));
+			} else {
+				json.append(c);
+			}
+		}
+		json.append("\"}\n");
+		send(exchange, status, JSON, json.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+		out.close();
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] chunk = new byte[8192];
+		int n;
+		while ((n = in.read(chunk)) > 0) {
+			bytes.write(chunk, 0, n);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * An endpoint: the method it answers and the query it runs.
+	 */
+	private abstract static class Route {
+		final String method;
+
+		Route(String method) {
+			this.method = method;
+		}
+
+		/**
+		 * Runs the query, writing its rows to out and setting any response headers it needs.
+		 *
+		 * @return the number of rows written, or for a POST the new id
+		 */
+		abstract long run(Connection conn, Params params, ResultWriter out, Headers headers) throws SQLException, IOException;
+
+		int status() {
+			return 200;
+		}
+	}
+
+	/**
+	 * Decoded form parameters; a name may appear more than once.
+	 */
+	private static class Params {
+		private final Map<String, List<String>> values = new HashMap<String, List<String>>();
+
+		void parse(String encoded) throws UnsupportedEncodingException {
+			if (encoded == null || encoded.isEmpty()) {
+				return;
+			}
+			for (String pair : encoded.split("&")) {
+				if (pair.isEmpty()) {
+					continue;
+				}
+				int equals = pair.indexOf('=');
+				String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+				String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+				List<String> list = values.get(name);
+				if (list == null) {
+					list = new ArrayList<String>();
+					values.put(name, list);
+				}
+				list.add(value);
+			}
+		}
+
+		List<String> all(String name) {
+			List<String> list = values.get(name);
+			return list == null ? new ArrayList<String>() : new ArrayList<String>(list);
+		}
+
+		String string(String name) {
+			List<String> list = values.get(name);
+			if (list == null || list.isEmpty()) {
+				throw new IllegalArgumentException("Missing parameter " + name);
+			}
+			return list.get(0);
+		}
+
+		int integer(String name) {
+			String value = string(name);
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + ": '" + value + "' is not a number");
+			}
+		}
+
+		long longInteger(String name) {
+			String value = string(name);
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(name + ": '" + value + "' is not a number");
+			}
+		}
+
+		int integer(String name, int otherwise) {
+			List<String> list = values.get(name);
+			return list == null || list.isEmpty() || list.get(0).isEmpty() ? otherwise : integer(name);
+		}
+	}
+
+	/**
+	 * Sends random read requests from many clients at once and reports what came back.
+	 */
+	static void load(final String baseUrl, int clients, long seconds) throws Exception {
+		final String[] paths = {
+				"/actors",
+				"/longest-audiobook",
+				"/digital-album-copies",
+				"/album-copies?n=2",
+				"/patron-albums?card=1",
+				"/patron-games?card=1",
+				"/patron?card=1",
+				"/recommendations?media=1",
+				"/tracks-before?artist=" + URLEncoder.encode(System.getProperty("load.artist", "Artist 0"), "UTF-8") + "&year=2000"
+		};
+		// Keep a connection open per client instead of the default five.
+		System.setProperty("http.maxConnections", Integer.toString(clients));
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final AtomicLong ok = new AtomicLong();
+		final AtomicLong busy = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		List<Future<?>> runs = new ArrayList<Future<?>>();
+		for (int c = 0; c < clients; c++) {
+			runs.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					byte[] chunk = new byte[8192];
+					while (System.nanoTime() < end) {
+						String path = paths[ThreadLocalRandom.current().nextInt(paths.length)];
+						long start = System.nanoTime();
+						try {
+							HttpURLConnection http = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+							int status = http.getResponseCode();
+							InputStream in = status < 400 ? http.getInputStream() : http.getErrorStream();
+							if (in != null) {
+								while (in.read(chunk) > 0) {
+									// Drain the body so the connection can be reused.
+								}
+								in.close();
+							}
+							if (status == 200) {
+								ok.incrementAndGet();
+							} else if (status == 503) {
+								busy.incrementAndGet();
+							} else {
+								failed.incrementAndGet();
+							}
+						} catch (IOException e) {
+							failed.incrementAndGet();
+						}
+						histogram.record((System.nanoTime() - start) / 1000);
+					}
+				}
+			}));
+		}
+		for (Future<?> run : runs) {
+			run.get();
+		}
+		executor.shutdown();
+		System.out.println(clients + " clients for " + seconds + " s: " + histogram.count() / seconds + " requests per second; "
+				+ ok.get() + " ok, " + busy.get() + " busy (503), " + failed.get() + " failed");
+		System.out.println("latency: mean " + Math.round(histogram.mean()) + " us, p50 " + histogram.percentile(50)
+				+ " us, p99 " + histogram.percentile(99) + " us, p99.9 " + histogram.percentile(99.9)
+				+ " us, max " + histogram.max() + " us");
+	}
+
+	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("load")) {
+			int status = 0;
+			try {
+				load(args.length > 3 ? args[3] : "http://localhost:" + DEFAULT_PORT,
+						args.length > 1 ? Integer.parseInt(args[1]) : 200,
+						args.length > 2 ? Long.parseLong(args[2]) : 10);
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				status = 1;
+			}
+			System.exit(status);
+		}
+		try {
+			final QueryServer server = new QueryServer(CSE3241app.pool(), args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT);
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					server.stop();
+					System.out.println(server.totals());
+					CSE3241app.shutdown();
+				}
+			});
+			server.start();
+			System.out.println("Serving " + CSE3241app.DATABASE + " on port " + server.port());
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
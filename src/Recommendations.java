@@ -0,0 +1,588 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * "Patrons who borrowed this also borrowed": for each title, the titles most often out to the same
+ * patrons.
+ *
+ * <p>{@link #build} reads every patron's CHECK_OUT rows, as the distinct Media_Ids of their items,
+ * and counts how many patrons have each pair of titles. The count runs on a fork-join pool, with
+ * patrons split into ranges. Each range counts its pairs in a {@link PairCounts}, an open
+ * addressing map from the pair packed into a long to an int. The halves are merged as they join.
+ * The top -Drecommend.top neighbors of each title (default 10) are kept in RECOMMENDATION, ranked by
+ * the number of patrons they share, then by Media_Id. Only the titles whose neighbors changed are
+ * rewritten, through the {@link WriteQueue}, so the result cache drops exactly the lookups that are
+ * now stale.</p>
+ *
+ * <p>The job is a {@link ChangeLog} consumer. It does nothing when no CHECK_OUT or LIBRARY_ITEM
+ * change has been logged since its last build, and so can run as often as wanted. A lookup reads
+ * at most -Drecommend.top rows by the (Media_Id, Rank) primary key, and repeats are answered from
+ * the {@link ResultCache}.</p>
+ *
+ * <p>CHECK_OUT only keeps items that are out now, so titles are related by patrons who have them
+ * out at the same time. A patron with more than -Drecommend.max.titles titles out (default 500) is
+ * left out, since their pairs grow with the square of their titles and say little about any one.</p>
+ *
+ * <p>Usage: {@code java Recommendations build [force]} updates the table, {@code java
+ * Recommendations MEDIA_ID} prints a title's recommendations.</p>
+ */
+public class Recommendations {
+
+	/** Neighbors kept per title. Override with -Drecommend.top=N. */
+	public static final int TOP = Integer.getInteger("recommend.top", 10);
+
+	/** Patrons with more titles out than this are not counted. Override with -Drecommend.max.titles=N. */
+	public static final int MAX_TITLES = Integer.getInteger("recommend.max.titles", 500);
+
+	/** Threads counting pairs. Override with -Drecommend.threads=N. */
+	public static final int THREADS = Integer.getInteger("recommend.threads", Runtime.getRuntime().availableProcessors());
+
+	/** The change log consumer the job acknowledges its builds as. */
+	static final String CONSUMER = "recommendations";
+
+	/** Patrons counted by one fork-join task before it splits. */
+	private static final int SPLIT = 1024;
+
+	/** Titles rewritten per write transaction. */
+	private static final int WRITE_BATCH = 500;
+
+	static final String LOANS_SQL = "SELECT DISTINCT C.Card_Id, L.Media_Id FROM CHECK_OUT AS C, LIBRARY_ITEM AS L\n" +
+			"WHERE L.Item_Id = C.Item_Id\n" +
+			"ORDER BY C.Card_Id, L.Media_Id;\n";
+
+	static final String CHANGED_SQL = "SELECT EXISTS (SELECT 1 FROM CHANGE_LOG WHERE Seq > ? AND Table_Name IN ('CHECK_OUT', 'LIBRARY_ITEM'));";
+
+	static final String CURRENT_SQL = "SELECT Media_Id, Other_Id, Together FROM RECOMMENDATION ORDER BY Media_Id, Rank;";
+
+	static final String LOOKUP_SQL = "SELECT R.Rank, R.Other_Id AS Media_Id, M.Name, M.Type_of_Media, R.Together\n" +
+			"FROM RECOMMENDATION AS R, MEDIA AS M\n" +
+			"WHERE R.Media_Id = ? AND M.Media_Id = R.Other_Id\n" +
+			"ORDER BY R.Rank;\n";
+
+	static final String DELETE_SQL = "DELETE FROM RECOMMENDATION WHERE Media_Id = ?;";
+	static final String INSERT_SQL = "INSERT INTO RECOMMENDATION (Media_Id, Rank, Other_Id, Together) VALUES (?, ?, ?, ?);";
+
+	private final WriteQueue writer;
+	private final ChangeLog log;
+
+	/**
+	 * @param writer the queue RECOMMENDATION and the job's checkpoint are written through
+	 */
+	public Recommendations(WriteQueue writer) {
+		this.writer = writer;
+		this.log = new ChangeLog(writer);
+	}
+
+	/**
+	 * Writes a title's recommendations: Rank, Media_Id, Name, Type_of_Media and Together, the number
+	 * of patrons who have both titles out.
+	 *
+	 * @param conn a connection object, used on a cache miss
+	 * @param mediaId the title's Media_Id
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long write(Connection conn, int mediaId, ResultWriter out) throws SQLException, IOException {
+		return ResultCache.write(conn, out, "recommendations", Integer.valueOf(mediaId));
+	}
+
+	/**
+	 * Counts pairs and rewrites the titles whose neighbors changed, unless nothing they are counted
+	 * from has changed since the last build.
+	 *
+	 * @param conn a connection object, used for reads
+	 * @param force true to build even when nothing has changed
+	 * @return what the build did, or null when it was skipped
+	 */
+	public Build build(Connection conn, boolean force) throws SQLException {
+		long start = System.nanoTime();
+		boolean registered = true;
+		try {
+			ChangeLog.checkpoint(conn, CONSUMER);
+		} catch (IllegalArgumentException e) {
+			registered = false;
+			WriteQueue.await(log.register(CONSUMER));
+		}
+		long checkpoint = ChangeLog.checkpoint(conn, CONSUMER);
+
+		// The loans and the Seq they are as of come from one read transaction.
+		long seq;
+		Loans loans;
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("BEGIN;");
+			try {
+				if (registered && !force && !changedSince(conn, checkpoint)) {
+					return null;
+				}
+				ResultSet rs = stmt.executeQuery("SELECT " + ChangeLog.LAST_SEQ + ";");
+				try {
+					rs.next();
+					seq = rs.getLong(1);
+				} finally {
+					rs.close();
+				}
+				loans = Loans.read(conn);
+			} finally {
+				stmt.execute("COMMIT;");
+			}
+		} finally {
+			stmt.close();
+		}
+
+		PairCounts pairs;
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, THREADS));
+		try {
+			pairs = pool.invoke(new CountTask(loans, 0, loans.patrons()));
+		} finally {
+			pool.shutdown();
+		}
+		Neighbors next = Neighbors.top(pairs, TOP);
+		Neighbors current = Neighbors.read(conn);
+		int rewritten = persist(current, next);
+		WriteQueue.await(log.acknowledge(CONSUMER, seq));
+		return new Build(loans.patrons(), loans.media.length, pairs.size(), next.titles.length, rewritten,
+				(System.nanoTime() - start) / 1000000);
+	}
+
+	private static boolean changedSince(Connection conn, long checkpoint) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, CHANGED_SQL);
+		stmt.setLong(1, checkpoint);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return rs.next() && rs.getInt(1) != 0;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Rewrites the titles whose neighbors differ between current and next, {@link #WRITE_BATCH} to
+	 * a transaction so other writes are not held up.
+	 *
+	 * @return the number of titles rewritten
+	 */
+	private int persist(Neighbors current, Neighbors next) throws SQLException {
+		final List<Integer> changed = new ArrayList<Integer>();
+		int i = 0;
+		int j = 0;
+		while (i < current.titles.length || j < next.titles.length) {
+			int a = i < current.titles.length ? current.titles[i] : Integer.MAX_VALUE;
+			int b = j < next.titles.length ? next.titles[j] : Integer.MAX_VALUE;
+			if (a < b) {
+				changed.add(Integer.valueOf(a));
+				i++;
+			} else if (b < a) {
+				changed.add(Integer.valueOf(b));
+				j++;
+			} else {
+				if (!Arrays.equals(current.others[i], next.others[j]) || !Arrays.equals(current.together[i], next.together[j])) {
+					changed.add(Integer.valueOf(b));
+				}
+				i++;
+				j++;
+			}
+		}
+		final Neighbors neighbors = next;
+		for (int from = 0; from < changed.size(); from += WRITE_BATCH) {
+			final List<Integer> batch = changed.subList(from, Math.min(from + WRITE_BATCH, changed.size()));
+			writer.execute(new WriteQueue.Mutation<Void>() {
+				@Override
+				public Void apply(Connection conn) throws SQLException {
+					PreparedStatement delete = StatementCache.prepare(conn, DELETE_SQL);
+					PreparedStatement insert = StatementCache.prepare(conn, INSERT_SQL);
+					for (Integer title : batch) {
+						delete.setInt(1, title.intValue());
+						delete.executeUpdate();
+						int slot = Arrays.binarySearch(neighbors.titles, title.intValue());
+						if (slot < 0) {
+							continue;
+						}
+						for (int rank = 0; rank < neighbors.others[slot].length; rank++) {
+							insert.setInt(1, title.intValue());
+							insert.setInt(2, rank + 1);
+							insert.setInt(3, neighbors.others[slot][rank]);
+							insert.setInt(4, neighbors.together[slot][rank]);
+							insert.addBatch();
+						}
+					}
+					insert.executeBatch();
+					return null;
+				}
+			}, "RECOMMENDATION");
+		}
+		return changed.size();
+	}
+
+	/**
+	 * Each patron's distinct titles out, sorted, one patron after another.
+	 */
+	static final class Loans {
+		/** Where each patron's titles start in {@link #media}, plus its length at the end. */
+		final int[] starts;
+		final int[] media;
+
+		Loans(int[] starts, int[] media) {
+			this.starts = starts;
+			this.media = media;
+		}
+
+		int patrons() {
+			return starts.length - 1;
+		}
+
+		static Loans read(Connection conn) throws SQLException {
+			int[] starts = new int[1024];
+			int[] media = new int[4096];
+			int patrons = 0;
+			int size = 0;
+			long card = Long.MIN_VALUE;
+			PreparedStatement stmt = StatementCache.prepare(conn, LOANS_SQL);
+			ResultSet rs = stmt.executeQuery();
+			try {
+				while (rs.next()) {
+					int cardId = rs.getInt(1);
+					if (cardId != card) {
+						card = cardId;
+						if (patrons + 1 >= starts.length) {
+							starts = Arrays.copyOf(starts, starts.length * 2);
+						}
+						starts[patrons++] = size;
+					}
+					if (size == media.length) {
+						media = Arrays.copyOf(media, media.length * 2);
+					}
+					media[size++] = rs.getInt(2);
+				}
+			} finally {
+				rs.close();
+			}
+			starts[patrons] = size;
+			return new Loans(Arrays.copyOf(starts, patrons + 1), Arrays.copyOf(media, size));
+		}
+	}
+
+	/**
+	 * Counts the pairs of a range of patrons, splitting it in two while it is larger than {@link #SPLIT}.
+	 */
+	private static final class CountTask extends RecursiveTask<PairCounts> {
+		private static final long serialVersionUID = 1L;
+
+		private final Loans loans;
+		private final int from;
+		private final int to;
+
+		CountTask(Loans loans, int from, int to) {
+			this.loans = loans;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected PairCounts compute() {
+			if (to - from > SPLIT) {
+				int middle = (from + to) >>> 1;
+				CountTask left = new CountTask(loans, from, middle);
+				left.fork();
+				PairCounts right = new CountTask(loans, middle, to).compute();
+				return PairCounts.merge(left.join(), right);
+			}
+			PairCounts counts = new PairCounts(64);
+			for (int p = from; p < to; p++) {
+				int start = loans.starts[p];
+				int end = loans.starts[p + 1];
+				if (end - start > MAX_TITLES) {
+					continue;
+				}
+				for (int i = start; i < end; i++) {
+					for (int j = i + 1; j < end; j++) {
+						counts.add(PairCounts.pair(loans.media[i], loans.media[j]), 1);
+					}
+				}
+			}
+			return counts;
+		}
+	}
+
+	/**
+	 * An open addressing hash map from a pair of Media_Ids, packed into a long, to a count.
+	 */
+	static final class PairCounts {
+		private static final long EMPTY = -1L;
+
+		private long[] keys;
+		private int[] counts;
+		private int size;
+
+		PairCounts(int capacity) {
+			int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1);
+			keys = new long[slots];
+			counts = new int[slots];
+			Arrays.fill(keys, EMPTY);
+		}
+
+		/**
+		 * @return the pair of two distinct non-negative Media_Ids, the smaller in the high half
+		 */
+		static long pair(int a, int b) {
+			return a < b ? (long) a << 32 | b : (long) b << 32 | a;
+		}
+
+		static int first(long pair) {
+			return (int) (pair >>> 32);
+		}
+
+		static int second(long pair) {
+			return (int) pair;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void add(long pair, int count) {
+			int mask = keys.length - 1;
+			int slot = hash(pair) & mask;
+			while (keys[slot] != EMPTY) {
+				if (keys[slot] == pair) {
+					counts[slot] += count;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			keys[slot] = pair;
+			counts[slot] = count;
+			if (++size * 4 > keys.length * 3) {
+				grow();
+			}
+		}
+
+		private void grow() {
+			long[] oldKeys = keys;
+			int[] oldCounts = counts;
+			keys = new long[oldKeys.length * 2];
+			counts = new int[oldKeys.length * 2];
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != EMPTY) {
+					add(oldKeys[i], oldCounts[i]);
+				}
+			}
+		}
+
+		private static int hash(long pair) {
+			long h = pair * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ h >>> 32);
+		}
+
+		/**
+		 * @return the two maps added together, in whichever of them was larger
+		 */
+		static PairCounts merge(PairCounts a, PairCounts b) {
+			PairCounts into = a.size >= b.size ? a : b;
+			PairCounts from = into == a ? b : a;
+			for (int i = 0; i < from.keys.length; i++) {
+				if (from.keys[i] != EMPTY) {
+					into.add(from.keys[i], from.counts[i]);
+				}
+			}
+			return into;
+		}
+	}
+
+	/**
+	 * The neighbors of each title, best first, with the titles in Media_Id order.
+	 */
+	static final class Neighbors {
+		final int[] titles;
+		final int[][] others;
+		final int[][] together;
+
+		Neighbors(int[] titles, int[][] others, int[][] together) {
+			this.titles = titles;
+			this.others = others;
+			this.together = together;
+		}
+
+		/**
+		 * Keeps each title's top neighbors. Every pair is listed under both of its titles, each
+		 * neighbor as a long that sorts most patrons first, then by Media_Id, and the lists are sorted
+		 * and cut at top.
+		 */
+		static Neighbors top(PairCounts pairs, int top) {
+			int[] ids = new int[pairs.size() * 2];
+			int n = 0;
+			for (int i = 0; i < pairs.keys.length; i++) {
+				long pair = pairs.keys[i];
+				if (pair != PairCounts.EMPTY) {
+					ids[n++] = PairCounts.first(pair);
+					ids[n++] = PairCounts.second(pair);
+				}
+			}
+			Arrays.sort(ids);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				if (count == 0 || ids[count - 1] != ids[i]) {
+					ids[count++] = ids[i];
+				}
+			}
+			int[] titles = Arrays.copyOf(ids, count);
+
+			int[] starts = new int[count + 1];
+			for (int i = 0; i < pairs.keys.length; i++) {
+				long pair = pairs.keys[i];
+				if (pair != PairCounts.EMPTY) {
+					starts[Arrays.binarySearch(titles, PairCounts.first(pair)) + 1]++;
+					starts[Arrays.binarySearch(titles, PairCounts.second(pair)) + 1]++;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				starts[i + 1] += starts[i];
+			}
+			int[] next = Arrays.copyOf(starts, count);
+			long[] ranked = new long[n];
+			for (int i = 0; i < pairs.keys.length; i++) {
+				long pair = pairs.keys[i];
+				if (pair != PairCounts.EMPTY) {
+					long fewer = (long) (Integer.MAX_VALUE - pairs.counts[i]) << 32;
+					ranked[next[Arrays.binarySearch(titles, PairCounts.first(pair))]++] = fewer | PairCounts.second(pair);
+					ranked[next[Arrays.binarySearch(titles, PairCounts.second(pair))]++] = fewer | PairCounts.first(pair);
+				}
+			}
+
+			int[][] others = new int[count][];
+			int[][] together = new int[count][];
+			for (int slot = 0; slot < count; slot++) {
+				Arrays.sort(ranked, starts[slot], starts[slot + 1]);
+				int kept = Math.min(top, starts[slot + 1] - starts[slot]);
+				others[slot] = new int[kept];
+				together[slot] = new int[kept];
+				for (int k = 0; k < kept; k++) {
+					long neighbor = ranked[starts[slot] + k];
+					others[slot][k] = (int) neighbor;
+					together[slot][k] = Integer.MAX_VALUE - (int) (neighbor >>> 32);
+				}
+			}
+			return new Neighbors(titles, others, together);
+		}
+
+		/**
+		 * Reads the neighbors RECOMMENDATION holds now.
+		 */
+		static Neighbors read(Connection conn) throws SQLException {
+			List<int[]> others = new ArrayList<int[]>();
+			List<int[]> together = new ArrayList<int[]>();
+			int[] titles = new int[16];
+			int count = 0;
+			int[] o = new int[TOP];
+			int[] t = new int[TOP];
+			int kept = 0;
+			PreparedStatement stmt = StatementCache.prepare(conn, CURRENT_SQL);
+			ResultSet rs = stmt.executeQuery();
+			try {
+				while (rs.next()) {
+					int title = rs.getInt(1);
+					if (count == 0 || titles[count - 1] != title) {
+						if (count > 0) {
+							others.add(Arrays.copyOf(o, kept));
+							together.add(Arrays.copyOf(t, kept));
+						}
+						if (count == titles.length) {
+							titles = Arrays.copyOf(titles, count * 2);
+						}
+						titles[count++] = title;
+						kept = 0;
+					}
+					if (kept == o.length) {
+						o = Arrays.copyOf(o, kept * 2);
+						t = Arrays.copyOf(t, kept * 2);
+					}
+					o[kept] = rs.getInt(2);
+					t[kept++] = rs.getInt(3);
+				}
+			} finally {
+				rs.close();
+			}
+			if (count > 0) {
+				others.add(Arrays.copyOf(o, kept));
+				together.add(Arrays.copyOf(t, kept));
+			}
+			return new Neighbors(Arrays.copyOf(titles, count), others.toArray(new int[0][]), together.toArray(new int[0][]));
+		}
+	}
+
+	/**
+	 * What one build did.
+	 */
+	public static final class Build {
+		public final int patrons;
+		/** Distinct (patron, title) pairs read. */
+		public final int loans;
+		/** Pairs of titles out to at least one patron together. */
+		public final int pairs;
+		/** Titles with at least one neighbor. */
+		public final int titles;
+		/** Titles whose rows in RECOMMENDATION were rewritten. */
+		public final int rewritten;
+		public final long millis;
+
+		Build(int patrons, int loans, int pairs, int titles, int rewritten, long millis) {
+			this.patrons = patrons;
+			this.loans = loans;
+			this.pairs = pairs;
+			this.titles = titles;
+			this.rewritten = rewritten;
+			this.millis = millis;
+		}
+
+		@Override
+		public String toString() {
+			return patrons + " patrons, " + loans + " titles out, " + pairs + " pairs, " + titles + " titles with neighbors, "
+					+ rewritten + " rewritten in " + millis + " ms";
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean build = args.length >= 1 && args[0].equals("build");
+		if (args.length < 1 || args.length > 2 || (build && args.length == 2 && !args[1].equals("force"))
+				|| (!build && args.length != 1)) {
+			System.out.println("Usage: java Recommendations build [force] | MEDIA_ID");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			if (build) {
+				Build result = CSE3241app.recommendations().build(conn, args.length == 2);
+				System.out.println(result == null ? "Recommendations are up to date" : "Built recommendations: " + result);
+			} else {
+				write(conn, Integer.parseInt(args[0]), ResultWriter.standard());
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			CSE3241app.shutdown();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,436 @@
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide, read-through cache of query results, keyed by query id and parameters.
+ *
+ * <p>Queries are registered with the tables they read. {@link #write(Connection, ResultWriter, String, Object...)}
+ * answers from the cache when it can and otherwise runs the query and keeps its rows for next time;
+ * a hit is replayed to the ResultWriter without touching SQLite. Writers call {@link #invalidate(String...)} with the tables they
+ * changed, after they commit, and exactly the entries of the queries that read those tables are
+ * dropped. Each table also has a version that invalidation bumps, so a read that was already running
+ * when a table changed does not put its now stale rows in the cache.</p>
+ *
+ * <p>Entries are evicted least recently used first once there are more than -Dresult.cache.size
+ * (default 1024), and expire after -Dresult.cache.ttl.seconds (default 300) in case the database is
+ * changed by another process. Results of more than -Dresult.cache.max.rows rows (default 10000) are
+ * streamed as usual and not kept. Run with -Dresult.cache=false to always go to SQLite.</p>
+ */
+public class ResultCache {
+
+	/** Whether results are cached. Turn off with -Dresult.cache=false. */
+	public static final boolean ENABLED = !"false".equals(System.getProperty("result.cache"));
+
+	/** The number of results kept. Override with -Dresult.cache.size=N. */
+	public static final int MAX_ENTRIES = Integer.getInteger("result.cache.size", 1024);
+
+	/** How long a result is kept, in milliseconds. Override with -Dresult.cache.ttl.seconds=N. */
+	public static final long TTL_MILLIS = Long.getLong("result.cache.ttl.seconds", 300L) * 1000;
+
+	/** Results with more rows than this are not kept. Override with -Dresult.cache.max.rows=N. */
+	public static final int MAX_ROWS = Integer.getInteger("result.cache.max.rows", 10000);
+
+	private static final Map<String, Query> QUERIES = new ConcurrentHashMap<String, Query>();
+	private static final Map<String, AtomicLong> VERSIONS = new ConcurrentHashMap<String, AtomicLong>();
+
+	private static final LinkedHashMap<Key, CachedResult> ENTRIES = new LinkedHashMap<Key, CachedResult>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, CachedResult> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	private static final AtomicLong HITS = new AtomicLong();
+	private static final AtomicLong MISSES = new AtomicLong();
+	private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
+	static {
+		register("tracks-before", CSE3241app.TRACKS_BEFORE_YEAR_SQL, "FEATURES", "TRACK", "ARTIST");
+		register("album-copies", CSE3241app.ALBUM_COPIES_SQL, "MEDIA", "LIBRARY_ITEM");
+		register("longest-audiobook", CSE3241app.LONGEST_AUDIOBOOK_SQL, "AUTHOR", "AUTHORS", "MEDIA");
+		register("digital-album-copies", CSE3241app.DIGITAL_ALBUM_COPIES_SQL, "MEDIA", "LIBRARY_ITEM", "ARTIST", "ALBUM");
+		register("actors", CSE3241app.ACTORS_SQL, "ACTOR");
+		register("recommendations", Recommendations.LOOKUP_SQL, "RECOMMENDATION", "MEDIA");
+	}
+
+	/**
+	 * A registered query and the tables it reads.
+	 */
+	private static class Query {
+		final String sql;
+		final String[] tables;
+
+		Query(String sql, String[] tables) {
+			this.sql = sql;
+			this.tables = tables;
+		}
+
+		boolean reads(String table) {
+			for (String t : tables) {
+				if (t.equals(table)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	private static class Key {
+		final String queryId;
+		final Object[] parameters;
+
+		Key(String queryId, Object[] parameters) {
+			this.queryId = queryId;
+			this.parameters = parameters;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return queryId.equals(other.queryId) && Arrays.equals(parameters, other.parameters);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * queryId.hashCode() + Arrays.hashCode(parameters);
+		}
+	}
+
+	private static class CachedResult {
+		final Query query;
+		final Rows rows;
+		final long expires;
+
+		CachedResult(Query query, Rows rows, long expires) {
+			this.query = query;
+			this.rows = rows;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * Adds a query that {@link #write(Connection, ResultWriter, String, Object...)} can run.
+	 *
+	 * @param queryId a name for the query, e.g. "actors"
+	 * @param sql the query text
+	 * @param tables every table the query reads, upper-cased
+	 */
+	public static void register(String queryId, String sql, String... tables) {
+		QUERIES.put(queryId, new Query(sql, tables.clone()));
+	}
+
+	/**
+	 * Writes the rows of a registered query, from the cache if they are there.
+	 *
+	 * @param conn a connection object, only used on a miss
+	 * @param out where the rows are written
+	 * @param queryId the id the query was registered with
+	 * @param parameters the values for the query's ? markers, in order: Integers, Longs or Strings
+	 * @return the number of rows written
+	 */
+	public static long write(Connection conn, ResultWriter out, String queryId, Object... parameters)
+			throws SQLException, IOException {
+		Query query = QUERIES.get(queryId);
+		if (query == null) {
+			throw new IllegalArgumentException("No cached query is registered as " + queryId);
+		}
+		Key key = new Key(queryId, parameters.clone());
+		if (ENABLED) {
+			Rows rows = lookup(key);
+			if (rows != null) {
+				HITS.incrementAndGet();
+				return out.write(rows.replay(null));
+			}
+			MISSES.incrementAndGet();
+		}
+		long[] versions = versions(query.tables);
+		PreparedStatement stmt = StatementCache.prepare(conn, query.sql);
+		for (int i = 0; i < parameters.length; i++) {
+			stmt.setObject(i + 1, parameters[i]);
+		}
+		ResultSet rs = stmt.executeQuery();
+		try {
+			if (!ENABLED) {
+				return out.write(rs);
+			}
+			Rows rows = Rows.read(rs, MAX_ROWS);
+			if (rows.complete) {
+				store(key, query, rows, versions);
+				return out.write(rows.replay(null));
+			}
+			// Too big to keep: write what was read, then carry on from the live result set.
+			return out.write(rows.replay(rs));
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Drops every result read from any of the tables. Call after the change is committed.
+	 *
+	 * @param tables the tables that were written, e.g. "MEDIA"
+	 */
+	public static void invalidate(String... tables) {
+		for (String table : tables) {
+			version(table.toUpperCase()).incrementAndGet();
+		}
+		synchronized (ENTRIES) {
+			Iterator<CachedResult> it = ENTRIES.values().iterator();
+			while (it.hasNext()) {
+				Query query = it.next().query;
+				for (String table : tables) {
+					if (query.reads(table.toUpperCase())) {
+						it.remove();
+						INVALIDATIONS.incrementAndGet();
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drops every cached result.
+	 */
+	public static void clear() {
+		synchronized (ENTRIES) {
+			ENTRIES.clear();
+		}
+	}
+
+	/**
+	 * @return a one-line summary of hits, misses and invalidated entries
+	 */
+	public static String totals() {
+		int size;
+		synchronized (ENTRIES) {
+			size = ENTRIES.size();
+		}
+		return "result cache: " + HITS.get() + " hits, " + MISSES.get() + " misses, " + INVALIDATIONS.get()
+				+ " invalidated, " + size + " entries";
+	}
+
+	private static Rows lookup(Key key) {
+		synchronized (ENTRIES) {
+			CachedResult entry = ENTRIES.get(key);
+			if (entry == null) {
+				return null;
+			}
+			if (System.currentTimeMillis() >= entry.expires) {
+				ENTRIES.remove(key);
+				return null;
+			}
+			return entry.rows;
+		}
+	}
+
+	/**
+	 * Keeps a result unless one of its tables changed while it was being read.
+	 */
+	private static void store(Key key, Query query, Rows rows, long[] versions) {
+		synchronized (ENTRIES) {
+			if (!Arrays.equals(versions, versions(query.tables))) {
+				return;
+			}
+			ENTRIES.put(key, new CachedResult(query, rows, System.currentTimeMillis() + TTL_MILLIS));
+		}
+	}
+
+	static long[] versions(String[] tables) {
+		long[] versions = new long[tables.length];
+		for (int i = 0; i < tables.length; i++) {
+			versions[i] = version(tables[i]).get();
+		}
+		return versions;
+	}
+
+	private static AtomicLong version(String table) {
+		AtomicLong version = VERSIONS.get(table);
+		if (version == null) {
+			AtomicLong created = new AtomicLong();
+			version = VERSIONS.putIfAbsent(table, created);
+			if (version == null) {
+				version = created;
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * The rows of a result, held as the values ResultWriter reads: a Long or null for integer columns,
+	 * a String or null for the rest.
+	 */
+	static class Rows {
+		final String[] names;
+		final int[] types;
+		final List<Object[]> values;
+		final boolean complete;
+
+		Rows(String[] names, int[] types, List<Object[]> values, boolean complete) {
+			this.names = names;
+			this.types = types;
+			this.values = values;
+			this.complete = complete;
+		}
+
+		/**
+		 * Reads up to maxRows rows, leaving the result set on the last row read.
+		 */
+		static Rows read(ResultSet rs, int maxRows) throws SQLException {
+			ResultSetMetaData meta = rs.getMetaData();
+			int columnCount = meta.getColumnCount();
+			String[] names = new String[columnCount];
+			int[] types = new int[columnCount];
+			for (int i = 0; i < columnCount; i++) {
+				names[i] = meta.getColumnName(i + 1);
+				types[i] = meta.getColumnType(i + 1);
+			}
+			List<Object[]> values = new ArrayList<Object[]>();
+			while (values.size() < maxRows && rs.next()) {
+				values.add(row(rs, types));
+			}
+			boolean complete = values.size() < maxRows;
+			if (!complete && !rs.next()) {
+				complete = true;
+			} else if (!complete) {
+				// The row just moved onto is not kept; hand it back ahead of the live rows.
+				values.add(row(rs, types));
+			}
+			return new Rows(names, types, values, complete);
+		}
+
+		private static Object[] row(ResultSet rs, int[] types) throws SQLException {
+			Object[] row = new Object[types.length];
+			for (int i = 0; i < types.length; i++) {
+				if (ResultWriter.isIntegral(types[i])) {
+					long value = rs.getLong(i + 1);
+					row[i] = rs.wasNull() ? null : Long.valueOf(value);
+				} else {
+					row[i] = rs.getString(i + 1);
+				}
+			}
+			return row;
+		}
+
+		/**
+		 * Returns a read-only result set over these rows, followed by the rows left in rest if it is not null.
+		 */
+		ResultSet replay(ResultSet rest) {
+			return (ResultSet) Proxy.newProxyInstance(ResultCache.class.getClassLoader(),
+					new Class<?>[] {ResultSet.class}, new Replay(this, rest));
+		}
+	}
+
+	/**
+	 * Answers the ResultSet calls ResultWriter makes from cached rows, then from the live result set if there is one.
+	 */
+	private static class Replay implements InvocationHandler {
+		private final Rows rows;
+		private final ResultSet rest;
+		private int position = -1;
+		private boolean live = false;
+		private boolean wasNull = false;
+
+		Replay(Rows rows, ResultSet rest) {
+			this.rows = rows;
+			this.rest = rest;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getMetaData")) {
+				return Proxy.newProxyInstance(ResultCache.class.getClassLoader(),
+						new Class<?>[] {ResultSetMetaData.class}, new MetaData(rows));
+			}
+			if (live) {
+				try {
+					return method.invoke(rest, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+			if (name.equals("next")) {
+				position++;
+				if (position < rows.values.size()) {
+					return true;
+				}
+				live = rest != null;
+				return live && rest.next();
+			} else if (name.equals("getLong") || name.equals("getInt")) {
+				Object value = value((Integer) args[0]);
+				long number = value == null ? 0 : value instanceof Long ? (Long) value : Long.parseLong((String) value);
+				return name.equals("getInt") ? (Object) (int) number : (Object) number;
+			} else if (name.equals("getString")) {
+				Object value = value((Integer) args[0]);
+				return value == null ? null : value.toString();
+			} else if (name.equals("wasNull")) {
+				return wasNull;
+			} else if (name.equals("setFetchSize") || name.equals("close")) {
+				return null;
+			} else if (name.equals("isClosed")) {
+				return false;
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			throw new SQLException("A cached result does not support " + name);
+		}
+
+		private Object value(int column) throws SQLException {
+			if (position < 0 || position >= rows.values.size()) {
+				throw new SQLException("The result set is not on a row");
+			}
+			Object value = rows.values.get(position)[column - 1];
+			wasNull = value == null;
+			return value;
+		}
+	}
+
+	private static class MetaData implements InvocationHandler {
+		private final Rows rows;
+
+		MetaData(Rows rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getColumnCount")) {
+				return rows.names.length;
+			} else if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+				return rows.names[(Integer) args[0] - 1];
+			} else if (name.equals("getColumnType")) {
+				return rows.types[(Integer) args[0] - 1];
+			} else if (name.equals("equals")) {
+				return proxy == args[0];
+			} else if (name.equals("hashCode")) {
+				return System.identityHashCode(proxy);
+			}
+			throw new SQLException("Cached result metadata does not support " + name);
+		}
+	}
+}
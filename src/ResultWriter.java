@@ -0,0 +1,464 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes result sets to a channel through one large buffer.
+ *
+ * <p>Formats: "text" (the app's original "a,  b" lines), "csv", "tsv", "jsonl", "json" (an array) and "table"
+ * (aligned columns). Integer columns are read with {@code getLong} and written digit by digit,
+ * so they are never turned into Strings; other columns are written as text. The result set is
+ * streamed with a configurable fetch size and only the "table" format holds rows in memory,
+ * and then only the first {@link #TABLE_SAMPLE_ROWS} used to size the columns.</p>
+ *
+ * <p>The writer for the app's own output is chosen with -Doutput.format=FORMAT and sent to standard
+ * output, or to a file with -Doutput.file=PATH.</p>
+ */
+public abstract class ResultWriter {
+
+	/** Rows fetched from SQLite per round trip. Override with -Dfetch.size=N. */
+	public static final int FETCH_SIZE = Integer.getInteger("fetch.size", 1000);
+
+	/** Rows the "table" format reads ahead to work out column widths. */
+	public static final int TABLE_SAMPLE_ROWS = 1000;
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static ResultWriter standard;
+
+	protected final Writer out;
+	private final char[] digits = new char[20];
+
+	protected ResultWriter(WritableByteChannel channel) {
+		this.out = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a writer for a format.
+	 *
+	 * @param format "text", "csv", "tsv", "jsonl", "json" or "table"
+	 * @param channel where the output goes
+	 * @return a writer for the format
+	 */
+	public static ResultWriter forFormat(String format, WritableByteChannel channel) {
+		if (format.equalsIgnoreCase("text")) {
+			return new TextWriter(channel);
+		} else if (format.equalsIgnoreCase("csv")) {
+			return new DelimitedWriter(channel, ',');
+		} else if (format.equalsIgnoreCase("tsv")) {
+			return new DelimitedWriter(channel, '\t');
+		} else if (format.equalsIgnoreCase("jsonl")) {
+			return new JsonlWriter(channel, false);
+		} else if (format.equalsIgnoreCase("json")) {
+			return new JsonlWriter(channel, true);
+		} else if (format.equalsIgnoreCase("table")) {
+			return new TableWriter(channel);
+		}
+		throw new IllegalArgumentException("Unknown output format: " + format);
+	}
+
+	/**
+	 * Creates a writer in the format chosen by -Doutput.format (default "text").
+	 *
+	 * @param channel where the output goes
+	 * @return a writer for the app's output format
+	 */
+	public static ResultWriter forStandardFormat(WritableByteChannel channel) {
+		return forFormat(System.getProperty("output.format", "text"), channel);
+	}
+
+	/**
+	 * Creates a writer that replaces the contents of a file.
+	 *
+	 * @param format "text", "csv", "tsv", "jsonl", "json" or "table"
+	 * @param fileName the file to write
+	 * @return a writer for the format; close it when done
+	 */
+	public static ResultWriter forFile(String format, String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		return forFormat(format, channel);
+	}
+
+	/**
+	 * Returns the writer for the app's output, set up from -Doutput.format and -Doutput.file.
+	 *
+	 * @return the shared writer; it is flushed after every result set
+	 */
+	public static synchronized ResultWriter standard() throws IOException {
+		if (standard == null) {
+			String fileName = System.getProperty("output.file");
+			if (fileName != null) {
+				standard = forFile(System.getProperty("output.format", "text"), fileName);
+			} else {
+				standard = forStandardFormat(new FileOutputStream(FileDescriptor.out).getChannel());
+			}
+		}
+		return standard;
+	}
+
+	/**
+	 * Writes every row of a result set, then flushes. The result set is not closed.
+	 *
+	 * @param rs the rows to write
+	 * @return the number of rows written
+	 */
+	public long write(ResultSet rs) throws SQLException, IOException {
+		return write(rs, true);
+	}
+
+	/**
+	 * Writes every row of a result set, then flushes. The result set is not closed.
+	 *
+	 * @param rs the rows to write
+	 * @param header false to leave out the header, when the rows continue an earlier result set
+	 *               such as the previous page of a paged query
+	 * @return the number of rows written
+	 */
+	public long write(ResultSet rs, boolean header) throws SQLException, IOException {
+		// Prompts printed with System.out must come out before the rows.
+		System.out.flush();
+		rs.setFetchSize(FETCH_SIZE);
+		ResultSetMetaData meta = rs.getMetaData();
+		int columnCount = meta.getColumnCount();
+		String[] names = new String[columnCount];
+		boolean[] integral = new boolean[columnCount];
+		for (int i = 0; i < columnCount; i++) {
+			names[i] = meta.getColumnName(i + 1);
+			integral[i] = isIntegral(meta.getColumnType(i + 1));
+		}
+		long rows = write(rs, names, integral, header);
+		out.flush();
+		return rows;
+	}
+
+	/**
+	 * Writes a line of text after the rows, such as where a paged listing continues, then flushes.
+	 *
+	 * @param line the text, without a line break
+	 */
+	public void writeLine(String line) throws IOException {
+		out.write(line);
+		out.write('\n');
+		out.flush();
+	}
+
+	/**
+	 * Flushes and closes the underlying channel.
+	 */
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * Writes the rows, after the header if asked, in this writer's format.
+	 *
+	 * @param rs the rows, positioned before the first one
+	 * @param names the column names
+	 * @param integral true for columns that can be read with getLong
+	 * @param header whether to write the header first
+	 * @return the number of rows written
+	 */
+	protected abstract long write(ResultSet rs, String[] names, boolean[] integral, boolean header) throws SQLException, IOException;
+
+	/**
+	 * Writes a long without creating a String.
+	 */
+	protected void writeLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			out.write(Long.toString(value));
+			return;
+		}
+		int pos = digits.length;
+		boolean negative = value < 0;
+		if (negative) {
+			value = -value;
+		}
+		do {
+			digits[--pos] = (char) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		if (negative) {
+			digits[--pos] = '-';
+		}
+		out.write(digits, pos, digits.length - pos);
+	}
+
+	/**
+	 * Writes the value of a column as {@code text} would print it: integers as digits, NULL as "null".
+	 *
+	 * @return false if the value was NULL
+	 */
+	protected boolean writeRaw(ResultSet rs, int column, boolean integral) throws SQLException, IOException {
+		if (integral) {
+			long value = rs.getLong(column);
+			if (rs.wasNull()) {
+				out.write("null");
+				return false;
+			}
+			writeLong(value);
+			return true;
+		}
+		String value = rs.getString(column);
+		out.write(value == null ? "null" : value);
+		return value != null;
+	}
+
+	/**
+	 * @return true for the column types that are read with getLong
+	 */
+	static boolean isIntegral(int sqlType) {
+		switch (sqlType) {
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+			case Types.BOOLEAN:
+			case Types.BIT:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * The app's original output: a header line and one line per row, values separated by ",  ".
+	 */
+	static class TextWriter extends ResultWriter {
+		TextWriter(WritableByteChannel channel) {
+			super(channel);
+		}
+
+		@Override
+		protected long write(ResultSet rs, String[] names, boolean[] integral, boolean header) throws SQLException, IOException {
+			if (header) {
+				for (int i = 0; i < names.length; i++) {
+					out.write(names[i]);
+					if (i < names.length - 1) out.write(",  ");
+				}
+				out.write('\n');
+			}
+			long rows = 0;
+			while (rs.next()) {
+				for (int i = 0; i < names.length; i++) {
+					writeRaw(rs, i + 1, integral[i]);
+					if (i < names.length - 1) out.write(",  ");
+				}
+				out.write('\n');
+				rows++;
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * CSV (RFC 4180 quoting) or TSV (tabs and line breaks escaped as \t, \n). NULL is an empty field.
+	 */
+	static class DelimitedWriter extends ResultWriter {
+		private final char delimiter;
+
+		DelimitedWriter(WritableByteChannel channel, char delimiter) {
+			super(channel);
+			this.delimiter = delimiter;
+		}
+
+		@Override
+		protected long write(ResultSet rs, String[] names, boolean[] integral, boolean header) throws SQLException, IOException {
+			if (header) {
+				for (int i = 0; i < names.length; i++) {
+					if (i > 0) out.write(delimiter);
+					writeText(names[i]);
+				}
+				out.write('\n');
+			}
+			long rows = 0;
+			while (rs.next()) {
+				for (int i = 0; i < names.length; i++) {
+					if (i > 0) out.write(delimiter);
+					if (integral[i]) {
+						long value = rs.getLong(i + 1);
+						if (!rs.wasNull()) writeLong(value);
+					} else {
+						String value = rs.getString(i + 1);
+						if (value != null) writeText(value);
+					}
+				}
+				out.write('\n');
+				rows++;
+			}
+			return rows;
+		}
+
+		private void writeText(String value) throws IOException {
+			if (delimiter == '\t') {
+				for (int i = 0; i < value.length(); i++) {
+					char c = value.charAt(i);
+					if (c == '\t') out.write("\\t");
+					else if (c == '\n') out.write("\\n");
+					else if (c == '\r') out.write("\\r");
+					else if (c == '\\') out.write("\\\\");
+					else out.write(c);
+				}
+				return;
+			}
+			boolean quote = false;
+			for (int i = 0; i < value.length() && !quote; i++) {
+				char c = value.charAt(i);
+				quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+			}
+			if (!quote) {
+				out.write(value);
+				return;
+			}
+			out.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"') out.write('"');
+				out.write(c);
+			}
+			out.write('"');
+		}
+	}
+
+	/**
+	 * One JSON object per row, keyed by column name, on lines of their own or as the elements of one array.
+	 */
+	static class JsonlWriter extends ResultWriter {
+		private final boolean array;
+
+		JsonlWriter(WritableByteChannel channel, boolean array) {
+			super(channel);
+			this.array = array;
+		}
+
+		@Override
+		protected long write(ResultSet rs, String[] names, boolean[] integral, boolean header) throws SQLException, IOException {
+			long rows = 0;
+			if (array) out.write('[');
+			while (rs.next()) {
+				if (array && rows > 0) out.write(',');
+				out.write('{');
+				for (int i = 0; i < names.length; i++) {
+					if (i > 0) out.write(',');
+					writeString(names[i]);
+					out.write(':');
+					if (integral[i]) {
+						long value = rs.getLong(i + 1);
+						if (rs.wasNull()) out.write("null");
+						else writeLong(value);
+					} else {
+						String value = rs.getString(i + 1);
+						if (value == null) out.write("null");
+						else writeString(value);
+					}
+				}
+				out.write(array ? "}" : "}\n");
+				rows++;
+			}
+			if (array) out.write("]\n");
+			return rows;
+		}
+
+		private void writeString(String value) throws IOException {
+			out.write('"');
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				switch (c) {
+					case '"': out.write("\\\""); break;
+					case '\\': out.write("\\\\"); break;
+					case '\n': out.write("\\n"); break;
+					case '\r': out.write("\\r"); break;
+					case '\t': out.write("\\t"); break;
+					default:
+						if (c < 0x20) {
+							out.write(String.format("\\u%04x", (int) c));
+						} else {
+							out.write(c);
+						}
+				}
+			}
+			out.write('"');
+		}
+	}
+
+	/**
+	 * Aligned columns. Widths come from the header and the first {@link #TABLE_SAMPLE_ROWS} rows;
+	 * later rows that are wider push the following columns over rather than being held in memory.
+	 */
+	static class TableWriter extends ResultWriter {
+		TableWriter(WritableByteChannel channel) {
+			super(channel);
+		}
+
+		@Override
+		protected long write(ResultSet rs, String[] names, boolean[] integral, boolean header) throws SQLException, IOException {
+			int[] widths = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				widths[i] = names[i].length();
+			}
+			List<String[]> sample = new ArrayList<String[]>();
+			boolean more = true;
+			while (sample.size() < TABLE_SAMPLE_ROWS && (more = rs.next())) {
+				String[] row = new String[names.length];
+				for (int i = 0; i < names.length; i++) {
+					String value = rs.getString(i + 1);
+					row[i] = value == null ? "NULL" : value;
+					widths[i] = Math.max(widths[i], row[i].length());
+				}
+				sample.add(row);
+			}
+			if (header) {
+				writeCells(names, widths, integral, false);
+				for (int i = 0; i < names.length; i++) {
+					if (i > 0) out.write("-+-");
+					for (int j = 0; j < widths[i]; j++) out.write('-');
+				}
+				out.write('\n');
+			}
+			for (String[] row : sample) {
+				writeCells(row, widths, integral, true);
+			}
+			long rows = sample.size();
+			sample = null;
+			String[] row = new String[names.length];
+			while (more && rs.next()) {
+				for (int i = 0; i < names.length; i++) {
+					String value = rs.getString(i + 1);
+					row[i] = value == null ? "NULL" : value;
+				}
+				writeCells(row, widths, integral, true);
+				rows++;
+			}
+			return rows;
+		}
+
+		private void writeCells(String[] cells, int[] widths, boolean[] integral, boolean alignNumbers) throws IOException {
+			for (int i = 0; i < cells.length; i++) {
+				if (i > 0) out.write(" | ");
+				int pad = widths[i] - cells[i].length();
+				boolean right = alignNumbers && integral[i];
+				if (right) pad(pad);
+				out.write(cells[i]);
+				if (!right && i < cells.length - 1) pad(pad);
+			}
+			out.write('\n');
+		}
+
+		private void pad(int count) throws IOException {
+			for (int i = 0; i < count; i++) out.write(' ');
+		}
+	}
+}
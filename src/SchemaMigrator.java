@@ -0,0 +1,517 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Brings the database schema up to date on startup.
+ *
+ * <p>The schema version is kept in SQLite's {@code PRAGMA user_version}. Each entry of
+ * {@link #MIGRATIONS} moves the schema up one version; entries are only ever appended, never edited,
+ * because databases in the field may already have run them. Their SQL is written out here rather than
+ * taken from the classes that use the tables, so a later change to one of those classes cannot change
+ * what an old migration does. Pending migrations run together in one BEGIN IMMEDIATE transaction, so
+ * two processes starting at once cannot both apply them.</p>
+ */
+public class SchemaMigrator {
+
+	/**
+	 * Migration i (0-based) takes the schema from version i to version i + 1.
+	 */
+	private static final String[][] MIGRATIONS = {
+		// 1: indexes for the join paths of the menu queries.
+		// CHECK_OUT.Card_Id needs none: it leads the (Card_Id, Item_Id) primary key.
+		{
+			// getAlbumCopies, getNumOfDigitalAlbumsCopies: items of a title, physical or digital
+			"CREATE INDEX IF NOT EXISTS LIBRARY_ITEM_MEDIA_IDX ON LIBRARY_ITEM (Media_Id, Is_Digital);",
+			// getTracksBeforeYear: ARTIST.Name -> FEATURES.Artist_Id -> FEATURES.Track_Title -> TRACK.Title
+			"CREATE INDEX IF NOT EXISTS ARTIST_NAME_IDX ON ARTIST (Name, Artist_Id);",
+			"CREATE INDEX IF NOT EXISTS FEATURES_ARTIST_IDX ON FEATURES (Artist_Id, Track_Title);",
+			"CREATE INDEX IF NOT EXISTS TRACK_TITLE_IDX ON TRACK (Title, Year);",
+			// every query that filters on Type_of_Media; Length also serves getLongestAudiobook's ORDER BY
+			"CREATE INDEX IF NOT EXISTS MEDIA_TYPE_IDX ON MEDIA (Type_of_Media, Length);"
+		},
+		// 2: MEDIA_STOCK, per-title item and checkout counters kept current by triggers (see StockCounters).
+		{
+			"CREATE TABLE MEDIA_STOCK (" +
+					"Media_Id INT NOT NULL, " +
+					"Is_Digital BOOLEAN NOT NULL, " +
+					"Total INT NOT NULL DEFAULT 0, " +
+					"Checked_Out INT NOT NULL DEFAULT 0, " +
+					"PRIMARY KEY (Media_Id, Is_Digital));",
+			"INSERT INTO MEDIA_STOCK (Media_Id, Is_Digital, Total, Checked_Out) " +
+					"SELECT L.Media_Id, L.Is_Digital, COUNT(*), COUNT(C.Item_Id) FROM LIBRARY_ITEM AS L " +
+					"LEFT OUTER JOIN CHECK_OUT AS C ON C.Item_Id = L.Item_Id GROUP BY L.Media_Id, L.Is_Digital;",
+			"CREATE TRIGGER MEDIA_STOCK_ITEM_INSERT AFTER INSERT ON LIBRARY_ITEM BEGIN " +
+					"INSERT OR IGNORE INTO MEDIA_STOCK (Media_Id, Is_Digital) VALUES (NEW.Media_Id, NEW.Is_Digital); " +
+					"UPDATE MEDIA_STOCK SET Total = Total + 1 " +
+					"WHERE Media_Id = NEW.Media_Id AND Is_Digital = NEW.Is_Digital; " +
+					"END;",
+			"CREATE TRIGGER MEDIA_STOCK_ITEM_DELETE AFTER DELETE ON LIBRARY_ITEM BEGIN " +
+					"UPDATE MEDIA_STOCK SET Total = Total - 1 " +
+					"WHERE Media_Id = OLD.Media_Id AND Is_Digital = OLD.Is_Digital; " +
+					"END;",
+			"CREATE TRIGGER MEDIA_STOCK_ITEM_UPDATE AFTER UPDATE OF Media_Id, Is_Digital ON LIBRARY_ITEM BEGIN " +
+					"UPDATE MEDIA_STOCK SET Total = Total - 1, " +
+					"Checked_Out = Checked_Out - (SELECT COUNT(*) FROM CHECK_OUT WHERE Item_Id = OLD.Item_Id) " +
+					"WHERE Media_Id = OLD.Media_Id AND Is_Digital = OLD.Is_Digital; " +
+					"INSERT OR IGNORE INTO MEDIA_STOCK (Media_Id, Is_Digital) VALUES (NEW.Media_Id, NEW.Is_Digital); " +
+					"UPDATE MEDIA_STOCK SET Total = Total + 1, " +
+					"Checked_Out = Checked_Out + (SELECT COUNT(*) FROM CHECK_OUT WHERE Item_Id = NEW.Item_Id) " +
+					"WHERE Media_Id = NEW.Media_Id AND Is_Digital = NEW.Is_Digital; " +
+					"END;",
+			"CREATE TRIGGER MEDIA_STOCK_CHECKOUT AFTER INSERT ON CHECK_OUT BEGIN " +
+					"UPDATE MEDIA_STOCK SET Checked_Out = Checked_Out + 1 " +
+					"WHERE (Media_Id, Is_Digital) = (SELECT Media_Id, Is_Digital FROM LIBRARY_ITEM WHERE Item_Id = NEW.Item_Id); " +
+					"END;",
+			"CREATE TRIGGER MEDIA_STOCK_RETURN AFTER DELETE ON CHECK_OUT BEGIN " +
+					"UPDATE MEDIA_STOCK SET Checked_Out = Checked_Out - 1 " +
+					"WHERE (Media_Id, Is_Digital) = (SELECT Media_Id, Is_Digital FROM LIBRARY_ITEM WHERE Item_Id = OLD.Item_Id); " +
+					"END;",
+			"CREATE TRIGGER MEDIA_STOCK_CHECKOUT_UPDATE AFTER UPDATE OF Item_Id ON CHECK_OUT BEGIN " +
+					"UPDATE MEDIA_STOCK SET Checked_Out = Checked_Out - 1 " +
+					"WHERE (Media_Id, Is_Digital) = (SELECT Media_Id, Is_Digital FROM LIBRARY_ITEM WHERE Item_Id = OLD.Item_Id); " +
+					"UPDATE MEDIA_STOCK SET Checked_Out = Checked_Out + 1 " +
+					"WHERE (Media_Id, Is_Digital) = (SELECT Media_Id, Is_Digital FROM LIBRARY_ITEM WHERE Item_Id = NEW.Item_Id); " +
+					"END;"
+		},
+		// 3: OverdueReport pages through CHECK_OUT by (Due_date, Item_Id); Card_Id makes the index
+		// cover the key query and the late fee update's patron list.
+		{
+			"CREATE INDEX IF NOT EXISTS CHECK_OUT_DUE_IDX ON CHECK_OUT (Due_date, Item_Id, Card_Id);"
+		},
+		// 4: SEARCH, the FTS5 index of titles and names kept current by triggers (see SearchIndex).
+		{
+			"CREATE VIRTUAL TABLE SEARCH USING fts5(Text, Kind UNINDEXED, Ref UNINDEXED, " +
+					"tokenize = 'unicode61 remove_diacritics 2', prefix = '1 2 3');",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (1 << 32) + Media_Id, Name, 'MEDIA', Media_Id " +
+					"FROM MEDIA;",
+			"CREATE TRIGGER SEARCH_MEDIA_INSERT AFTER INSERT ON MEDIA BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((1 << 32) + NEW.Media_Id, NEW.Name, 'MEDIA', NEW.Media_Id); END;",
+			"CREATE TRIGGER SEARCH_MEDIA_DELETE AFTER DELETE ON MEDIA BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (1 << 32) + OLD.Media_Id; END;",
+			"CREATE TRIGGER SEARCH_MEDIA_UPDATE AFTER UPDATE OF Name, Media_Id ON MEDIA BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (1 << 32) + OLD.Media_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((1 << 32) + NEW.Media_Id, NEW.Name, 'MEDIA', NEW.Media_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (2 << 32) + Narrator_Id, Name, 'NARRATOR', Narrator_Id " +
+					"FROM NARRATOR;",
+			"CREATE TRIGGER SEARCH_NARRATOR_INSERT AFTER INSERT ON NARRATOR BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((2 << 32) + NEW.Narrator_Id, NEW.Name, 'NARRATOR', NEW.Narrator_Id); END;",
+			"CREATE TRIGGER SEARCH_NARRATOR_DELETE AFTER DELETE ON NARRATOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (2 << 32) + OLD.Narrator_Id; END;",
+			"CREATE TRIGGER SEARCH_NARRATOR_UPDATE AFTER UPDATE OF Name, Narrator_Id ON NARRATOR BEGIN DELETE " +
+					"FROM SEARCH WHERE rowid = (2 << 32) + OLD.Narrator_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((2 << 32) + NEW.Narrator_Id, NEW.Name, 'NARRATOR', NEW.Narrator_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (3 << 32) + Author_Id, Name, 'AUTHOR', Author_Id " +
+					"FROM AUTHOR;",
+			"CREATE TRIGGER SEARCH_AUTHOR_INSERT AFTER INSERT ON AUTHOR BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((3 << 32) + NEW.Author_Id, NEW.Name, 'AUTHOR', NEW.Author_Id); END;",
+			"CREATE TRIGGER SEARCH_AUTHOR_DELETE AFTER DELETE ON AUTHOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (3 << 32) + OLD.Author_Id; END;",
+			"CREATE TRIGGER SEARCH_AUTHOR_UPDATE AFTER UPDATE OF Name, Author_Id ON AUTHOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (3 << 32) + OLD.Author_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((3 << 32) + NEW.Author_Id, NEW.Name, 'AUTHOR', NEW.Author_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (4 << 32) + Artist_Id, Name, 'ARTIST', Artist_Id " +
+					"FROM ARTIST;",
+			"CREATE TRIGGER SEARCH_ARTIST_INSERT AFTER INSERT ON ARTIST BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((4 << 32) + NEW.Artist_Id, NEW.Name, 'ARTIST', NEW.Artist_Id); END;",
+			"CREATE TRIGGER SEARCH_ARTIST_DELETE AFTER DELETE ON ARTIST BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (4 << 32) + OLD.Artist_Id; END;",
+			"CREATE TRIGGER SEARCH_ARTIST_UPDATE AFTER UPDATE OF Name, Artist_Id ON ARTIST BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (4 << 32) + OLD.Artist_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((4 << 32) + NEW.Artist_Id, NEW.Name, 'ARTIST', NEW.Artist_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (5 << 32) + Actor_Id, Name, 'ACTOR', Actor_Id " +
+					"FROM ACTOR;",
+			"CREATE TRIGGER SEARCH_ACTOR_INSERT AFTER INSERT ON ACTOR BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((5 << 32) + NEW.Actor_Id, NEW.Name, 'ACTOR', NEW.Actor_Id); END;",
+			"CREATE TRIGGER SEARCH_ACTOR_DELETE AFTER DELETE ON ACTOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (5 << 32) + OLD.Actor_Id; END;",
+			"CREATE TRIGGER SEARCH_ACTOR_UPDATE AFTER UPDATE OF Name, Actor_Id ON ACTOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (5 << 32) + OLD.Actor_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((5 << 32) + NEW.Actor_Id, NEW.Name, 'ACTOR', NEW.Actor_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (6 << 32) + Director_Id, Name, 'DIRECTOR', Director_Id " +
+					"FROM DIRECTOR;",
+			"CREATE TRIGGER SEARCH_DIRECTOR_INSERT AFTER INSERT ON DIRECTOR BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((6 << 32) + NEW.Director_Id, NEW.Name, 'DIRECTOR', NEW.Director_Id); END;",
+			"CREATE TRIGGER SEARCH_DIRECTOR_DELETE AFTER DELETE ON DIRECTOR BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (6 << 32) + OLD.Director_Id; END;",
+			"CREATE TRIGGER SEARCH_DIRECTOR_UPDATE AFTER UPDATE OF Name, Director_Id ON DIRECTOR BEGIN DELETE " +
+					"FROM SEARCH WHERE rowid = (6 << 32) + OLD.Director_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((6 << 32) + NEW.Director_Id, NEW.Name, 'DIRECTOR', NEW.Director_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"SELECT (7 << 32) + Developer_Id, Name, 'DEVELOPER', Developer_Id FROM DEVELOPER;",
+			"CREATE TRIGGER SEARCH_DEVELOPER_INSERT AFTER INSERT ON DEVELOPER BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((7 << 32) + NEW.Developer_Id, NEW.Name, 'DEVELOPER', NEW.Developer_Id); END;",
+			"CREATE TRIGGER SEARCH_DEVELOPER_DELETE AFTER DELETE ON DEVELOPER BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid = (7 << 32) + OLD.Developer_Id; END;",
+			"CREATE TRIGGER SEARCH_DEVELOPER_UPDATE AFTER UPDATE OF Name, Developer_Id ON DEVELOPER BEGIN DELETE " +
+					"FROM SEARCH WHERE rowid = (7 << 32) + OLD.Developer_Id; INSERT INTO SEARCH (rowid, Text, Kind, Ref) " +
+					"VALUES ((7 << 32) + NEW.Developer_Id, NEW.Name, 'DEVELOPER', NEW.Developer_Id); END;",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (15 << 32) + rowid, Title, 'TRACK', Album_Id " +
+					"FROM TRACK;",
+			"CREATE TRIGGER SEARCH_TRACK_INSERT AFTER INSERT ON TRACK BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) VALUES (MAX(IFNULL((SELECT rowid " +
+					"FROM SEARCH ORDER BY rowid DESC LIMIT 1), 0) + 1, 64424509440), NEW.Title, 'TRACK', NEW.Album_Id); END;",
+			"CREATE TRIGGER SEARCH_TRACK_DELETE AFTER DELETE ON TRACK BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid IN (SELECT rowid FROM SEARCH " +
+					"WHERE SEARCH MATCH 'Text : \"' || replace(OLD.Title, '\"', '\"\"') || '\"' AND Kind = 'TRACK' AND Ref = OLD.Album_Id AND Text = OLD.Title); END;",
+			"CREATE TRIGGER SEARCH_TRACK_UPDATE AFTER UPDATE OF Title, Album_Id ON TRACK BEGIN DELETE FROM SEARCH " +
+					"WHERE rowid IN (SELECT rowid FROM SEARCH " +
+					"WHERE SEARCH MATCH 'Text : \"' || replace(OLD.Title, '\"', '\"\"') || '\"' AND Kind = 'TRACK' AND Ref = OLD.Album_Id AND Text = OLD.Title); " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) VALUES (MAX(IFNULL((SELECT rowid " +
+					"FROM SEARCH ORDER BY rowid DESC LIMIT 1), 0) + 1, 64424509440), NEW.Title, 'TRACK', NEW.Album_Id); END;"
+		},
+		// 5: CHANGE_LOG and CHANGE_CONSUMER, the change data capture log kept by triggers (see ChangeLog).
+		{
+			"CREATE TABLE CHANGE_LOG (Seq INTEGER " +
+					"PRIMARY KEY AUTOINCREMENT, Table_Name TEXT NOT NULL, Key TEXT NOT NULL, Op TEXT NOT NULL, Changed_At TEXT NOT NULL DEFAULT (strftime('%Y-%m-%d %H:%M:%f', 'now')));",
+			"CREATE TABLE CHANGE_CONSUMER (Name TEXT NOT NULL PRIMARY KEY, Acked_Seq INTEGER NOT NULL);",
+			"CREATE TRIGGER CHANGE_LOG_MEDIA_INSERT AFTER INSERT ON MEDIA BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('MEDIA', json_array(NEW.Media_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_MEDIA_DELETE AFTER DELETE ON MEDIA BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('MEDIA', json_array(OLD.Media_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_MEDIA_UPDATE AFTER UPDATE ON MEDIA BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'MEDIA', json_array(OLD.Media_Id), 'DELETE' " +
+					"WHERE OLD.Media_Id IS NOT NEW.Media_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'MEDIA', json_array(NEW.Media_Id), " +
+					"CASE WHEN OLD.Media_Id IS NOT NEW.Media_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_LIBRARY_ITEM_INSERT AFTER INSERT ON LIBRARY_ITEM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('LIBRARY_ITEM', json_array(NEW.Item_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_LIBRARY_ITEM_DELETE AFTER DELETE ON LIBRARY_ITEM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('LIBRARY_ITEM', json_array(OLD.Item_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_LIBRARY_ITEM_UPDATE AFTER UPDATE ON LIBRARY_ITEM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'LIBRARY_ITEM', json_array(OLD.Item_Id), 'DELETE' " +
+					"WHERE OLD.Item_Id IS NOT NEW.Item_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'LIBRARY_ITEM', json_array(NEW.Item_Id), " +
+					"CASE WHEN OLD.Item_Id IS NOT NEW.Item_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_PHYSICAL_INSERT AFTER INSERT ON PHYSICAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('PHYSICAL', json_array(NEW.Item_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_PHYSICAL_DELETE AFTER DELETE ON PHYSICAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('PHYSICAL', json_array(OLD.Item_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_PHYSICAL_UPDATE AFTER UPDATE ON PHYSICAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'PHYSICAL', json_array(OLD.Item_Id), 'DELETE' " +
+					"WHERE OLD.Item_Id IS NOT NEW.Item_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'PHYSICAL', json_array(NEW.Item_Id), " +
+					"CASE WHEN OLD.Item_Id IS NOT NEW.Item_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_DIGITAL_INSERT AFTER INSERT ON DIGITAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('DIGITAL', json_array(NEW.Item_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DIGITAL_DELETE AFTER DELETE ON DIGITAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('DIGITAL', json_array(OLD.Item_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DIGITAL_UPDATE AFTER UPDATE ON DIGITAL BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'DIGITAL', json_array(OLD.Item_Id), 'DELETE' " +
+					"WHERE OLD.Item_Id IS NOT NEW.Item_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'DIGITAL', json_array(NEW.Item_Id), " +
+					"CASE WHEN OLD.Item_Id IS NOT NEW.Item_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_PATRON_INSERT AFTER INSERT ON PATRON BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('PATRON', json_array(NEW.Card_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_PATRON_DELETE AFTER DELETE ON PATRON BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('PATRON', json_array(OLD.Card_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_PATRON_UPDATE AFTER UPDATE ON PATRON BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'PATRON', json_array(OLD.Card_Id), 'DELETE' " +
+					"WHERE OLD.Card_Id IS NOT NEW.Card_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'PATRON', json_array(NEW.Card_Id), " +
+					"CASE WHEN OLD.Card_Id IS NOT NEW.Card_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_CHECK_OUT_INSERT AFTER INSERT ON CHECK_OUT BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('CHECK_OUT', json_array(NEW.Card_Id, NEW.Item_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_CHECK_OUT_DELETE AFTER DELETE ON CHECK_OUT BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('CHECK_OUT', json_array(OLD.Card_Id, OLD.Item_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_CHECK_OUT_UPDATE AFTER UPDATE ON CHECK_OUT BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'CHECK_OUT', json_array(OLD.Card_Id, OLD.Item_Id), 'DELETE' " +
+					"WHERE OLD.Card_Id IS NOT NEW.Card_Id OR OLD.Item_Id IS NOT NEW.Item_Id; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'CHECK_OUT', json_array(NEW.Card_Id, NEW.Item_Id), " +
+					"CASE WHEN OLD.Card_Id IS NOT NEW.Card_Id OR OLD.Item_Id IS NOT NEW.Item_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_AUDIOBOOK_INSERT AFTER INSERT ON AUDIOBOOK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('AUDIOBOOK', json_array(NEW.Audiobook_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUDIOBOOK_DELETE AFTER DELETE ON AUDIOBOOK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('AUDIOBOOK', json_array(OLD.Audiobook_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUDIOBOOK_UPDATE AFTER UPDATE ON AUDIOBOOK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'AUDIOBOOK', json_array(OLD.Audiobook_Id), 'DELETE' " +
+					"WHERE OLD.Audiobook_Id IS NOT NEW.Audiobook_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'AUDIOBOOK', json_array(NEW.Audiobook_Id), " +
+					"CASE WHEN OLD.Audiobook_Id IS NOT NEW.Audiobook_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_NARRATOR_INSERT AFTER INSERT ON NARRATOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('NARRATOR', json_array(NEW.Narrator_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_NARRATOR_DELETE AFTER DELETE ON NARRATOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('NARRATOR', json_array(OLD.Narrator_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_NARRATOR_UPDATE AFTER UPDATE ON NARRATOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'NARRATOR', json_array(OLD.Narrator_Id), 'DELETE' " +
+					"WHERE OLD.Narrator_Id IS NOT NEW.Narrator_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'NARRATOR', json_array(NEW.Narrator_Id), " +
+					"CASE WHEN OLD.Narrator_Id IS NOT NEW.Narrator_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHOR_INSERT AFTER INSERT ON AUTHOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('AUTHOR', json_array(NEW.Author_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHOR_DELETE AFTER DELETE ON AUTHOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('AUTHOR', json_array(OLD.Author_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHOR_UPDATE AFTER UPDATE ON AUTHOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'AUTHOR', json_array(OLD.Author_Id), 'DELETE' " +
+					"WHERE OLD.Author_Id IS NOT NEW.Author_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'AUTHOR', json_array(NEW.Author_Id), " +
+					"CASE WHEN OLD.Author_Id IS NOT NEW.Author_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHORS_INSERT AFTER INSERT ON AUTHORS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('AUTHORS', json_array(NEW.Audiobook_Id, NEW.Author_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHORS_DELETE AFTER DELETE ON AUTHORS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('AUTHORS', json_array(OLD.Audiobook_Id, OLD.Author_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_AUTHORS_UPDATE AFTER UPDATE ON AUTHORS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'AUTHORS', json_array(OLD.Audiobook_Id, OLD.Author_Id), 'DELETE' " +
+					"WHERE OLD.Audiobook_Id IS NOT NEW.Audiobook_Id OR OLD.Author_Id IS NOT NEW.Author_Id; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'AUTHORS', json_array(NEW.Audiobook_Id, NEW.Author_Id), " +
+					"CASE WHEN OLD.Audiobook_Id IS NOT NEW.Audiobook_Id OR OLD.Author_Id IS NOT NEW.Author_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_GAME_INSERT AFTER INSERT ON GAME BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('GAME', json_array(NEW.Game_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_GAME_DELETE AFTER DELETE ON GAME BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('GAME', json_array(OLD.Game_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_GAME_UPDATE AFTER UPDATE ON GAME BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'GAME', json_array(OLD.Game_Id), 'DELETE' " +
+					"WHERE OLD.Game_Id IS NOT NEW.Game_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'GAME', json_array(NEW.Game_Id), " +
+					"CASE WHEN OLD.Game_Id IS NOT NEW.Game_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPER_INSERT AFTER INSERT ON DEVELOPER BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DEVELOPER', json_array(NEW.Developer_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPER_DELETE AFTER DELETE ON DEVELOPER BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DEVELOPER', json_array(OLD.Developer_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPER_UPDATE AFTER UPDATE ON DEVELOPER BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'DEVELOPER', json_array(OLD.Developer_Id), 'DELETE' " +
+					"WHERE OLD.Developer_Id IS NOT NEW.Developer_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'DEVELOPER', json_array(NEW.Developer_Id), " +
+					"CASE WHEN OLD.Developer_Id IS NOT NEW.Developer_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPS_INSERT AFTER INSERT ON DEVELOPS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DEVELOPS', json_array(NEW.Game_Id, NEW.Developer_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPS_DELETE AFTER DELETE ON DEVELOPS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DEVELOPS', json_array(OLD.Game_Id, OLD.Developer_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DEVELOPS_UPDATE AFTER UPDATE ON DEVELOPS BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'DEVELOPS', json_array(OLD.Game_Id, OLD.Developer_Id), 'DELETE' " +
+					"WHERE OLD.Game_Id IS NOT NEW.Game_Id OR OLD.Developer_Id IS NOT NEW.Developer_Id; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'DEVELOPS', json_array(NEW.Game_Id, NEW.Developer_Id), " +
+					"CASE WHEN OLD.Game_Id IS NOT NEW.Game_Id OR OLD.Developer_Id IS NOT NEW.Developer_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_ALBUM_INSERT AFTER INSERT ON ALBUM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ALBUM', json_array(NEW.Album_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ALBUM_DELETE AFTER DELETE ON ALBUM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ALBUM', json_array(OLD.Album_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ALBUM_UPDATE AFTER UPDATE ON ALBUM BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'ALBUM', json_array(OLD.Album_Id), 'DELETE' " +
+					"WHERE OLD.Album_Id IS NOT NEW.Album_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'ALBUM', json_array(NEW.Album_Id), " +
+					"CASE WHEN OLD.Album_Id IS NOT NEW.Album_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_ARTIST_INSERT AFTER INSERT ON ARTIST BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ARTIST', json_array(NEW.Artist_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ARTIST_DELETE AFTER DELETE ON ARTIST BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ARTIST', json_array(OLD.Artist_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ARTIST_UPDATE AFTER UPDATE ON ARTIST BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'ARTIST', json_array(OLD.Artist_Id), 'DELETE' " +
+					"WHERE OLD.Artist_Id IS NOT NEW.Artist_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'ARTIST', json_array(NEW.Artist_Id), " +
+					"CASE WHEN OLD.Artist_Id IS NOT NEW.Artist_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_TRACK_INSERT AFTER INSERT ON TRACK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('TRACK', json_array(NEW.Album_Id, NEW.Title), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_TRACK_DELETE AFTER DELETE ON TRACK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('TRACK', json_array(OLD.Album_Id, OLD.Title), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_TRACK_UPDATE AFTER UPDATE ON TRACK BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'TRACK', json_array(OLD.Album_Id, OLD.Title), 'DELETE' " +
+					"WHERE OLD.Album_Id IS NOT NEW.Album_Id OR OLD.Title IS NOT NEW.Title; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'TRACK', json_array(NEW.Album_Id, NEW.Title), " +
+					"CASE WHEN OLD.Album_Id IS NOT NEW.Album_Id OR OLD.Title IS NOT NEW.Title THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_FEATURES_INSERT AFTER INSERT ON FEATURES BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('FEATURES', json_array(NEW.Album_Id, NEW.Artist_Id, NEW.Track_Title), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_FEATURES_DELETE AFTER DELETE ON FEATURES BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('FEATURES', json_array(OLD.Album_Id, OLD.Artist_Id, OLD.Track_Title), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_FEATURES_UPDATE AFTER UPDATE ON FEATURES BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'FEATURES', json_array(OLD.Album_Id, OLD.Artist_Id, OLD.Track_Title), 'DELETE' " +
+					"WHERE OLD.Album_Id IS NOT NEW.Album_Id OR OLD.Artist_Id IS NOT NEW.Artist_Id OR OLD.Track_Title IS NOT NEW.Track_Title; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'FEATURES', json_array(NEW.Album_Id, NEW.Artist_Id, NEW.Track_Title), " +
+					"CASE WHEN OLD.Album_Id IS NOT NEW.Album_Id OR OLD.Artist_Id IS NOT NEW.Artist_Id OR OLD.Track_Title IS NOT NEW.Track_Title THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_MOVIE_INSERT AFTER INSERT ON MOVIE BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('MOVIE', json_array(NEW.Movie_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_MOVIE_DELETE AFTER DELETE ON MOVIE BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('MOVIE', json_array(OLD.Movie_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_MOVIE_UPDATE AFTER UPDATE ON MOVIE BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'MOVIE', json_array(OLD.Movie_Id), 'DELETE' " +
+					"WHERE OLD.Movie_Id IS NOT NEW.Movie_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'MOVIE', json_array(NEW.Movie_Id), " +
+					"CASE WHEN OLD.Movie_Id IS NOT NEW.Movie_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_DIRECTOR_INSERT AFTER INSERT ON DIRECTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DIRECTOR', json_array(NEW.Director_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DIRECTOR_DELETE AFTER DELETE ON DIRECTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('DIRECTOR', json_array(OLD.Director_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_DIRECTOR_UPDATE AFTER UPDATE ON DIRECTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'DIRECTOR', json_array(OLD.Director_Id), 'DELETE' " +
+					"WHERE OLD.Director_Id IS NOT NEW.Director_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'DIRECTOR', json_array(NEW.Director_Id), " +
+					"CASE WHEN OLD.Director_Id IS NOT NEW.Director_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTOR_INSERT AFTER INSERT ON ACTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ACTOR', json_array(NEW.Actor_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTOR_DELETE AFTER DELETE ON ACTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) VALUES ('ACTOR', json_array(OLD.Actor_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTOR_UPDATE AFTER UPDATE ON ACTOR BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'ACTOR', json_array(OLD.Actor_Id), 'DELETE' " +
+					"WHERE OLD.Actor_Id IS NOT NEW.Actor_Id; INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'ACTOR', json_array(NEW.Actor_Id), " +
+					"CASE WHEN OLD.Actor_Id IS NOT NEW.Actor_Id THEN 'INSERT' ELSE 'UPDATE' END; END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTS_IN_INSERT AFTER INSERT ON ACTS_IN BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('ACTS_IN', json_array(NEW.Movie_Id, NEW.Actor_Id), 'INSERT'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTS_IN_DELETE AFTER DELETE ON ACTS_IN BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"VALUES ('ACTS_IN', json_array(OLD.Movie_Id, OLD.Actor_Id), 'DELETE'); END;",
+			"CREATE TRIGGER CHANGE_LOG_ACTS_IN_UPDATE AFTER UPDATE ON ACTS_IN BEGIN " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) " +
+					"SELECT 'ACTS_IN', json_array(OLD.Movie_Id, OLD.Actor_Id), 'DELETE' " +
+					"WHERE OLD.Movie_Id IS NOT NEW.Movie_Id OR OLD.Actor_Id IS NOT NEW.Actor_Id; " +
+					"INSERT INTO CHANGE_LOG (Table_Name, Key, Op) SELECT 'ACTS_IN', json_array(NEW.Movie_Id, NEW.Actor_Id), " +
+					"CASE WHEN OLD.Movie_Id IS NOT NEW.Movie_Id OR OLD.Actor_Id IS NOT NEW.Actor_Id THEN 'INSERT' ELSE 'UPDATE' END; END;"
+		},
+		// 6: RECOMMENDATION, each title's most co-circulated titles (see Recommendations).
+		{
+			"CREATE TABLE RECOMMENDATION (Media_Id INT NOT NULL, Rank INT NOT NULL, Other_Id INT NOT NULL, Together INT NOT NULL, " +
+					"PRIMARY KEY (Media_Id, Rank)) WITHOUT ROWID;"
+		},
+		// 7: ID_SEQUENCE, the next free id of each IdAllocator sequence. Databases the allocator has
+		// already used have the table, which it used to create itself.
+		{
+			"CREATE TABLE IF NOT EXISTS ID_SEQUENCE (" +
+					"Name VARCHAR(30) NOT NULL PRIMARY KEY, " +
+					"Next_Id INT NOT NULL);"
+		},
+		// 8: SEARCH rows of tracks are numbered by TRACK's rowid, (15 << 32) + rowid, so the TRACK triggers
+		// find a track's row directly. Before, the old row was looked up with a phrase MATCH on the title,
+		// which never finds a title with no words in it, such as "!!!".
+		{
+			"DROP TRIGGER SEARCH_TRACK_INSERT;",
+			"DROP TRIGGER SEARCH_TRACK_DELETE;",
+			"DROP TRIGGER SEARCH_TRACK_UPDATE;",
+			"DELETE FROM SEARCH WHERE rowid >= (15 << 32);",
+			"INSERT INTO SEARCH (rowid, Text, Kind, Ref) SELECT (15 << 32) + rowid, Title, 'TRACK', Album_Id FROM TRACK;",
+			"CREATE TRIGGER SEARCH_TRACK_INSERT AFTER INSERT ON TRACK BEGIN " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) VALUES ((15 << 32) + NEW.rowid, NEW.Title, 'TRACK', NEW.Album_Id); " +
+					"END;",
+			"CREATE TRIGGER SEARCH_TRACK_DELETE AFTER DELETE ON TRACK BEGIN " +
+					"DELETE FROM SEARCH WHERE rowid = (15 << 32) + OLD.rowid; " +
+					"END;",
+			"CREATE TRIGGER SEARCH_TRACK_UPDATE AFTER UPDATE OF Title, Album_Id ON TRACK BEGIN " +
+					"DELETE FROM SEARCH WHERE rowid = (15 << 32) + OLD.rowid; " +
+					"INSERT INTO SEARCH (rowid, Text, Kind, Ref) VALUES ((15 << 32) + NEW.rowid, NEW.Title, 'TRACK', NEW.Album_Id); " +
+					"END;"
+		},
+		// 9: name indexes for the contributor tables, which ContributorDirectory checks a miss against.
+		// ARTIST has one from migration 1.
+		{
+			"CREATE INDEX IF NOT EXISTS NARRATOR_NAME_IDX ON NARRATOR (Name, Narrator_Id);",
+			"CREATE INDEX IF NOT EXISTS AUTHOR_NAME_IDX ON AUTHOR (Name, Author_Id);",
+			"CREATE INDEX IF NOT EXISTS ACTOR_NAME_IDX ON ACTOR (Name, Actor_Id);",
+			"CREATE INDEX IF NOT EXISTS DIRECTOR_NAME_IDX ON DIRECTOR (Name, Director_Id);",
+			"CREATE INDEX IF NOT EXISTS DEVELOPER_NAME_IDX ON DEVELOPER (Name, Developer_Id);"
+		}
+	};
+
+	/**
+	 * @return the version the schema has after every migration has run
+	 */
+	public static int latestVersion() {
+		return MIGRATIONS.length;
+	}
+
+	/**
+	 * Runs every migration the database has not seen yet.
+	 *
+	 * @param pool the pool to borrow a connection from
+	 * @return the number of migrations applied
+	 */
+	public static int migrate(ConnectionPool pool) throws SQLException {
+		Connection conn = pool.borrow();
+		try {
+			return migrate(conn);
+		} finally {
+			pool.release(conn);
+		}
+	}
+
+	/**
+	 * Runs every migration the database has not seen yet.
+	 *
+	 * @param conn a connection in auto-commit mode
+	 * @return the number of migrations applied
+	 */
+	public static int migrate(Connection conn) throws SQLException {
+		if (version(conn) >= MIGRATIONS.length) {
+			return 0;
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("BEGIN IMMEDIATE;");
+			try {
+				// Re-read under the write lock; another process may have migrated in the meantime.
+				int version = version(conn);
+				int applied = 0;
+				for (int i = version; i < MIGRATIONS.length; i++) {
+					for (String sql : MIGRATIONS[i]) {
+						stmt.execute(sql);
+					}
+					applied++;
+				}
+				stmt.execute("PRAGMA user_version = " + Math.max(version, MIGRATIONS.length) + ";");
+				stmt.execute("COMMIT;");
+				if (applied > 0) {
+					System.out.println("Schema migrated from version " + version + " to " + MIGRATIONS.length);
+				}
+				return applied;
+			} catch (SQLException e) {
+				stmt.execute("ROLLBACK;");
+				throw e;
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * @param conn a connection object
+	 * @return the schema version recorded in the database
+	 */
+	public static int version(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("PRAGMA user_version;");
+			try {
+				return rs.next() ? rs.getInt(1) : 0;
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+}
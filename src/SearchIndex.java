@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Full-text search over media titles, track titles and contributor names.
+ *
+ * <p>The only lookups the app had were exact matches ({@code ARTIST.Name = ?}); a {@code LIKE '%x%'}
+ * over MEDIA, TRACK and the contributor tables reads every row of all of them. SEARCH is an FTS5 table
+ * holding one row per name: its text, its kind (the table it comes from) and its reference (Media_Id,
+ * the contributor's id, or for a track its Album_Id). Triggers on every source table keep it current,
+ * so a search is an index lookup ranked by bm25, and every word of the query may be the start of a
+ * word (so "grea gats" finds "The Great Gatsby"). Case and accents are ignored.</p>
+ *
+ * <p>Rows are numbered by kind, {@code kind << 32 | id}, so the triggers can find a name's row
+ * without a search. Tracks have no single id column, so theirs are {@code 15 << 32 | rowid} of TRACK.
+ * VACUUM may renumber the rowids of a table without an INTEGER PRIMARY KEY, so after one the track rows
+ * must be deleted and inserted again as migration 8 of {@link SchemaMigrator} does.</p>
+ *
+ * <p>For typeahead, where every keystroke is a query and the words may be misspelled, see
+ * {@link Typeahead}.</p>
+ *
+ * <p>Usage: {@code java SearchIndex TEXT [LIMIT]} prints the best matches for TEXT.</p>
+ */
+public class SearchIndex {
+
+	/** Results returned when the caller does not say. */
+	public static final int DEFAULT_LIMIT = 20;
+
+	/** The tables SEARCH is built from; a write to any of them changes the results. */
+	static final String[] TABLES = {"MEDIA", "TRACK", "NARRATOR", "AUTHOR", "ARTIST", "ACTOR", "DIRECTOR", "DEVELOPER"};
+
+	static final String SEARCH_SQL = "SELECT Kind, Ref, Text AS Name, round(bm25(SEARCH), 3) AS Score\n" +
+			"FROM SEARCH\n" +
+			"WHERE SEARCH MATCH ?\n" +
+			"ORDER BY rank\n" +
+			"LIMIT ?;\n";
+
+	/**
+	 * Turns what a patron typed into an FTS5 query: every word, as a prefix, must appear.
+	 *
+	 * @param text free text
+	 * @return the query, e.g. {@code "grea"* "gats"*}
+	 */
+	static String matchExpression(String text) {
+		StringBuilder match = new StringBuilder();
+		for (String word : Typeahead.normalize(text).split(" ")) {
+			if (word.isEmpty()) {
+				continue;
+			}
+			if (match.length() > 0) {
+				match.append(' ');
+			}
+			match.append('"').append(word).append("\"*");
+		}
+		if (match.length() == 0) {
+			throw new IllegalArgumentException("Search for at least one letter or digit");
+		}
+		return match.toString();
+	}
+
+	/**
+	 * Writes the best matches for a search, best first.
+	 *
+	 * @param conn a connection object
+	 * @param text what to search for
+	 * @param limit the most results
+	 * @param out where the rows (Kind, Ref, Name, Score) are written
+	 * @return the number of rows written
+	 */
+	public static long search(Connection conn, String text, int limit, ResultWriter out) throws SQLException, IOException {
+		PreparedStatement stmt = StatementCache.prepare(conn, SEARCH_SQL);
+		stmt.setString(1, matchExpression(text));
+		stmt.setInt(2, limit);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return out.write(rs);
+		} finally {
+			rs.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: java SearchIndex TEXT [LIMIT]");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			search(conn, args[0], args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_LIMIT, ResultWriter.standard());
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
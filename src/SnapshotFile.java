@@ -0,0 +1,728 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only copy of the catalog tables in one binary file that is memory-mapped instead of loaded.
+ *
+ * <p>{@link #export(Connection, String)} writes every catalog table (MEDIA, LIBRARY_ITEM, the media
+ * subtype, contributor and relationship tables, TRACK, DIGITAL and PHYSICAL; not PATRON or CHECK_OUT,
+ * which change all day) as fixed-width records of 8-byte slots: an integer column holds its value,
+ * a text column holds the offset of its value in a shared pool of length-prefixed UTF-8 strings that
+ * stores each distinct string once. Each table is sorted on the columns its lookups use, so finding
+ * the rows for a key is a binary search over the records and the sorted records themselves serve as
+ * the index. A directory at the end of the file gives every table's columns, row count and offset.</p>
+ *
+ * <p>{@link #open(String)} maps the file with {@code FileChannel.map} and reads only the directory.
+ * Records are read in place when a query touches them, so there is no load step, and processes that
+ * open the same file share its pages in the OS page cache. The read-only catalog queries of the menu
+ * are answered here with the same rows as the SQL in CSE3241app. Queries about patrons still need the
+ * database.</p>
+ *
+ * <p>Usage: {@code java SnapshotFile export FILE} writes a snapshot of -Ddatabase, and
+ * {@code java SnapshotFile FILE COMMAND [ARGS]} answers one of the commands {@code actors},
+ * {@code longest-audiobook}, {@code digital-album-copies}, {@code album-copies N} and
+ * {@code tracks-before ARTIST YEAR} from the file, with the app's ResultWriter (-Doutput.format).
+ * The file is limited to 2 GB, the most one mapping can cover.</p>
+ */
+public final class SnapshotFile {
+
+	private static final long MAGIC = 0x4353453332343153L; // "CSE3241S"
+	private static final int VERSION = 1;
+	private static final int SLOT = 8;
+
+	/** NULL in an integer column. */
+	static final long NULL_INT = Long.MIN_VALUE;
+
+	/** NULL in a text column. */
+	static final long NULL_TEXT = -1;
+
+	/** The tables in the snapshot and the order their records are written in. */
+	private static final String[][] TABLES = {
+			{"MEDIA", "Media_Id"},
+			{"LIBRARY_ITEM", "Media_Id, Item_Id"},
+			{"DIGITAL", "Item_Id"},
+			{"PHYSICAL", "Item_Id"},
+			{"AUDIOBOOK", "Audiobook_Id"},
+			{"MOVIE", "Movie_Id"},
+			{"GAME", "Game_Id"},
+			{"ALBUM", "Artist_Id, Album_Id"},
+			{"TRACK", "Title, Album_Id"},
+			{"FEATURES", "Artist_Id, Album_Id, Track_Title"},
+			{"AUTHORS", "Audiobook_Id, Author_Id"},
+			{"ACTS_IN", "Movie_Id, Actor_Id"},
+			{"DEVELOPS", "Game_Id, Developer_Id"},
+			{"NARRATOR", "Narrator_Id"},
+			{"AUTHOR", "Author_Id"},
+			{"ARTIST", "Name, Artist_Id"},
+			{"DIRECTOR", "Director_Id"},
+			{"DEVELOPER", "Developer_Id"},
+			// SELECT * FROM ACTOR lists actors in rowid order; keep it.
+			{"ACTOR", "rowid"}};
+
+	private final MappedByteBuffer buffer;
+	private final long poolOffset;
+	private final Map<String, Table> tables = new LinkedHashMap<String, Table>();
+
+	private SnapshotFile(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		if (buffer.capacity() < 16 || buffer.getLong(buffer.capacity() - 8) != MAGIC) {
+			throw new IllegalArgumentException("Not a catalog snapshot file");
+		}
+		ByteBuffer directory = buffer.duplicate();
+		directory.position((int) buffer.getLong(buffer.capacity() - 16));
+		int version = directory.getInt();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Snapshot file version " + version + " is not supported");
+		}
+		int tableCount = directory.getInt();
+		for (int t = 0; t < tableCount; t++) {
+			String name = readName(directory);
+			String[] columns = new String[directory.getInt()];
+			boolean[] text = new boolean[columns.length];
+			for (int c = 0; c < columns.length; c++) {
+				columns[c] = readName(directory);
+				text[c] = directory.get() == 1;
+			}
+			int sortColumn = directory.getInt();
+			int rows = directory.getInt();
+			long offset = directory.getLong();
+			tables.put(name, new Table(name, columns, text, sortColumn, rows, offset));
+		}
+		this.poolOffset = directory.getLong();
+	}
+
+	/**
+	 * Maps a snapshot file.
+	 *
+	 * @param fileName a file written by {@link #export(Connection, String)}
+	 * @return the mapped snapshot; the mapping is released when it is garbage collected
+	 */
+	public static SnapshotFile open(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException(fileName + " is larger than the 2 GB one mapping can cover");
+			}
+			return new SnapshotFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			// The mapping stays valid after its channel is closed.
+			channel.close();
+		}
+	}
+
+	/**
+	 * @param name a table name, e.g. "MEDIA"
+	 * @return the table
+	 */
+	public Table table(String name) {
+		Table table = tables.get(name.toUpperCase());
+		if (table == null) {
+			throw new IllegalArgumentException("The snapshot has no table " + name);
+		}
+		return table;
+	}
+
+	/**
+	 * One table's records: rows x columns slots of 8 bytes, sorted on {@link #sortColumn} if it is not -1.
+	 */
+	public final class Table {
+		final String name;
+		final String[] columns;
+		final boolean[] text;
+		final int sortColumn;
+		final int rows;
+		private final long offset;
+		private final int width;
+
+		Table(String name, String[] columns, boolean[] text, int sortColumn, int rows, long offset) {
+			this.name = name;
+			this.columns = columns;
+			this.text = text;
+			this.sortColumn = sortColumn;
+			this.rows = rows;
+			this.offset = offset;
+			this.width = columns.length * SLOT;
+		}
+
+		public int rows() {
+			return rows;
+		}
+
+		/**
+		 * @param column a column name
+		 * @return its position, from 0
+		 */
+		public int column(String column) {
+			for (int c = 0; c < columns.length; c++) {
+				if (columns[c].equalsIgnoreCase(column)) {
+					return c;
+				}
+			}
+			throw new IllegalArgumentException(name + " has no column " + column);
+		}
+
+		private long slot(int row, int column) {
+			return buffer.getLong((int) (offset + (long) row * width + column * SLOT));
+		}
+
+		/**
+		 * @return the value of an integer column, or {@link #NULL_INT}
+		 */
+		public long getLong(int row, int column) {
+			return slot(row, column);
+		}
+
+		/**
+		 * @return the value of an integer column; NULL reads as 0
+		 */
+		public int getInt(int row, int column) {
+			long value = slot(row, column);
+			return value == NULL_INT ? 0 : (int) value;
+		}
+
+		/**
+		 * @return the value of a text column, or null
+		 */
+		public String getString(int row, int column) {
+			long ref = slot(row, column);
+			if (ref == NULL_TEXT) {
+				return null;
+			}
+			int position = (int) (poolOffset + ref);
+			byte[] utf8 = new byte[buffer.getInt(position)];
+			ByteBuffer string = buffer.duplicate();
+			string.position(position + 4);
+			string.get(utf8);
+			return new String(utf8, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Compares a text value with UTF-8 bytes the way SQLite's BINARY collation does, without decoding it.
+		 */
+		int compareText(int row, int column, byte[] utf8) {
+			long ref = slot(row, column);
+			if (ref == NULL_TEXT) {
+				return -1;
+			}
+			int position = (int) (poolOffset + ref);
+			int length = buffer.getInt(position);
+			for (int i = 0; i < length && i < utf8.length; i++) {
+				int diff = (buffer.get(position + 4 + i) & 0xff) - (utf8[i] & 0xff);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return length - utf8.length;
+		}
+
+		/**
+		 * Finds the first row whose sort column is at least value.
+		 *
+		 * @return a row, or {@link #rows()} if every row is smaller
+		 */
+		public int lowerBound(long value) {
+			checkSorted();
+			int low = 0;
+			int high = rows;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (slot(middle, sortColumn) < value) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Finds the first row whose text sort column is at least value.
+		 *
+		 * @return a row, or {@link #rows()} if every row is smaller
+		 */
+		public int lowerBound(String value) {
+			checkSorted();
+			byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+			int low = 0;
+			int high = rows;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compareText(middle, sortColumn, utf8) < 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return the first row after from whose sort column is not value
+		 */
+		int end(int from, long value) {
+			int row = from;
+			while (row < rows && slot(row, sortColumn) == value) {
+				row++;
+			}
+			return row;
+		}
+
+		private void checkSorted() {
+			if (sortColumn == -1) {
+				throw new IllegalStateException(name + " is not sorted on a column");
+			}
+		}
+	}
+
+	/**
+	 * The actors, as ACTORS_SQL.
+	 */
+	public ResultCache.Rows actors() {
+		Table actor = table("ACTOR");
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int row = 0; row < actor.rows; row++) {
+			Object[] values = new Object[actor.columns.length];
+			for (int c = 0; c < values.length; c++) {
+				values[c] = actor.text[c] ? actor.getString(row, c) : intValue(actor.getLong(row, c));
+			}
+			rows.add(values);
+		}
+		int[] types = new int[actor.columns.length];
+		for (int c = 0; c < types.length; c++) {
+			types[c] = actor.text[c] ? Types.VARCHAR : Types.INTEGER;
+		}
+		return new ResultCache.Rows(actor.columns.clone(), types, rows, true);
+	}
+
+	/**
+	 * The longest audiobook and one of its authors, as LONGEST_AUDIOBOOK_SQL.
+	 */
+	public ResultCache.Rows longestAudiobook() {
+		Table media = table("MEDIA");
+		Table authors = table("AUTHORS");
+		Table author = table("AUTHOR");
+		int mediaType = media.column("Type_of_Media");
+		int mediaLength = media.column("Length");
+		int authorName = author.column("Name");
+		byte[] audiobook = "Audiobook".getBytes(StandardCharsets.UTF_8);
+		int bestMedia = -1;
+		int bestAuthor = -1;
+		long bestLength = 0;
+		for (int row = 0; row < authors.rows; row++) {
+			int m = find(media, authors.getLong(row, authors.column("Audiobook_Id")));
+			int a = find(author, authors.getLong(row, authors.column("Author_Id")));
+			if (m == -1 || a == -1 || media.compareText(m, mediaType, audiobook) != 0) {
+				continue;
+			}
+			long length = media.getLong(m, mediaLength);
+			// ORDER BY Length DESC puts NULL lengths last.
+			if (bestMedia == -1 || (length != NULL_INT && (bestLength == NULL_INT || length > bestLength))) {
+				bestMedia = m;
+				bestAuthor = a;
+				bestLength = length;
+			}
+		}
+		List<Object[]> rows = new ArrayList<Object[]>();
+		if (bestMedia != -1) {
+			rows.add(new Object[] {media.getString(bestMedia, media.column("Name")),
+					author.getString(bestAuthor, authorName), intValue(bestLength)});
+		}
+		return new ResultCache.Rows(new String[] {"Name", "Author", "Length_in_mins"},
+				new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * The albums with fewer than n library items, as ALBUM_COPIES_SQL.
+	 */
+	public ResultCache.Rows albumCopies(int n) {
+		Table media = table("MEDIA");
+		Table items = table("LIBRARY_ITEM");
+		int mediaType = media.column("Type_of_Media");
+		byte[] album = "Album".getBytes(StandardCharsets.UTF_8);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int row = 0; row < media.rows; row++) {
+			if (media.compareText(row, mediaType, album) != 0) {
+				continue;
+			}
+			long id = media.getLong(row, media.column("Media_Id"));
+			int first = items.lowerBound(id);
+			int copies = items.end(first, id) - first;
+			if (copies > 0 && copies < n) {
+				rows.add(new Object[] {Long.valueOf(id), media.getString(row, media.column("Name")), Long.valueOf(copies)});
+			}
+		}
+		return new ResultCache.Rows(new String[] {"Media_Id", "Name", "Count"},
+				new int[] {Types.INTEGER, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * The digital copies of every artist's albums, as DIGITAL_ALBUM_COPIES_SQL. As there, Media_Name is
+	 * one of the artist's albums.
+	 */
+	public ResultCache.Rows digitalAlbumCopies() {
+		Table media = table("MEDIA");
+		Table items = table("LIBRARY_ITEM");
+		Table albums = table("ALBUM");
+		Table artist = table("ARTIST");
+		int mediaType = media.column("Type_of_Media");
+		int digital = items.column("Is_Digital");
+		int artistName = artist.column("Name");
+		byte[] album = "Album".getBytes(StandardCharsets.UTF_8);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		// ARTIST is sorted by name, so artists that share a name are neighbours, as GROUP BY A.Name wants.
+		int row = 0;
+		while (row < artist.rows) {
+			String name = artist.getString(row, artistName);
+			byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+			long count = 0;
+			String albumName = null;
+			for (; row < artist.rows && artist.compareText(row, artistName, utf8) == 0; row++) {
+				long artistId = artist.getLong(row, artist.column("Artist_Id"));
+				int firstAlbum = albums.lowerBound(artistId);
+				for (int a = firstAlbum; a < albums.end(firstAlbum, artistId); a++) {
+					int m = find(media, albums.getLong(a, albums.column("Album_Id")));
+					if (m == -1 || media.compareText(m, mediaType, album) != 0) {
+						continue;
+					}
+					long id = media.getLong(m, media.column("Media_Id"));
+					int first = items.lowerBound(id);
+					long before = count;
+					for (int i = first; i < items.end(first, id); i++) {
+						if (items.getLong(i, digital) == 1) {
+							count++;
+						}
+					}
+					if (count > before) {
+						albumName = media.getString(m, media.column("Name"));
+					}
+				}
+			}
+			if (count > 0) {
+				rows.add(new Object[] {albumName, name, Long.valueOf(count)});
+			}
+		}
+		return new ResultCache.Rows(new String[] {"Media_Name", "Artist_Name", "Digital_Copies"},
+				new int[] {Types.VARCHAR, Types.VARCHAR, Types.INTEGER}, rows, true);
+	}
+
+	/**
+	 * The tracks featuring an artist released before a year, as TRACKS_BEFORE_YEAR_SQL.
+	 */
+	public ResultCache.Rows tracksBeforeYear(String artistName, int year) {
+		Table artist = table("ARTIST");
+		Table features = table("FEATURES");
+		Table track = table("TRACK");
+		int name = artist.column("Name");
+		int title = features.column("Track_Title");
+		int trackTitle = track.column("Title");
+		int trackYear = track.column("Year");
+		byte[] artistUtf8 = artistName.getBytes(StandardCharsets.UTF_8);
+		List<Object[]> rows = new ArrayList<Object[]>();
+		for (int a = artist.lowerBound(artistName); a < artist.rows && artist.compareText(a, name, artistUtf8) == 0; a++) {
+			long artistId = artist.getLong(a, artist.column("Artist_Id"));
+			int first = features.lowerBound(artistId);
+			for (int f = first; f < features.end(first, artistId); f++) {
+				String featured = features.getString(f, title);
+				byte[] titleUtf8 = featured.getBytes(StandardCharsets.UTF_8);
+				for (int t = track.lowerBound(featured); t < track.rows && track.compareText(t, trackTitle, titleUtf8) == 0; t++) {
+					long released = track.getLong(t, trackYear);
+					if (released != NULL_INT && released < year) {
+						rows.add(new Object[] {artistName, featured});
+					}
+				}
+			}
+		}
+		return new ResultCache.Rows(new String[] {"Name", "Title"}, new int[] {Types.VARCHAR, Types.VARCHAR}, rows, true);
+	}
+
+	/**
+	 * @return the row of a table sorted on a unique integer key, or -1
+	 */
+	private static int find(Table table, long key) {
+		int row = table.lowerBound(key);
+		return row < table.rows && table.getLong(row, table.sortColumn) == key ? row : -1;
+	}
+
+	private static Long intValue(long value) {
+		return value == NULL_INT ? null : Long.valueOf(value);
+	}
+
+	/**
+	 * Writes a snapshot of the catalog tables, read in one transaction. The file is written under a
+	 * temporary name and renamed when it is complete.
+	 *
+	 * @param conn a connection object; it is returned to its previous auto-commit mode
+	 * @param fileName the snapshot file to write
+	 */
+	public static void export(Connection conn, String fileName) throws SQLException, IOException {
+		File file = new File(fileName);
+		File partial = new File(fileName + ".partial");
+		StringPool pool = new StringPool();
+		List<byte[]> directory = new ArrayList<byte[]>();
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(partial), 1 << 16));
+		DataOutputStream out = new DataOutputStream(counter);
+		try {
+			for (String[] table : TABLES) {
+				directory.add(writeTable(conn, table[0], table[1], out, counter, pool));
+			}
+			long poolStart = counter.count;
+			pool.writeTo(out);
+			long directoryStart = counter.count;
+			out.writeInt(VERSION);
+			out.writeInt(directory.size());
+			for (byte[] entry : directory) {
+				out.write(entry);
+			}
+			out.writeLong(poolStart);
+			out.writeLong(directoryStart);
+			out.writeLong(MAGIC);
+			out.flush();
+			if (counter.count > Integer.MAX_VALUE) {
+				throw new IOException("The snapshot is larger than the 2 GB one mapping can cover");
+			}
+		} finally {
+			out.close();
+			conn.commit();
+			conn.setAutoCommit(autoCommit);
+		}
+		file.delete();
+		if (!partial.renameTo(file)) {
+			throw new IOException("Could not rename " + partial + " to " + file);
+		}
+	}
+
+	/**
+	 * Streams one table's records and returns its directory entry.
+	 */
+	private static byte[] writeTable(Connection conn, String table, String orderBy, DataOutputStream out,
+			CountingOutputStream counter, StringPool pool) throws SQLException, IOException {
+		List<String> columns = new ArrayList<String>();
+		List<Boolean> text = new ArrayList<Boolean>();
+		PreparedStatement info = conn.prepareStatement("PRAGMA table_info(" + table + ");");
+		try {
+			ResultSet rs = info.executeQuery();
+			while (rs.next()) {
+				String type = rs.getString("type").toUpperCase();
+				columns.add(rs.getString("name"));
+				text.add(!type.contains("INT") && !type.equals("BOOLEAN"));
+			}
+			rs.close();
+		} finally {
+			info.close();
+		}
+		int sortColumn = -1;
+		String sortedOn = orderBy.split(",")[0].trim();
+		for (int c = 0; c < columns.size(); c++) {
+			if (columns.get(c).equalsIgnoreCase(sortedOn)) {
+				sortColumn = c;
+			}
+		}
+
+		long offset = counter.count;
+		int rows = 0;
+		PreparedStatement stmt = conn.prepareStatement("SELECT " + join(columns) + " FROM " + table + " ORDER BY " + orderBy + ";");
+		try {
+			ResultSet rs = stmt.executeQuery();
+			rs.setFetchSize(ResultWriter.FETCH_SIZE);
+			while (rs.next()) {
+				for (int c = 0; c < columns.size(); c++) {
+					if (text.get(c)) {
+						String value = rs.getString(c + 1);
+						out.writeLong(value == null ? NULL_TEXT : pool.offset(value));
+					} else {
+						long value = rs.getLong(c + 1);
+						out.writeLong(rs.wasNull() ? NULL_INT : value);
+					}
+				}
+				rows++;
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(entry);
+		writeName(data, table);
+		data.writeInt(columns.size());
+		for (int c = 0; c < columns.size(); c++) {
+			writeName(data, columns.get(c));
+			data.writeByte(text.get(c) ? 1 : 0);
+		}
+		data.writeInt(sortColumn);
+		data.writeInt(rows);
+		data.writeLong(offset);
+		data.flush();
+		return entry.toByteArray();
+	}
+
+	private static String join(List<String> columns) {
+		StringBuilder sql = new StringBuilder();
+		for (String column : columns) {
+			if (sql.length() > 0) {
+				sql.append(", ");
+			}
+			sql.append(column);
+		}
+		return sql.toString();
+	}
+
+	private static void writeName(DataOutputStream out, String name) throws IOException {
+		byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(utf8.length);
+		out.write(utf8);
+	}
+
+	private static String readName(ByteBuffer in) {
+		byte[] utf8 = new byte[in.getShort()];
+		in.get(utf8);
+		return new String(utf8, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Each distinct string once, as a 4-byte length and its UTF-8 bytes.
+	 */
+	private static class StringPool {
+		private final Map<String, Long> offsets = new HashMap<String, Long>();
+		private byte[] bytes = new byte[1 << 16];
+		private int size = 0;
+
+		long offset(String value) throws IOException {
+			Long offset = offsets.get(value);
+			if (offset == null) {
+				byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+				long needed = (long) size + 4 + utf8.length;
+				if (needed > Integer.MAX_VALUE - 8) {
+					throw new IOException("The catalog's strings do not fit in one 2 GB snapshot");
+				}
+				if (needed > bytes.length) {
+					bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, (long) bytes.length * 2)));
+				}
+				ByteBuffer.wrap(bytes, size, 4).putInt(utf8.length);
+				System.arraycopy(utf8, 0, bytes, size + 4, utf8.length);
+				offset = (long) size;
+				size += 4 + utf8.length;
+				offsets.put(value, offset);
+			}
+			return offset;
+		}
+
+		void writeTo(OutputStream out) throws IOException {
+			out.write(bytes, 0, size);
+		}
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		private final OutputStream out;
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		long start = System.nanoTime();
+		int status = 0;
+		if (args.length == 2 && args[0].equals("export")) {
+			ConnectionPool pool = CSE3241app.pool();
+			Connection conn = null;
+			try {
+				conn = pool.borrow();
+				export(conn, args[1]);
+				System.out.println("Wrote " + args[1] + " (" + new File(args[1]).length() / 1024 + " KB) in "
+						+ (System.nanoTime() - start) / 1000000 + " ms");
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+				status = 1;
+			} catch (IOException e) {
+				System.out.println(e.getMessage());
+				status = 1;
+			} finally {
+				pool.release(conn);
+				pool.close();
+			}
+			System.exit(status);
+		}
+		if (args.length < 2) {
+			System.out.println("Usage: java SnapshotFile export FILE | java SnapshotFile FILE COMMAND [ARGS]");
+			System.exit(1);
+		}
+		try {
+			SnapshotFile snapshot = open(args[0]);
+			String command = args[1];
+			ResultCache.Rows rows;
+			if (command.equals("actors") && args.length == 2) {
+				rows = snapshot.actors();
+			} else if (command.equals("longest-audiobook") && args.length == 2) {
+				rows = snapshot.longestAudiobook();
+			} else if (command.equals("digital-album-copies") && args.length == 2) {
+				rows = snapshot.digitalAlbumCopies();
+			} else if (command.equals("album-copies") && args.length == 3) {
+				rows = snapshot.albumCopies(Integer.parseInt(args[2]));
+			} else if (command.equals("tracks-before") && args.length == 4) {
+				rows = snapshot.tracksBeforeYear(args[2], Integer.parseInt(args[3]));
+			} else {
+				throw new IllegalArgumentException("Unknown snapshot query: " + Arrays.toString(Arrays.copyOfRange(args, 1, args.length)));
+			}
+			ResultWriter.standard().write(rows.replay(null));
+			System.out.println("# answered in " + String.format("%.3f", (System.nanoTime() - start) / 1e6) + " ms");
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		}
+		System.exit(status);
+	}
+}
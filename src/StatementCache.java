@@ -0,0 +1,177 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of prepared statements for one connection, keyed by SQL text.
+ *
+ * <p>Callers get a statement with {@link #prepare(Connection, String)}, bind their parameters and run it.
+ * They close the ResultSet as usual but must NOT close the statement itself; it stays compiled
+ * for the next call and is closed when it is evicted or when its connection is closed.</p>
+ *
+ * <p>The caches are registered by connection identity, and a cache holds its connection, so nothing
+ * is dropped on its own: whoever closes a connection calls {@link #release(Connection)} first.
+ * {@link ConnectionPool} does so on every path that closes one.</p>
+ */
+public class StatementCache {
+
+	/** The number of statements kept per connection. Override with -Dstatement.cache.size=N. */
+	public static final int DEFAULT_CAPACITY = Integer.getInteger("statement.cache.size", 64);
+
+	private static final Map<Connection, StatementCache> CACHES = new IdentityHashMap<Connection, StatementCache>();
+
+	private static final AtomicLong TOTAL_HITS = new AtomicLong();
+	private static final AtomicLong TOTAL_MISSES = new AtomicLong();
+
+	private final Connection conn;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Creates a cache for a connection.
+	 *
+	 * @param conn the connection statements are prepared on
+	 * @param capacity the maximum number of statements kept open
+	 */
+	public StatementCache(Connection conn, final int capacity) {
+		this.conn = conn;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() > capacity) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cache belonging to a connection, creating it on first use.
+	 *
+	 * @param conn a connection object
+	 * @return the connection's statement cache
+	 */
+	public static StatementCache of(Connection conn) {
+		synchronized (CACHES) {
+			StatementCache cache = CACHES.get(conn);
+			if (cache == null) {
+				cache = new StatementCache(conn, DEFAULT_CAPACITY);
+				CACHES.put(conn, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Shorthand for {@code StatementCache.of(conn).prepare(sql)}.
+	 *
+	 * @param conn a connection object
+	 * @param sql the SQL text
+	 * @return a compiled statement with its parameters cleared
+	 */
+	public static PreparedStatement prepare(Connection conn, String sql) throws SQLException {
+		return of(conn).prepare(sql);
+	}
+
+	/**
+	 * Closes and forgets every cached statement of a connection. Call before closing the connection.
+	 *
+	 * @param conn a connection object
+	 */
+	public static void release(Connection conn) {
+		StatementCache cache;
+		synchronized (CACHES) {
+			cache = CACHES.remove(conn);
+		}
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	/**
+	 * @return hits and misses summed over every connection, e.g. "statement cache: 10 hits, 2 misses"
+	 */
+	public static String totals() {
+		return "statement cache: " + TOTAL_HITS.get() + " hits, " + TOTAL_MISSES.get() + " misses";
+	}
+
+	/**
+	 * @return cache hits summed over every connection
+	 */
+	public static long totalHits() {
+		return TOTAL_HITS.get();
+	}
+
+	/**
+	 * @return cache misses summed over every connection
+	 */
+	public static long totalMisses() {
+		return TOTAL_MISSES.get();
+	}
+
+	/**
+	 * Returns the cached statement for the SQL text, preparing it on a miss.
+	 *
+	 * @param sql the SQL text
+	 * @return a compiled statement with its parameters cleared
+	 */
+	public synchronized PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = statements.get(sql);
+		if (stmt != null && !stmt.isClosed()) {
+			hits++;
+			TOTAL_HITS.incrementAndGet();
+			QueryMetrics.cacheLookup(sql, true);
+			stmt.clearParameters();
+			return stmt;
+		}
+		misses++;
+		TOTAL_MISSES.incrementAndGet();
+		QueryMetrics.cacheLookup(sql, false);
+		stmt = conn.prepareStatement(sql);
+		statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that had to prepare a new statement
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	/**
+	 * Closes every cached statement.
+	 */
+	public synchronized void clear() {
+		Iterator<PreparedStatement> it = statements.values().iterator();
+		while (it.hasNext()) {
+			closeQuietly(it.next());
+			it.remove();
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and checks the MEDIA_STOCK counters.
+ *
+ * <p>MEDIA_STOCK holds one row per title and format (Is_Digital 0 or 1) with the number of items
+ * and the number of those checked out. Triggers on LIBRARY_ITEM and CHECK_OUT (schema migration 2)
+ * update it in the same transaction as every item insert, checkout and return, so reading a title's
+ * availability is a primary key lookup instead of the grouped joins behind the PHYSICAL_STOCK and
+ * DIGITAL_STOCK views.</p>
+ *
+ * <p>Usage: {@code java StockCounters MEDIA_ID} prints a title's stock, {@code java StockCounters verify}
+ * compares the counters with the views and the base tables, and {@code java StockCounters rebuild}
+ * recomputes them.</p>
+ */
+public class StockCounters {
+
+	/** Recomputes every counter from LIBRARY_ITEM and CHECK_OUT. */
+	static final String REBUILD_SQL = "INSERT INTO MEDIA_STOCK (Media_Id, Is_Digital, Total, Checked_Out) " +
+			"SELECT L.Media_Id, L.Is_Digital, COUNT(*), COUNT(C.Item_Id) " +
+			"FROM LIBRARY_ITEM AS L LEFT OUTER JOIN CHECK_OUT AS C ON C.Item_Id = L.Item_Id " +
+			"GROUP BY L.Media_Id, L.Is_Digital;";
+
+	static final String STOCK_SQL = "SELECT Media_Id, Is_Digital, Total, Checked_Out, Total - Checked_Out AS Available " +
+			"FROM MEDIA_STOCK WHERE Media_Id = ? ORDER BY Is_Digital;";
+
+	/**
+	 * The physical and digital stock of one title.
+	 */
+	public static class Stock {
+		int mediaId;
+		int physicalTotal;
+		int physicalCheckedOut;
+		int digitalTotal;
+		int digitalCheckedOut;
+
+		public int physicalAvailable() {
+			return physicalTotal - physicalCheckedOut;
+		}
+
+		public int digitalAvailable() {
+			return digitalTotal - digitalCheckedOut;
+		}
+	}
+
+	/**
+	 * Reads the stock of a title.
+	 *
+	 * @param conn a connection object
+	 * @param mediaId the title
+	 * @return the title's counters, all zero if it has no items
+	 */
+	public static Stock availability(Connection conn, int mediaId) throws SQLException {
+		PreparedStatement stmt = StatementCache.prepare(conn, STOCK_SQL);
+		stmt.setInt(1, mediaId);
+		ResultSet rs = stmt.executeQuery();
+		Stock stock = new Stock();
+		stock.mediaId = mediaId;
+		try {
+			while (rs.next()) {
+				if (rs.getInt(2) == 0) {
+					stock.physicalTotal = rs.getInt(3);
+					stock.physicalCheckedOut = rs.getInt(4);
+				} else {
+					stock.digitalTotal = rs.getInt(3);
+					stock.digitalCheckedOut = rs.getInt(4);
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		return stock;
+	}
+
+	/**
+	 * Writes the stock rows of a title.
+	 *
+	 * @param conn a connection object
+	 * @param mediaId the title
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long writeAvailability(Connection conn, int mediaId, ResultWriter out) throws SQLException, IOException {
+		PreparedStatement stmt = StatementCache.prepare(conn, STOCK_SQL);
+		stmt.setInt(1, mediaId);
+		return CSE3241app.writeQuery(stmt, out);
+	}
+
+	/**
+	 * Compares the counters with the PHYSICAL_STOCK and DIGITAL_STOCK views and with a fresh count
+	 * of LIBRARY_ITEM and CHECK_OUT.
+	 *
+	 * @param conn a connection object
+	 * @return one line per difference, empty if the counters are correct
+	 */
+	public static List<String> verify(Connection conn) throws SQLException {
+		List<String> differences = new ArrayList<String>();
+		compare(differences, "PHYSICAL_STOCK",
+				query(conn, "SELECT Id, PhysicalInStock FROM PHYSICAL_STOCK;"),
+				query(conn, "SELECT Media_Id, Total - Checked_Out FROM MEDIA_STOCK WHERE Is_Digital = 0 AND Total > 0;"));
+		compare(differences, "DIGITAL_STOCK",
+				query(conn, "SELECT Id, DigitalInStock FROM DIGITAL_STOCK;"),
+				query(conn, "SELECT Media_Id, Total - Checked_Out FROM MEDIA_STOCK WHERE Is_Digital = 1 AND Total > 0;"));
+		String[] columns = {"Total", "Checked_Out"};
+		for (int format = 0; format <= 1; format++) {
+			for (int c = 0; c < columns.length; c++) {
+				String recount = "SELECT L.Media_Id, " + (c == 0 ? "COUNT(*)" : "COUNT(C.Item_Id)") + " " +
+						"FROM LIBRARY_ITEM AS L LEFT OUTER JOIN CHECK_OUT AS C ON C.Item_Id = L.Item_Id " +
+						"WHERE L.Is_Digital = " + format + " GROUP BY L.Media_Id;";
+				String counters = "SELECT Media_Id, " + columns[c] + " FROM MEDIA_STOCK " +
+						"WHERE Is_Digital = " + format + " AND Total > 0;";
+				compare(differences, (format == 0 ? "physical " : "digital ") + columns[c],
+						query(conn, recount), query(conn, counters));
+			}
+		}
+		return differences;
+	}
+
+	/**
+	 * Recomputes every counter from LIBRARY_ITEM and CHECK_OUT in one transaction.
+	 *
+	 * @param conn a connection in auto-commit mode
+	 */
+	public static void rebuild(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try {
+			stmt.execute("BEGIN IMMEDIATE;");
+			try {
+				stmt.execute("DELETE FROM MEDIA_STOCK;");
+				stmt.execute(REBUILD_SQL);
+				stmt.execute("COMMIT;");
+			} catch (SQLException e) {
+				stmt.execute("ROLLBACK;");
+				throw e;
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private static Map<Integer, Integer> query(Connection conn, String sql) throws SQLException {
+		Map<Integer, Integer> values = new HashMap<Integer, Integer>();
+		Statement stmt = conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery(sql);
+			while (rs.next()) {
+				values.put(rs.getInt(1), rs.getInt(2));
+			}
+			rs.close();
+		} finally {
+			stmt.close();
+		}
+		return values;
+	}
+
+	private static void compare(List<String> differences, String what, Map<Integer, Integer> expected, Map<Integer, Integer> actual) {
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			Integer counted = actual.get(entry.getKey());
+			if (!entry.getValue().equals(counted)) {
+				differences.add(what + ": Media_Id " + entry.getKey() + " expected " + entry.getValue() + ", counter has " + counted);
+			}
+		}
+		for (Map.Entry<Integer, Integer> entry : actual.entrySet()) {
+			if (!expected.containsKey(entry.getKey())) {
+				differences.add(what + ": Media_Id " + entry.getKey() + " expected nothing, counter has " + entry.getValue());
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: java StockCounters MEDIA_ID | verify | rebuild");
+			return;
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			if (args[0].equals("verify")) {
+				List<String> differences = verify(conn);
+				for (String difference : differences) {
+					System.out.println(difference);
+				}
+				System.out.println(differences.isEmpty() ? "Stock counters match." : differences.size() + " differences found.");
+				status = differences.isEmpty() ? 0 : 1;
+			} else if (args[0].equals("rebuild")) {
+				rebuild(conn);
+				System.out.println("Stock counters rebuilt.");
+			} else {
+				writeAvailability(conn, Integer.parseInt(args[0]), ResultWriter.standard());
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,332 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Generates a synthetic library database of a given size, for benchmarks and load tests.
+ *
+ * <p>The tables and views are copied, without their rows, from a template database
+ * (-Dsynthetic.template=PATH, default Library_Database.db). They are then filled with about ROWS rows
+ * and brought up to date with {@link SchemaMigrator}, so the indexes and counters are built once over
+ * the finished data. The rows are spread roughly as follows:</p>
+ * <ul>
+ * <li>MEDIA: ROWS / 100 titles of each type, at most {@link #MAX_TITLES_PER_TYPE}. The rest of each
+ * type's id range is left free for inserts.</li>
+ * <li>AUDIOBOOK, MOVIE, GAME and ALBUM: one row per title. AUTHORS, ACTS_IN and DEVELOPS: one to three
+ * rows per title.</li>
+ * <li>NARRATOR, AUTHOR, ARTIST, ACTOR, DIRECTOR and DEVELOPER: ROWS / 200 each.</li>
+ * <li>TRACK and FEATURES: ROWS / 10 each, shared out over the albums. Album i is by artist i modulo the number
+ * of artists, so "Artist 0" always has tracks.</li>
+ * <li>LIBRARY_ITEM: 3 * ROWS / 10 items, a third of them digital. Each item has a PHYSICAL or DIGITAL row.</li>
+ * <li>PATRON: ROWS / 20. CHECK_OUT: one item in three, with 2020 dates.</li>
+ * </ul>
+ * <p>Names follow the pattern "Artist 7" or "Track 123", numbered from 0, so a benchmark can name rows
+ * it knows exist. The same ROWS always gives the same database.</p>
+ *
+ * <p>Usage: {@code java SyntheticLibrary ROWS FILE}. FILE must not exist yet.</p>
+ */
+public class SyntheticLibrary {
+
+	/** The database whose schema is copied. Override with -Dsynthetic.template=PATH. */
+	public static final String TEMPLATE = System.getProperty("synthetic.template", "Library_Database.db");
+
+	/** Titles generated per media type, leaving the top of each 1000-id range free. */
+	public static final int MAX_TITLES_PER_TYPE = 900;
+
+	/** The catalog tables copied from the template, parents before children. */
+	private static final String[] TABLES = {
+			"MEDIA", "NARRATOR", "AUTHOR", "ARTIST", "ACTOR", "DIRECTOR", "DEVELOPER",
+			"AUDIOBOOK", "AUTHORS", "MOVIE", "ACTS_IN", "GAME", "DEVELOPS", "ALBUM", "TRACK", "FEATURES",
+			"LIBRARY_ITEM", "PHYSICAL", "DIGITAL", "PATRON", "CHECK_OUT"};
+
+	/** PRAGMAs for the one-off load: nothing is worth an fsync until the file is complete. */
+	private static final String[] LOAD_PRAGMAS = {
+			"PRAGMA journal_mode=WAL;",
+			"PRAGMA synchronous=OFF;",
+			"PRAGMA cache_size=-64000;",
+			"PRAGMA foreign_keys=OFF;"
+	};
+
+	private static final int BATCH_SIZE = 1000;
+
+	private static final String[] GENRES = {"Fiction", "Mystery", "Drama", "Comedy", "Action", "Pop", "Rock", "Hip-Hop", "Strategy", "Sports"};
+
+	private final Random random;
+	private final int titlesPerType;
+	private final int contributors;
+	private final int tracks;
+	private final int items;
+	private final int patrons;
+
+	/**
+	 * @param rows the approximate number of rows to generate
+	 */
+	public SyntheticLibrary(long rows) {
+		if (rows < 100) {
+			throw new IllegalArgumentException("A synthetic library needs at least 100 rows");
+		}
+		this.random = new Random(rows);
+		this.titlesPerType = (int) Math.min(MAX_TITLES_PER_TYPE, Math.max(1, rows / 100));
+		this.contributors = (int) Math.max(10, rows / 200);
+		this.tracks = (int) Math.max(titlesPerType, rows / 10);
+		this.items = (int) Math.max(10, rows * 3 / 10);
+		this.patrons = (int) Math.max(10, rows / 20);
+	}
+
+	/**
+	 * Creates the database file and fills it.
+	 *
+	 * @param fileName the database to create; it must not exist yet
+	 */
+	public void generate(String fileName) throws SQLException {
+		if (new File(fileName).exists()) {
+			throw new IllegalArgumentException(fileName + " already exists");
+		}
+		ConnectionPool pool = new ConnectionPool(fileName, 1, LOAD_PRAGMAS);
+		Connection conn = null;
+		try {
+			conn = pool.borrow();
+			copySchema(conn);
+			conn.setAutoCommit(false);
+			fill(conn);
+			conn.commit();
+			conn.setAutoCommit(true);
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		pool = new ConnectionPool(fileName, 1);
+		try {
+			SchemaMigrator.migrate(pool);
+			conn = pool.borrow();
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.execute("ANALYZE;");
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+	}
+
+	private void copySchema(Connection conn) throws SQLException {
+		// No PRAGMAs: switching the template to WAL would rewrite its header.
+		ConnectionPool template = new ConnectionPool(TEMPLATE, 1, new String[0]);
+		Connection source = null;
+		Statement create = conn.createStatement();
+		try {
+			source = template.borrow();
+			PreparedStatement stmt = source.prepareStatement("SELECT sql FROM sqlite_master WHERE type = ? AND name = ?;");
+			try {
+				for (String table : TABLES) {
+					stmt.setString(1, "table");
+					stmt.setString(2, table);
+					create.execute(single(stmt, table));
+				}
+			} finally {
+				stmt.close();
+			}
+			Statement views = source.createStatement();
+			try {
+				ResultSet rs = views.executeQuery("SELECT sql FROM sqlite_master WHERE type = 'view';");
+				while (rs.next()) {
+					create.execute(rs.getString(1));
+				}
+				rs.close();
+			} finally {
+				views.close();
+			}
+		} finally {
+			create.close();
+			template.release(source);
+			template.close();
+		}
+	}
+
+	private static String single(PreparedStatement stmt, String table) throws SQLException {
+		ResultSet rs = stmt.executeQuery();
+		try {
+			if (!rs.next()) {
+				throw new SQLException(TEMPLATE + " has no table " + table);
+			}
+			return rs.getString(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	private void fill(Connection conn) throws SQLException {
+		String[] contributorTables = {"NARRATOR", "AUTHOR", "ARTIST", "ACTOR", "DIRECTOR", "DEVELOPER"};
+		for (String table : contributorTables) {
+			String name = table.charAt(0) + table.substring(1).toLowerCase() + " ";
+			Inserter insert = new Inserter(conn, table, 2);
+			for (int i = 0; i < contributors; i++) {
+				insert.row(name + i, i);
+			}
+			insert.finish();
+		}
+
+		Inserter media = new Inserter(conn, "MEDIA", 6);
+		Inserter audiobook = new Inserter(conn, "AUDIOBOOK", 2);
+		Inserter authors = new Inserter(conn, "AUTHORS", 2);
+		Inserter movie = new Inserter(conn, "MOVIE", 3);
+		Inserter actsIn = new Inserter(conn, "ACTS_IN", 2);
+		Inserter game = new Inserter(conn, "GAME", 2);
+		Inserter develops = new Inserter(conn, "DEVELOPS", 2);
+		Inserter album = new Inserter(conn, "ALBUM", 2);
+		Inserter track = new Inserter(conn, "TRACK", 5);
+		Inserter features = new Inserter(conn, "FEATURES", 3);
+		String[] movieRatings = {"G", "PG", "PG-13", "R"};
+		String[] gameRatings = {"E", "T", "M"};
+		int tracksPerAlbum = tracks / titlesPerType;
+		int trackNumber = 0;
+		for (int i = 0; i < titlesPerType; i++) {
+			int id = CSE3241app.MIN_AUDIOBOOK_ID + i;
+			media.row(id, "Audiobook " + i, genre(), year(), 60 + random.nextInt(1200), "Audiobook");
+			audiobook.row(id, random.nextInt(contributors));
+			for (int author : distinct(1 + random.nextInt(2))) {
+				authors.row(id, author);
+			}
+
+			id = CSE3241app.MIN_MOVIE_ID + i;
+			media.row(id, "Movie " + i, genre(), year(), 80 + random.nextInt(120), "Movie");
+			movie.row(id, movieRatings[random.nextInt(movieRatings.length)], random.nextInt(contributors));
+			for (int actor : distinct(1 + random.nextInt(3))) {
+				actsIn.row(id, actor);
+			}
+
+			id = CSE3241app.MIN_GAME_ID + i;
+			media.row(id, "Game " + i, genre(), year(), null, "Game");
+			game.row(id, gameRatings[random.nextInt(gameRatings.length)]);
+			for (int developer : distinct(1 + random.nextInt(2))) {
+				develops.row(id, developer);
+			}
+
+			id = CSE3241app.MIN_ALBUM_ID + i;
+			int year = year();
+			int artist = i % contributors;
+			int albumTracks = i < tracks % titlesPerType ? tracksPerAlbum + 1 : tracksPerAlbum;
+			media.row(id, "Album " + i, genre(), year, albumTracks * 4, "Album");
+			album.row(id, artist);
+			for (int t = 0; t < albumTracks; t++) {
+				String title = "Track " + trackNumber++;
+				track.row(title, t + 1, id, 120 + random.nextInt(300), year);
+				features.row(id, artist, title);
+			}
+		}
+		for (Inserter insert : new Inserter[] {media, audiobook, authors, movie, actsIn, game, develops, album, track, features}) {
+			insert.finish();
+		}
+
+		Inserter item = new Inserter(conn, "LIBRARY_ITEM", 3);
+		Inserter physical = new Inserter(conn, "PHYSICAL", 2);
+		Inserter digital = new Inserter(conn, "DIGITAL", 3);
+		int[] typeBase = {CSE3241app.MIN_AUDIOBOOK_ID, CSE3241app.MIN_MOVIE_ID, CSE3241app.MIN_GAME_ID, CSE3241app.MIN_ALBUM_ID};
+		for (int i = 0; i < items; i++) {
+			int mediaId = typeBase[random.nextInt(typeBase.length)] + random.nextInt(titlesPerType);
+			boolean isDigital = random.nextInt(3) == 0;
+			item.row(i, mediaId, isDigital ? 1 : 0);
+			if (isDigital) {
+				digital.row("LIC-" + i, i, 1 + random.nextInt(4000));
+			} else {
+				physical.row("Shelf " + random.nextInt(500), i);
+			}
+		}
+		item.finish();
+		physical.finish();
+		digital.finish();
+
+		Inserter patron = new Inserter(conn, "PATRON", 6);
+		for (int i = 0; i < patrons; i++) {
+			patron.row(i, "First " + i, "Last " + i, 0, i + " Synthetic Drive", "patron." + i + "@osu.edu");
+		}
+		patron.finish();
+
+		Inserter checkOut = new Inserter(conn, "CHECK_OUT", 4);
+		LocalDate start = LocalDate.of(2020, 1, 1);
+		for (int i = 0; i < items; i += 3) {
+			LocalDate checkedOut = start.plusDays(random.nextInt(366));
+			checkOut.row(checkedOut.plusDays(14).toString(), checkedOut.toString(), random.nextInt(patrons), i);
+		}
+		checkOut.finish();
+	}
+
+	private String genre() {
+		return GENRES[random.nextInt(GENRES.length)];
+	}
+
+	private int year() {
+		return 1950 + random.nextInt(71);
+	}
+
+	/**
+	 * @return count different contributor ids
+	 */
+	private int[] distinct(int count) {
+		int[] ids = new int[Math.min(count, contributors)];
+		int first = random.nextInt(contributors);
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = (first + i) % contributors;
+		}
+		return ids;
+	}
+
+	/**
+	 * Inserts rows into one table with JDBC batches.
+	 */
+	private static class Inserter {
+		private final PreparedStatement stmt;
+		private int pending;
+
+		Inserter(Connection conn, String table, int columns) throws SQLException {
+			StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+			for (int i = 0; i < columns; i++) {
+				sql.append(i == 0 ? "?" : ", ?");
+			}
+			this.stmt = conn.prepareStatement(sql.append(");").toString());
+		}
+
+		void row(Object... values) throws SQLException {
+			for (int i = 0; i < values.length; i++) {
+				stmt.setObject(i + 1, values[i]);
+			}
+			stmt.addBatch();
+			if (++pending == BATCH_SIZE) {
+				stmt.executeBatch();
+				pending = 0;
+			}
+		}
+
+		void finish() throws SQLException {
+			if (pending > 0) {
+				stmt.executeBatch();
+			}
+			stmt.close();
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.out.println("Usage: java SyntheticLibrary ROWS FILE");
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			new SyntheticLibrary(Long.parseLong(args[0])).generate(args[1]);
+			System.out.println("Generated " + args[1] + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
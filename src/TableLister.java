@@ -0,0 +1,534 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists whole tables a page at a time, in primary key order.
+ *
+ * <p>{@code SELECT * FROM TABLE} hands back the whole table at once, and OFFSET paging re-reads every
+ * row ahead of the page. Here each page is one query that seeks straight to the first key after the
+ * previous page ({@code WHERE (key) > (?) ORDER BY key LIMIT ?}) on the primary key index, so every
+ * page costs the same however deep into the table it is, and at most one page is in flight.</p>
+ *
+ * <p>Where a page ends is handed back as an opaque cursor: the table name and the key of the page's
+ * last row, Base64 encoded. Pass it to get the next page; a null cursor means the last page has been
+ * read. {@link #stream(Connection, String, int)} walks a whole table lazily instead, reading rows
+ * off an open cursor as they are consumed.</p>
+ *
+ * <p>Usage: {@code java TableLister TABLE [PAGE_SIZE [CURSOR]]} writes the whole table, or with a
+ * page size one page, followed by the cursor of the next one.</p>
+ */
+public class TableLister {
+
+	/** Rows per page. Override with -Dlist.page.size=N. */
+	public static final int PAGE_SIZE = Integer.getInteger("list.page.size", 1000);
+
+	/** The largest page a caller may ask for. */
+	public static final int MAX_PAGE_SIZE = 10000;
+
+	private static final Map<String, Table> TABLES = new LinkedHashMap<String, Table>();
+	static {
+		TABLES.put("ACTOR", new Table("ACTOR", "Actor_Id"));
+		TABLES.put("ARTIST", new Table("ARTIST", "Artist_Id"));
+		TABLES.put("TRACK", new Table("TRACK", "Album_Id", "Title"));
+		TABLES.put("PATRON", new Table("PATRON", "Card_Id"));
+		TABLES.put("MEDIA", new Table("MEDIA", "Media_Id"));
+		TABLES.put("LIBRARY_ITEM", new Table("LIBRARY_ITEM", "Item_Id"));
+	}
+
+	/**
+	 * @return the tables that can be listed
+	 */
+	public static Set<String> tables() {
+		return TABLES.keySet();
+	}
+
+	/**
+	 * Writes a whole table, one page at a time. The pages reach the writer as one result set, so
+	 * formats that wrap their rows, such as a JSON array, wrap the whole table once.
+	 *
+	 * @param conn a connection object
+	 * @param table one of {@link #tables()}, in any case
+	 * @param out where the rows are written
+	 * @return the number of rows written
+	 */
+	public static long writeAll(Connection conn, String table, ResultWriter out) throws SQLException, IOException {
+		PageChain pages = new PageChain(conn, table(table), PAGE_SIZE);
+		try {
+			return out.write(pages.proxy());
+		} finally {
+			pages.close();
+		}
+	}
+
+	/**
+	 * Writes one page of a table.
+	 *
+	 * @param conn a connection object
+	 * @param table one of {@link #tables()}, in any case
+	 * @param pageSize the most rows to write, 1 to {@link #MAX_PAGE_SIZE}
+	 * @param cursor where the previous page ended, or null for the first page
+	 * @param out where the rows are written
+	 * @param header whether to write the header first
+	 * @return the rows written and the cursor of the next page
+	 */
+	public static Page writePage(Connection conn, String table, int pageSize, String cursor, ResultWriter out, boolean header)
+			throws SQLException, IOException {
+		Table spec = table(table);
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+		}
+		Object[] after = cursor == null ? null : spec.decode(cursor);
+		PreparedStatement stmt = StatementCache.prepare(conn, after == null ? spec.firstPageSql : spec.nextPageSql);
+		spec.bind(stmt, after, pageSize);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			KeyTracker tracker = new KeyTracker(rs, spec);
+			long rows = out.write(tracker.proxy(), header);
+			String next = rows == pageSize ? spec.encode(tracker.last) : null;
+			return new Page(rows, next);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Returns every row of a table, read a page at a time as the stream is consumed.
+	 *
+	 * <p>The stream holds an open statement on the connection: close it, e.g. with try-with-resources,
+	 * and do not give the connection back before then.</p>
+	 *
+	 * @param conn a connection object
+	 * @param table one of {@link #tables()}, in any case
+	 * @param pageSize rows per query
+	 * @return the rows, each column as a Long, a String or null
+	 */
+	public static Stream<Object[]> stream(Connection conn, String table, int pageSize) throws SQLException {
+		if (pageSize < 1) {
+			throw new IllegalArgumentException("Page size must be at least 1");
+		}
+		final Rows rows = new Rows(conn, table(table), pageSize);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(rows,
+				Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(new Runnable() {
+					@Override
+					public void run() {
+						rows.close();
+					}
+				});
+	}
+
+	private static Table table(String name) {
+		Table spec = name == null ? null : TABLES.get(name.toUpperCase());
+		if (spec == null) {
+			throw new IllegalArgumentException("Cannot list " + name + "; tables are " + TABLES.keySet());
+		}
+		return spec;
+	}
+
+	/**
+	 * The outcome of {@link #writePage}.
+	 */
+	public static class Page {
+		/** The rows written. */
+		public final long rows;
+		/** The cursor of the next page, or null if this was the last one. */
+		public final String next;
+
+		Page(long rows, String next) {
+			this.rows = rows;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * A listable table, its primary key and the queries for its pages.
+	 */
+	private static class Table {
+		final String name;
+		final String[] keys;
+		final String firstPageSql;
+		final String nextPageSql;
+
+		Table(String name, String... keys) {
+			this.name = name;
+			this.keys = keys;
+			String columns = String.join(", ", keys);
+			String placeholders = String.join(", ", Collections.nCopies(keys.length, "?"));
+			this.firstPageSql = "SELECT * FROM " + name + "\n" +
+					"ORDER BY " + columns + "\n" +
+					"LIMIT ?;\n";
+			this.nextPageSql = "SELECT * FROM " + name + "\n" +
+					"WHERE (" + columns + ") > (" + placeholders + ")\n" +
+					"ORDER BY " + columns + "\n" +
+					"LIMIT ?;\n";
+		}
+
+		void bind(PreparedStatement stmt, Object[] after, int limit) throws SQLException {
+			int index = 1;
+			if (after != null) {
+				for (Object value : after) {
+					stmt.setObject(index++, value);
+				}
+			}
+			stmt.setInt(index, limit);
+		}
+
+		/**
+		 * Reads the key of the row the result set is on; integers as Long, anything else as String.
+		 */
+		Object[] key(ResultSet rs, int[] columns, boolean[] integral) throws SQLException {
+			Object[] key = new Object[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				key[i] = integral[i] ? (Object) rs.getLong(columns[i]) : rs.getString(columns[i]);
+			}
+			return key;
+		}
+
+		String encode(Object[] key) {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream data = new DataOutputStream(bytes);
+				data.writeUTF(name);
+				for (Object value : key) {
+					if (value instanceof Long) {
+						data.writeByte('L');
+						data.writeLong((Long) value);
+					} else {
+						data.writeByte('S');
+						byte[] utf8 = ((String) value).getBytes(StandardCharsets.UTF_8);
+						data.writeInt(utf8.length);
+						data.write(utf8);
+					}
+				}
+				return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		Object[] decode(String cursor) {
+			String owner;
+			Object[] key = new Object[keys.length];
+			try {
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(cursor)));
+				owner = data.readUTF();
+				for (int i = 0; i < key.length && owner.equals(name); i++) {
+					int type = data.readByte();
+					if (type == 'L') {
+						key[i] = data.readLong();
+					} else if (type == 'S') {
+						int length = data.readInt();
+						if (length < 0 || length > data.available()) {
+							throw new IOException("bad length");
+						}
+						byte[] utf8 = new byte[length];
+						data.readFully(utf8);
+						key[i] = new String(utf8, StandardCharsets.UTF_8);
+					} else {
+						throw new IOException("bad type");
+					}
+				}
+				if (owner.equals(name) && data.available() > 0) {
+					throw new IOException("trailing bytes");
+				}
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
+			} catch (IllegalArgumentException e) {
+				// Not Base64.
+				throw new IllegalArgumentException("Invalid cursor: " + cursor);
+			}
+			if (!owner.equals(name)) {
+				throw new IllegalArgumentException("The cursor is for " + owner + ", not " + name);
+			}
+			return key;
+		}
+
+		int[] keyColumns(ResultSetMetaData meta, boolean[] integral) throws SQLException {
+			int[] columns = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				for (int c = 1; c <= meta.getColumnCount(); c++) {
+					if (meta.getColumnName(c).equalsIgnoreCase(keys[i])) {
+						columns[i] = c;
+						integral[i] = ResultWriter.isIntegral(meta.getColumnType(c));
+					}
+				}
+				if (columns[i] == 0) {
+					throw new SQLException(name + " has no column " + keys[i]);
+				}
+			}
+			return columns;
+		}
+	}
+
+	/**
+	 * Passes a result set through to ResultWriter, remembering the key of the last row it moved to.
+	 */
+	private static class KeyTracker implements InvocationHandler {
+		private final ResultSet rs;
+		private final Table table;
+		private int[] columns;
+		private boolean[] integral;
+		Object[] last;
+
+		KeyTracker(ResultSet rs, Table table) {
+			this.rs = rs;
+			this.table = table;
+		}
+
+		ResultSet proxy() {
+			return (ResultSet) Proxy.newProxyInstance(TableLister.class.getClassLoader(),
+					new Class<?>[] {ResultSet.class}, this);
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			Object result;
+			try {
+				result = method.invoke(rs, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			if (method.getName().equals("next") && (Boolean) result) {
+				if (columns == null) {
+					integral = new boolean[table.keys.length];
+					columns = table.keyColumns(rs.getMetaData(), integral);
+				}
+				last = table.key(rs, columns, integral);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Passes the pages of a table through to ResultWriter as one result set, running the query for
+	 * the next page when a full page runs out.
+	 */
+	private static class PageChain implements InvocationHandler {
+		private final Connection conn;
+		private final Table table;
+		private final int pageSize;
+		private int[] columns;
+		private boolean[] integral;
+		private ResultSet rs;
+		private Object[] last;
+		private int rowsInPage;
+		private int fetchSize = ResultWriter.FETCH_SIZE;
+
+		PageChain(Connection conn, Table table, int pageSize) throws SQLException {
+			this.conn = conn;
+			this.table = table;
+			this.pageSize = pageSize;
+			// The writer asks for the column names before the first row.
+			open(null);
+		}
+
+		ResultSet proxy() {
+			return (ResultSet) Proxy.newProxyInstance(TableLister.class.getClassLoader(),
+					new Class<?>[] {ResultSet.class}, this);
+		}
+
+		private void open(Object[] after) throws SQLException {
+			PreparedStatement stmt = StatementCache.prepare(conn, after == null ? table.firstPageSql : table.nextPageSql);
+			table.bind(stmt, after, pageSize);
+			rs = stmt.executeQuery();
+			rs.setFetchSize(fetchSize);
+			rowsInPage = 0;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("next")) {
+				while (!rs.next()) {
+					if (rowsInPage < pageSize) {
+						return false;
+					}
+					rs.close();
+					open(last);
+				}
+				if (columns == null) {
+					integral = new boolean[table.keys.length];
+					columns = table.keyColumns(rs.getMetaData(), integral);
+				}
+				last = table.key(rs, columns, integral);
+				rowsInPage++;
+				return true;
+			}
+			if (method.getName().equals("setFetchSize")) {
+				fetchSize = (Integer) args[0];
+			}
+			try {
+				return method.invoke(rs, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+
+		void close() throws SQLException {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Reads a table row by row, running the query for the next page when a full page runs out.
+	 */
+	private static class Rows implements Iterator<Object[]> {
+		private final Table table;
+		private final int pageSize;
+		private final PreparedStatement firstPage;
+		private final PreparedStatement nextPage;
+		private ResultSet rs;
+		private int[] types;
+		private int[] columns;
+		private boolean[] integral;
+		private int rowsInPage = 0;
+		private Object[] lastKey;
+		private Object[] pending;
+		private boolean done = false;
+
+		Rows(Connection conn, Table table, int pageSize) throws SQLException {
+			this.table = table;
+			this.pageSize = pageSize;
+			// Statements of their own, so other work on the connection cannot reset this cursor.
+			this.firstPage = conn.prepareStatement(table.firstPageSql);
+			this.nextPage = conn.prepareStatement(table.nextPageSql);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (pending != null) {
+				return true;
+			}
+			if (done) {
+				return false;
+			}
+			try {
+				while (true) {
+					if (rs == null) {
+						PreparedStatement stmt = lastKey == null ? firstPage : nextPage;
+						table.bind(stmt, lastKey, pageSize);
+						rs = stmt.executeQuery();
+						rs.setFetchSize(ResultWriter.FETCH_SIZE);
+						rowsInPage = 0;
+						if (types == null) {
+							ResultSetMetaData meta = rs.getMetaData();
+							types = new int[meta.getColumnCount()];
+							for (int i = 0; i < types.length; i++) {
+								types[i] = meta.getColumnType(i + 1);
+							}
+							integral = new boolean[table.keys.length];
+							columns = table.keyColumns(meta, integral);
+						}
+					}
+					if (rs.next()) {
+						rowsInPage++;
+						lastKey = table.key(rs, columns, integral);
+						pending = row();
+						return true;
+					}
+					rs.close();
+					rs = null;
+					if (rowsInPage < pageSize) {
+						close();
+						return false;
+					}
+				}
+			} catch (SQLException e) {
+				close();
+				throw new IllegalStateException("Listing " + table.name + " failed: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public Object[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Object[] row = pending;
+			pending = null;
+			return row;
+		}
+
+		private Object[] row() throws SQLException {
+			Object[] row = new Object[types.length];
+			for (int i = 0; i < types.length; i++) {
+				if (ResultWriter.isIntegral(types[i])) {
+					long value = rs.getLong(i + 1);
+					row[i] = rs.wasNull() ? null : Long.valueOf(value);
+				} else {
+					row[i] = rs.getString(i + 1);
+				}
+			}
+			return row;
+		}
+
+		void close() {
+			done = true;
+			try {
+				if (rs != null) {
+					rs.close();
+					rs = null;
+				}
+				firstPage.close();
+				nextPage.close();
+			} catch (SQLException e) {
+				System.out.println(e.getMessage());
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 3) {
+			System.out.println("Usage: java TableLister TABLE [PAGE_SIZE [CURSOR]]");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			if (args.length == 1) {
+				writeAll(conn, args[0], ResultWriter.standard());
+			} else {
+				Page page = writePage(conn, args[0], Integer.parseInt(args[1]), args.length > 2 ? args[2] : null,
+						ResultWriter.standard(), true);
+				System.out.println(page.next == null ? "# last page" : "# next cursor: " + page.next);
+			}
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An in-memory index of every name in SEARCH for search-as-you-type.
+ *
+ * <p>Each name is lower-cased, stripped of accents and punctuation, and cut into trigrams, the
+ * three-character windows of " the great gatsby ". A query is cut the same way and the names sharing
+ * the most of its trigrams win, so a misspelled "gatbsy" still finds "The Great Gatsby". Queries of
+ * one or two characters have no useful trigrams and match the start of a word instead, from a sorted
+ * list of every word.</p>
+ *
+ * <p>To keep a query under a millisecond however many names there are, candidates come only from the
+ * query's rarest trigrams, until -Dtypeahead.candidates postings (default 4000) have been read; the
+ * common trigrams then only add to the scores of those candidates. Results are ranked by the share of
+ * trigrams the query and the name have in common (Jaccard similarity), with names that start with or
+ * contain the query ahead of the rest.</p>
+ *
+ * <p>{@link #write} answers from a shared index that is rebuilt from the database once the
+ * {@link ResultCache} has seen a write to one of SEARCH's source tables, at most every
+ * -Dtypeahead.refresh.seconds (default 5). One request rebuilds it, without holding a lock, and
+ * publishes the new index when it is done; the others keep answering from the old one
+ * meanwhile.</p>
+ */
+public final class Typeahead {
+
+	/** Postings read for candidates per query. Override with -Dtypeahead.candidates=N. */
+	public static final int CANDIDATE_BUDGET = Integer.getInteger("typeahead.candidates", 4000);
+
+	/** The shortest time between rebuilds of the shared index. Override with -Dtypeahead.refresh.seconds=N. */
+	public static final long REFRESH_MILLIS = Long.getLong("typeahead.refresh.seconds", 5L) * 1000;
+
+	static final String LOAD_SQL = "SELECT Kind, Ref, Text FROM SEARCH;";
+
+	private static final String[] COLUMNS = {"Kind", "Ref", "Name", "Score"};
+	private static final int[] COLUMN_TYPES = {Types.VARCHAR, Types.INTEGER, Types.VARCHAR, Types.VARCHAR};
+
+	private static volatile Shared shared;
+	private static final AtomicBoolean REBUILDING = new AtomicBoolean();
+
+	private final int size;
+	private final String[] kinds;
+	private final byte[] kindCodes;
+	private final int[] refs;
+	private final String[] names;
+	private final String[] normalized;
+	private final int[] trigramCounts;
+	private final Map<Long, int[]> postings;
+	private final String[] words;
+	private final int[] wordEntries;
+
+	private Typeahead(List<String> kindList, byte[] kindCodes, int[] refs, String[] names, int size) {
+		this.size = size;
+		this.kinds = kindList.toArray(new String[0]);
+		this.kindCodes = kindCodes;
+		this.refs = refs;
+		this.names = names;
+		this.normalized = new String[size];
+		this.trigramCounts = new int[size];
+		Map<Long, IntList> lists = new HashMap<Long, IntList>();
+		List<Word> wordList = new ArrayList<Word>();
+		for (int e = 0; e < size; e++) {
+			normalized[e] = normalize(names[e]);
+			long[] trigrams = trigrams(normalized[e]);
+			trigramCounts[e] = trigrams.length;
+			for (long trigram : trigrams) {
+				IntList list = lists.get(trigram);
+				if (list == null) {
+					list = new IntList();
+					lists.put(trigram, list);
+				}
+				list.add(e);
+			}
+			String previous = null;
+			String[] split = normalized[e].split(" ");
+			Arrays.sort(split);
+			for (String word : split) {
+				if (!word.isEmpty() && !word.equals(previous)) {
+					wordList.add(new Word(word, e));
+				}
+				previous = word;
+			}
+		}
+		this.postings = new HashMap<Long, int[]>(lists.size() * 2);
+		for (Map.Entry<Long, IntList> list : lists.entrySet()) {
+			postings.put(list.getKey(), list.getValue().toArray());
+		}
+		Collections.sort(wordList);
+		this.words = new String[wordList.size()];
+		this.wordEntries = new int[wordList.size()];
+		for (int i = 0; i < words.length; i++) {
+			words[i] = wordList.get(i).word;
+			wordEntries[i] = wordList.get(i).entry;
+		}
+	}
+
+	/**
+	 * Reads every name in SEARCH into a new index.
+	 *
+	 * @param conn a connection object
+	 * @return the index
+	 */
+	public static Typeahead load(Connection conn) throws SQLException {
+		List<String> kindList = new ArrayList<String>();
+		byte[] kindCodes = new byte[1024];
+		int[] refs = new int[1024];
+		String[] names = new String[1024];
+		int size = 0;
+		PreparedStatement stmt = StatementCache.prepare(conn, LOAD_SQL);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			rs.setFetchSize(ResultWriter.FETCH_SIZE);
+			while (rs.next()) {
+				if (size == names.length) {
+					int capacity = size + (size >> 1);
+					kindCodes = Arrays.copyOf(kindCodes, capacity);
+					refs = Arrays.copyOf(refs, capacity);
+					names = Arrays.copyOf(names, capacity);
+				}
+				String kind = rs.getString(1);
+				int code = kindList.indexOf(kind);
+				if (code < 0) {
+					code = kindList.size();
+					kindList.add(kind);
+				}
+				kindCodes[size] = (byte) code;
+				refs[size] = rs.getInt(2);
+				names[size] = rs.getString(3);
+				size++;
+			}
+		} finally {
+			rs.close();
+		}
+		return new Typeahead(kindList, kindCodes, refs, names, size);
+	}
+
+	/**
+	 * Writes the best matches for what has been typed so far, from the shared index.
+	 *
+	 * @param conn a connection, used only when the index has to be rebuilt
+	 * @param text what has been typed
+	 * @param limit the most results
+	 * @param out where the rows (Kind, Ref, Name, Score) are written
+	 * @return the number of rows written
+	 */
+	public static long write(Connection conn, String text, int limit, ResultWriter out) throws SQLException, IOException {
+		return out.write(shared(conn).find(text, limit).replay(null));
+	}
+
+	/**
+	 * Returns the shared index. If its source tables have been written to, the first caller to notice
+	 * rebuilds it and gets the new one; callers arriving meanwhile get the old one.
+	 */
+	static Typeahead shared(Connection conn) throws SQLException {
+		Shared current = shared;
+		if (current == null) {
+			// Nothing to answer from until the first build is done.
+			synchronized (Typeahead.class) {
+				current = shared;
+				if (current == null) {
+					current = new Shared(conn);
+					shared = current;
+				}
+			}
+			return current.index;
+		}
+		if (System.currentTimeMillis() - current.builtAt >= REFRESH_MILLIS
+				&& !Arrays.equals(ResultCache.versions(SearchIndex.TABLES), current.versions)
+				&& REBUILDING.compareAndSet(false, true)) {
+			try {
+				current = new Shared(conn);
+				shared = current;
+			} finally {
+				REBUILDING.set(false);
+			}
+		}
+		return current.index;
+	}
+
+	/**
+	 * @return the number of names indexed
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Finds the names that best match what has been typed.
+	 *
+	 * @param text what has been typed
+	 * @param limit the most results
+	 * @return the matches, best first, as Kind, Ref, Name and Score
+	 */
+	ResultCache.Rows find(String text, int limit) {
+		String query = normalize(text);
+		if (query.isEmpty()) {
+			throw new IllegalArgumentException("Type at least one letter or digit");
+		}
+		if (limit < 1) {
+			throw new IllegalArgumentException("The limit must be at least 1");
+		}
+		List<Hit> hits = query.length() < 3 ? prefix(query, limit) : similar(query, limit);
+		List<Object[]> rows = new ArrayList<Object[]>(hits.size());
+		for (Hit hit : hits) {
+			rows.add(new Object[] {kinds[kindCodes[hit.entry]], Long.valueOf(refs[hit.entry]), names[hit.entry],
+					String.format(Locale.ROOT, "%.3f", hit.score)});
+		}
+		return new ResultCache.Rows(COLUMNS, COLUMN_TYPES, rows, true);
+	}
+
+	/**
+	 * Names with a word that starts with the query, shortest name first.
+	 */
+	private List<Hit> prefix(String query, int limit) {
+		int low = 0;
+		int high = words.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (words[mid].compareTo(query) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>(limit + 1, Hit.WORST_FIRST);
+		for (int i = low, read = 0; i < words.length && words[i].startsWith(query) && read < CANDIDATE_BUDGET; i++, read++) {
+			int e = wordEntries[i];
+			// A whole-word match, then the shorter the name the closer the match.
+			double score = (words[i].length() == query.length() ? 1.0 : 0.5) + 1.0 / (1 + normalized[e].length());
+			offer(best, new Hit(e, score), limit);
+		}
+		return sorted(best);
+	}
+
+	/**
+	 * Names sharing the most trigrams with the query.
+	 */
+	private List<Hit> similar(String query, int limit) {
+		long[] trigrams = trigrams(query);
+		int[][] lists = new int[trigrams.length][];
+		int found = 0;
+		for (long trigram : trigrams) {
+			int[] list = postings.get(trigram);
+			if (list != null) {
+				lists[found++] = list;
+			}
+		}
+		lists = Arrays.copyOf(lists, found);
+		Arrays.sort(lists, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return Integer.compare(a.length, b.length);
+			}
+		});
+		int taken = 0;
+		int read = 0;
+		for (; taken < lists.length; taken++) {
+			if (taken > 0 && read + lists[taken].length > CANDIDATE_BUDGET) {
+				break;
+			}
+			read += lists[taken].length;
+		}
+		Counts counts = new Counts(read);
+		for (int i = 0; i < taken; i++) {
+			for (int e : lists[i]) {
+				counts.add(e);
+			}
+		}
+		IntList candidates = counts.entries;
+		for (int i = taken; i < lists.length; i++) {
+			for (int t = 0; t < candidates.size; t++) {
+				int e = candidates.values[t];
+				if (Arrays.binarySearch(lists[i], e) >= 0) {
+					counts.add(e);
+				}
+			}
+		}
+		PriorityQueue<Hit> best = new PriorityQueue<Hit>(limit + 1, Hit.WORST_FIRST);
+		int needed = Math.max(1, trigrams.length / 3);
+		for (int t = 0; t < candidates.size; t++) {
+			int e = candidates.values[t];
+			int common = counts.get(e);
+			if (common < needed) {
+				continue;
+			}
+			double score = (double) common / (trigrams.length + trigramCounts[e] - common);
+			String name = normalized[e];
+			if (name.startsWith(query)) {
+				score += 1.0;
+			} else if (name.contains(query)) {
+				score += 0.5;
+			}
+			offer(best, new Hit(e, score), limit);
+		}
+		return sorted(best);
+	}
+
+	private static void offer(PriorityQueue<Hit> best, Hit hit, int limit) {
+		if (best.size() < limit) {
+			best.add(hit);
+		} else if (Hit.WORST_FIRST.compare(hit, best.peek()) > 0) {
+			best.poll();
+			best.add(hit);
+		}
+	}
+
+	private static List<Hit> sorted(PriorityQueue<Hit> best) {
+		List<Hit> hits = new ArrayList<Hit>(best);
+		Collections.sort(hits, Collections.reverseOrder(Hit.WORST_FIRST));
+		return hits;
+	}
+
+	/**
+	 * Lower-cases a name, drops accents and turns everything but letters and digits into single spaces.
+	 *
+	 * @param text a name or a query
+	 * @return the words of the text separated by single spaces, e.g. "the great gatsby"
+	 */
+	static String normalize(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder out = new StringBuilder(decomposed.length());
+		boolean space = true;
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				out.append(Character.toLowerCase(c));
+				space = false;
+			} else if (!space) {
+				out.append(' ');
+				space = true;
+			}
+		}
+		int length = out.length();
+		if (length > 0 && out.charAt(length - 1) == ' ') {
+			out.setLength(length - 1);
+		}
+		return out.toString();
+	}
+
+	/**
+	 * The distinct trigrams of a normalized text padded with a space at each end, three chars to a long.
+	 */
+	static long[] trigrams(String text) {
+		String padded = " " + text + " ";
+		if (padded.length() < 3) {
+			return new long[0];
+		}
+		long[] trigrams = new long[padded.length() - 2];
+		for (int i = 0; i < trigrams.length; i++) {
+			trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+		}
+		Arrays.sort(trigrams);
+		int distinct = 0;
+		for (int i = 0; i < trigrams.length; i++) {
+			if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+				trigrams[distinct++] = trigrams[i];
+			}
+		}
+		return Arrays.copyOf(trigrams, distinct);
+	}
+
+	private static class Hit {
+		static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+			@Override
+			public int compare(Hit a, Hit b) {
+				int byScore = Double.compare(a.score, b.score);
+				// On a tie the earlier entry ranks higher, so results do not change between runs.
+				return byScore != 0 ? byScore : Integer.compare(b.entry, a.entry);
+			}
+		};
+
+		final int entry;
+		final double score;
+
+		Hit(int entry, double score) {
+			this.entry = entry;
+			this.score = score;
+		}
+	}
+
+	private static class Word implements Comparable<Word> {
+		final String word;
+		final int entry;
+
+		Word(String word, int entry) {
+			this.word = word;
+			this.entry = entry;
+		}
+
+		@Override
+		public int compareTo(Word other) {
+			int byWord = word.compareTo(other.word);
+			return byWord != 0 ? byWord : Integer.compare(entry, other.entry);
+		}
+	}
+
+	/**
+	 * The shared index with the source table versions it was built from.
+	 */
+	private static class Shared {
+		final long[] versions;
+		final long builtAt;
+		final Typeahead index;
+
+		Shared(Connection conn) throws SQLException {
+			// Read the versions first, so a write made during the load causes another rebuild.
+			this.versions = ResultCache.versions(SearchIndex.TABLES);
+			this.builtAt = System.currentTimeMillis();
+			this.index = load(conn);
+		}
+	}
+
+	/**
+	 * Trigram counts of one {@link #similar} query, kept only for the names its postings reach, so its
+	 * memory follows the postings read rather than the number of names. Open addressing, -1 for empty.
+	 */
+	private static class Counts {
+		final IntList entries = new IntList();
+		private final int[] keys;
+		private final int[] values;
+		private final int mask;
+
+		Counts(int expected) {
+			int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+			keys = new int[capacity];
+			values = new int[capacity];
+			mask = capacity - 1;
+			Arrays.fill(keys, -1);
+		}
+
+		void add(int entry) {
+			int slot = slot(entry);
+			if (keys[slot] == -1) {
+				keys[slot] = entry;
+				entries.add(entry);
+			}
+			values[slot]++;
+		}
+
+		int get(int entry) {
+			int slot = slot(entry);
+			return keys[slot] == -1 ? 0 : values[slot];
+		}
+
+		private int slot(int entry) {
+			int hash = entry * 0x9E3779B9;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (keys[slot] != -1 && keys[slot] != entry) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+	}
+
+	private static class IntList {
+		int[] values = new int[4];
+		int size = 0;
+
+		void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * {@code java Typeahead TEXT [LIMIT]} prints the best matches for TEXT and how long the index took
+	 * to build and the query to answer.
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.out.println("Usage: java Typeahead TEXT [LIMIT]");
+			System.exit(1);
+		}
+		ConnectionPool pool = CSE3241app.pool();
+		Connection conn = null;
+		int status = 0;
+		try {
+			conn = pool.borrow();
+			long start = System.nanoTime();
+			Typeahead index = load(conn);
+			long built = System.nanoTime();
+			int limit = args.length > 1 ? Integer.parseInt(args[1]) : SearchIndex.DEFAULT_LIMIT;
+			ResultCache.Rows rows = index.find(args[0], limit);
+			long answered = System.nanoTime();
+			ResultWriter.standard().write(rows.replay(null));
+			System.out.println("# " + index.size() + " names indexed in " + (built - start) / 1000000 + " ms; answered in "
+					+ (answered - built) / 1000 + " us");
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			status = 1;
+		} finally {
+			pool.release(conn);
+			pool.close();
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,397 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The one thread that writes to the library database.
+ *
+ * <p>SQLite allows a single writer at a time, so rather than every thread writing on whatever
+ * pooled connection it holds and waiting out the others' locks, mutations are handed to this queue
+ * and applied by its writer thread on a connection of its own. Pooled connections are then only
+ * used for reading, which WAL lets run alongside the writer.</p>
+ *
+ * <p>Every write made by the menu, batch mode and the QueryServer, id reservations included, goes
+ * through the queue. The exceptions are the standalone tools that write on a connection of their
+ * own: {@link SchemaMigrator} at startup, before anything else runs, and {@link BulkLoader},
+ * {@code StockCounters rebuild} and {@link SyntheticLibrary}. Each holds one long transaction or
+ * a series of large ones, which would stall every other mutation if it ran on the queue. SQLite
+ * sees them as another writer, like a second process, and the writer waits them out with the
+ * retries below.</p>
+ *
+ * <p>Producers add to a lock-free queue and wake the writer if it is parked. The writer takes
+ * what has queued up, up to -Dwriter.batch.size mutations (default 64, after waiting at most
+ * -Dwriter.group.wait.micros, default 200, for more to arrive), and applies them in a single
+ * BEGIN IMMEDIATE transaction, so one fsync covers the whole group. Each mutation runs inside its
+ * own savepoint: one that throws is rolled back alone and the rest of the group commits. Futures
+ * complete only after the commit, and the {@link ResultCache} is invalidated for the tables the
+ * committed mutations named.</p>
+ *
+ * <p>If SQLite reports the database busy or locked (another process is writing, beyond the
+ * connection's busy_timeout) the group is rolled back and applied again, up to -Dwriter.retries
+ * times (default 8) with exponential backoff and jitter, starting at 1 ms and capped at 250 ms.
+ * A mutation may therefore run more than once and must not have effects outside the transaction
+ * that a rollback would leave behind.</p>
+ */
+public class WriteQueue {
+
+	/** The most mutations committed together. Override with -Dwriter.batch.size=N. */
+	public static final int MAX_BATCH = Integer.getInteger("writer.batch.size", 64);
+
+	/** How long the writer waits for a group to fill. Override with -Dwriter.group.wait.micros=N. */
+	public static final long GROUP_WAIT_MICROS = Long.getLong("writer.group.wait.micros", 200L);
+
+	/** Attempts at a busy transaction after the first. Override with -Dwriter.retries=N. */
+	public static final int RETRIES = Integer.getInteger("writer.retries", 8);
+
+	private static final long FIRST_BACKOFF_MICROS = 1000;
+	private static final long MAX_BACKOFF_MICROS = 250000;
+
+	private static final int SQLITE_BUSY = 5;
+	private static final int SQLITE_LOCKED = 6;
+
+	/**
+	 * A change to the database, run by the writer inside its transaction.
+	 *
+	 * @param <T> what the change reports back, e.g. a new id
+	 */
+	public interface Mutation<T> {
+		/**
+		 * Applies the change. Do not commit, roll back or change the auto-commit mode.
+		 *
+		 * @param conn the writer's connection, inside a transaction
+		 * @return the result the caller's future completes with
+		 */
+		T apply(Connection conn) throws SQLException;
+	}
+
+	private final ConnectionPool connection;
+	private final ConcurrentLinkedQueue<Request<?>> queue = new ConcurrentLinkedQueue<Request<?>>();
+	private final AtomicBoolean parked = new AtomicBoolean();
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	private final AtomicLong mutations = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+
+	/**
+	 * Starts the writer, which keeps one connection to the database until {@link #close()}.
+	 *
+	 * @param databaseFileName the database file name
+	 */
+	public WriteQueue(String databaseFileName) {
+		this.connection = new ConnectionPool(databaseFileName, 1);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		}, "database-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queues a mutation.
+	 *
+	 * @param mutation the change
+	 * @param tables the tables it writes, whose cached results are dropped once it commits
+	 * @return completes with the mutation's result once committed, or with the SQLException that
+	 *         rolled it back
+	 */
+	public <T> CompletableFuture<T> submit(Mutation<T> mutation, String... tables) {
+		Request<T> request = new Request<T>(mutation, tables);
+		if (!running) {
+			request.result.completeExceptionally(new SQLException("The database writer is closed"));
+			return request.result;
+		}
+		queue.offer(request);
+		// The writer may have stopped and drained the queue since the check above. If so nobody
+		// will take the request; whoever removes it from the queue completes it.
+		if (!running && queue.remove(request)) {
+			request.result.completeExceptionally(new SQLException("The database writer is closed"));
+			return request.result;
+		}
+		if (parked.get() && parked.compareAndSet(true, false)) {
+			LockSupport.unpark(writer);
+		}
+		return request.result;
+	}
+
+	/**
+	 * Queues a mutation and waits for it to commit.
+	 *
+	 * @param mutation the change
+	 * @param tables the tables it writes
+	 * @return the mutation's result
+	 */
+	public <T> T execute(Mutation<T> mutation, String... tables) throws SQLException {
+		return await(submit(mutation, tables));
+	}
+
+	/**
+	 * Waits for a queued mutation and turns its failure back into an SQLException.
+	 *
+	 * @param result a future from {@link #submit(Mutation, String...)}
+	 * @return the mutation's result
+	 */
+	public static <T> T await(CompletableFuture<T> result) throws SQLException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the database writer", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException) {
+				throw (SQLException) e.getCause();
+			}
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	/**
+	 * Commits what is queued, then stops the writer and closes its connection.
+	 */
+	public void close() {
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return a one-line summary of mutations, commits and retries
+	 */
+	public String totals() {
+		long n = commits.get();
+		return "writer: " + mutations.get() + " mutations (" + failures.get() + " failed) in " + n
+				+ " commits, " + (n == 0 ? 0 : mutations.get() / n) + " per commit, " + retries.get() + " busy retries";
+	}
+
+	private void writeLoop() {
+		Connection conn = null;
+		try {
+			conn = connection.borrow();
+			List<Request<?>> batch = new ArrayList<Request<?>>();
+			while (running || !queue.isEmpty()) {
+				Request<?> first = queue.poll();
+				if (first == null) {
+					park(TimeUnit.MILLISECONDS.toNanos(50));
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + GROUP_WAIT_MICROS * 1000;
+				while (batch.size() < MAX_BATCH) {
+					Request<?> next = queue.poll();
+					if (next != null) {
+						batch.add(next);
+						continue;
+					}
+					long wait = deadline - System.nanoTime();
+					if (wait <= 0 || !running) {
+						break;
+					}
+					park(wait);
+				}
+				commit(conn, batch);
+				batch.clear();
+			}
+		} catch (SQLException e) {
+			System.out.println("The database writer stopped: " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.out.println("The database writer stopped: " + e);
+		} finally {
+			running = false;
+			failRemaining();
+			connection.release(conn);
+			connection.close();
+		}
+	}
+
+	/**
+	 * Parks the writer until a producer wakes it or the time is up.
+	 */
+	private void park(long nanos) {
+		parked.set(true);
+		if (queue.isEmpty() && running) {
+			LockSupport.parkNanos(this, nanos);
+		}
+		parked.set(false);
+	}
+
+	private void failRemaining() {
+		Request<?> request;
+		while ((request = queue.poll()) != null) {
+			request.result.completeExceptionally(new SQLException("The database writer is closed"));
+		}
+	}
+
+	/**
+	 * Applies a group in one transaction and completes its futures.
+	 */
+	private void commit(Connection conn, List<Request<?>> batch) {
+		List<Object> outcomes;
+		try {
+			outcomes = transact(conn, batch);
+		} catch (SQLException e) {
+			for (Request<?> request : batch) {
+				mutations.incrementAndGet();
+				failures.incrementAndGet();
+				request.result.completeExceptionally(e);
+			}
+			return;
+		}
+		commits.incrementAndGet();
+		Set<String> written = new LinkedHashSet<String>();
+		for (int i = 0; i < batch.size(); i++) {
+			if (!(outcomes.get(i) instanceof Failure)) {
+				for (String table : batch.get(i).tables) {
+					written.add(table);
+				}
+			}
+		}
+		if (!written.isEmpty()) {
+			ResultCache.invalidate(written.toArray(new String[0]));
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			mutations.incrementAndGet();
+			Object outcome = outcomes.get(i);
+			if (outcome instanceof Failure) {
+				failures.incrementAndGet();
+				batch.get(i).result.completeExceptionally(((Failure) outcome).cause);
+			} else {
+				batch.get(i).complete(outcome);
+			}
+		}
+	}
+
+	/**
+	 * Runs {@link #apply(Connection, List)}, starting over while the database is busy.
+	 */
+	private List<Object> transact(Connection conn, List<Request<?>> batch) throws SQLException {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return apply(conn, batch);
+			} catch (SQLException e) {
+				if (attempt >= RETRIES || !isBusy(e)) {
+					throw e;
+				}
+				retries.incrementAndGet();
+				backoff(attempt);
+			}
+		}
+	}
+
+	/**
+	 * Runs one transaction over the group.
+	 *
+	 * @return for each mutation, its result or the {@link Failure} that rolled it back
+	 */
+	private static List<Object> apply(Connection conn, List<Request<?>> batch) throws SQLException {
+		execute(conn, "BEGIN IMMEDIATE;");
+		try {
+			List<Object> outcomes = new ArrayList<Object>(batch.size());
+			for (Request<?> request : batch) {
+				execute(conn, "SAVEPOINT mutation;");
+				try {
+					outcomes.add(request.mutation.apply(conn));
+					execute(conn, "RELEASE mutation;");
+				} catch (SQLException e) {
+					if (isBusy(e)) {
+						throw e;
+					}
+					execute(conn, "ROLLBACK TO mutation;");
+					execute(conn, "RELEASE mutation;");
+					outcomes.add(new Failure(e));
+				} catch (RuntimeException e) {
+					execute(conn, "ROLLBACK TO mutation;");
+					execute(conn, "RELEASE mutation;");
+					outcomes.add(new Failure(e));
+				}
+			}
+			execute(conn, "COMMIT;");
+			return outcomes;
+		} catch (SQLException e) {
+			try {
+				execute(conn, "ROLLBACK;");
+			} catch (SQLException ignored) {
+				// Nothing to roll back if BEGIN itself failed.
+			}
+			throw e;
+		}
+	}
+
+	private static void execute(Connection conn, String sql) throws SQLException {
+		StatementCache.prepare(conn, sql).execute();
+	}
+
+	/**
+	 * @return true if SQLite gave up waiting for another writer
+	 */
+	static boolean isBusy(SQLException e) {
+		int code = e.getErrorCode() & 0xff;
+		return code == SQLITE_BUSY || code == SQLITE_LOCKED
+				|| (e.getMessage() != null && e.getMessage().contains("database is locked"));
+	}
+
+	/**
+	 * Sleeps 1, 2, 4, ... ms (at most 250), each time a random amount between half and all of it.
+	 */
+	static void backoff(int attempt) {
+		long ceiling = Math.min(MAX_BACKOFF_MICROS, FIRST_BACKOFF_MICROS << Math.min(attempt, 20));
+		long micros = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+		try {
+			TimeUnit.MICROSECONDS.sleep(micros);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A queued mutation and the future its caller holds.
+	 */
+	private static class Request<T> {
+		final Mutation<T> mutation;
+		final String[] tables;
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+
+		Request(Mutation<T> mutation, String[] tables) {
+			this.mutation = mutation;
+			this.tables = tables.clone();
+		}
+
+		@SuppressWarnings("unchecked")
+		void complete(Object outcome) {
+			result.complete((T) outcome);
+		}
+	}
+
+	/**
+	 * Marks a mutation that was rolled back, so that a mutation may itself return an exception.
+	 */
+	private static class Failure {
+		final Exception cause;
+
+		Failure(Exception cause) {
+			this.cause = cause;
+		}
+	}
+}